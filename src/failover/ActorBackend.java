@@ -0,0 +1,140 @@
+package failover;
+
+/**
+ * Runs a simulation with every Entity as a mailbox-driven actor on a
+ * work-stealing pool.
+ *
+ * An actor is only scheduled when it has work: a message arrived
+ * (Entity.signal()) or its last step left it busy, in which case it is
+ * stepped again after the delay the step returned. Idle entities cost
+ * nothing, so tens of thousands of eNodeBs can share a few threads.
+ * Delays, deadlines and the maximum time of every Entity are timers on one
+ * TimingWheel, so there is no sleeping thread per Entity. The pool and the
+ * wheel are shared by all runs that use this backend.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ActorBackend implements ExecutionBackend {
+	private ForkJoinPool pool;
+	private TimingWheel timer;
+
+	public ActorBackend(int parallelism) {
+		pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		timer = new TimingWheel();
+	}
+
+	@Override
+	public void execute(SimContext ctx) {
+		ArrayList<Entity> entities = new ArrayList<Entity>();
+		entities.addAll(ctx.getControllers());
+		entities.addAll(ctx.getENodeBs());
+
+		CountDownLatch done = new CountDownLatch(entities.size());
+		ctx.setClock(Clock.SYSTEM);
+		ctx.setTimers(timer);
+		ctx.setStartTime(System.currentTimeMillis());
+		ctx.getFaults().install(ctx);
+
+		for (Entity e : entities) {
+			final Actor a = new Actor(e, done);
+			e.setWaker(new Runnable() {
+				@Override
+				public void run() {
+					a.signal();
+				}
+			});
+			a.wakeAfter(e.startDelay() + e.random());
+			timer.schedule(e.getMaxTime() * 1000, new Runnable() {
+				@Override
+				public void run() {
+					a.stop();
+				}
+			});
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Entity e : entities) {
+			e.setWaker(null);
+		}
+	}
+
+	/**
+	 * Steps one Entity. At most one step of an Entity runs at a time.
+	 */
+	private class Actor implements Runnable {
+		private Entity entity;
+		private CountDownLatch done;
+		private AtomicBoolean scheduled;
+		private volatile boolean stopping;
+		private boolean stopped;
+
+		Actor(Entity entity, CountDownLatch done) {
+			this.entity = entity;
+			this.done = done;
+			scheduled = new AtomicBoolean(false);
+			stopping = false;
+			stopped = false;
+		}
+
+		/**
+		 * Schedules the actor on the pool unless it is already scheduled
+		 */
+		void signal() {
+			if (scheduled.compareAndSet(false, true)) {
+				pool.execute(this);
+			}
+		}
+
+		/**
+		 * Schedules the actor after a delay
+		 *
+		 * @param delay in milliseconds
+		 */
+		void wakeAfter(long delay) {
+			timer.schedule(delay, new Runnable() {
+				@Override
+				public void run() {
+					signal();
+				}
+			});
+		}
+
+		/**
+		 * The Entity reached its maximum time
+		 */
+		void stop() {
+			stopping = true;
+			signal();
+		}
+
+		@Override
+		public void run() {
+			if (stopped) {
+				return;
+			}
+			if (stopping) {
+				stopped = true;
+				entity.shutdown();
+				done.countDown();
+				return;
+			}
+
+			long delay = entity.step();
+			scheduled.set(false);
+
+			if (stopping) {
+				signal();
+			} else if (!entity.isIdle()) {
+				wakeAfter(delay);
+			}
+		}
+	}
+}
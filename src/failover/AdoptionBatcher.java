@@ -0,0 +1,103 @@
+package failover;
+
+/**
+ * Groups the responses an Entity sends back towards orphans by next hop.
+ *
+ * Responses that leave an Entity for the same neighbour in one step travel
+ * as one batch: the first response carries the others, linked through
+ * Message.getNext(). The neighbour splits the batch again where the paths
+ * of the responses diverge, so a batch only costs one message per hop while
+ * the responses share a path.
+ *
+ * A batcher belongs to one Entity and is used by its own steps only.
+ */
+
+import java.util.ArrayList;
+
+public class AdoptionBatcher {
+	private Entity owner;
+	private boolean batching;
+	private ArrayList<ENodeB> hops;
+	private ArrayList<Message> heads;
+	private ArrayList<Message> tails;
+	private long sent; // messages sent, a batch is one message
+	private long responses; // responses sent
+
+	/**
+	 * @param owner the Entity that sends the responses
+	 * @param batching false to send every response on its own
+	 */
+	public AdoptionBatcher(Entity owner, boolean batching) {
+		this.owner = owner;
+		this.batching = batching;
+		hops = new ArrayList<ENodeB>();
+		heads = new ArrayList<Message>();
+		tails = new ArrayList<Message>();
+		sent = 0;
+		responses = 0;
+	}
+
+	/**
+	 * Adds a response for the next hop. Without batching it is sent at once.
+	 *
+	 * @param hop the next eNodeB on the path to the orphan
+	 * @param m the response
+	 */
+	public void add(ENodeB hop, Message m) {
+		responses++;
+		if (!batching) {
+			sent++;
+			owner.send(hop, Links.RESPONSE, m);
+			return;
+		}
+		for (int i = 0; i < hops.size(); i++) {
+			if (hops.get(i) == hop) {
+				tails.get(i).setNext(m);
+				tails.set(i, m);
+				return;
+			}
+		}
+		hops.add(hop);
+		heads.add(m);
+		tails.add(m);
+	}
+
+	/**
+	 * Sends one batch to every next hop
+	 */
+	public void flush() {
+		for (int i = 0; i < hops.size(); i++) {
+			sent++;
+			owner.send(hops.get(i), Links.RESPONSE, heads.get(i));
+		}
+		hops.clear();
+		heads.clear();
+		tails.clear();
+	}
+
+	/**
+	 * Counts a response delivered to the orphan itself
+	 */
+	public void delivered() {
+		sent++;
+		responses++;
+	}
+
+	/**
+	 * Gets the number of messages sent
+	 *
+	 * @return sent, a batch counts once
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 * Gets the number of responses sent
+	 *
+	 * @return responses, the messages that would be sent without batching
+	 */
+	public long getResponses() {
+		return responses;
+	}
+}
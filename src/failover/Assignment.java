@@ -0,0 +1,52 @@
+package failover;
+
+/**
+ * The controller of an eNodeB and the Entity it reaches that controller
+ * through, as one immutable value.
+ *
+ * An eNodeB publishes a new Assignment instead of changing two fields, so
+ * a thread that reads it sees either the old or the new controller
+ * together with its path, never half of a change.
+ */
+public final class Assignment {
+	public static final Assignment NONE = new Assignment(null, null);
+
+	private final Controller controller;
+	private final Entity toController;
+
+	/**
+	 * @param controller the controller or null for an orphan
+	 * @param toController the controller or the eNodeB towards it
+	 */
+	public Assignment(Controller controller, Entity toController) {
+		this.controller = controller;
+		this.toController = toController;
+	}
+
+	/**
+	 * Gets the controller
+	 *
+	 * @return the controller or null for an orphan
+	 */
+	public Controller getController() {
+		return controller;
+	}
+
+	/**
+	 * Gets the Entity towards the controller
+	 *
+	 * @return the controller or an eNodeB
+	 */
+	public Entity getToController() {
+		return toController;
+	}
+
+	/**
+	 * Gets the same path without a controller
+	 *
+	 * @return the assignment of an orphan
+	 */
+	public Assignment orphan() {
+		return new Assignment(null, toController);
+	}
+}
@@ -0,0 +1,438 @@
+package failover;
+
+/**
+ * Ranked backup controllers of every eNodeB, planned before any failure.
+ *
+ * One breadth-first search starts from all controllers at once and carries
+ * a label per controller. An eNodeB keeps the first k distinct controllers
+ * that reach it, which are its k nearest, together with the neighbour the
+ * label came from (the next hop towards that controller) and the hop count.
+ * An eNodeB only passes on the labels it keeps: a controller that is not
+ * among the k nearest of an eNodeB cannot be among the k nearest of an
+ * eNodeB behind it, so nothing is lost. Searches never pass through a
+ * controller.
+ *
+ * The search is O(k (V + E)) on the compiled Graph, e.g. about 50 ms for
+ * 100k eNodeBs and k = 3. The tables are flat int arrays indexed by
+ * vertex * k + rank.
+ *
+ * The plan follows the run: when a link or a controller goes away, only
+ * the backups whose path used it are dropped, along with the backups
+ * learned from them downstream. The eNodeBs that lost a backup keep the
+ * rest and fill their free ranks from their neighbours, nearest first,
+ * as in ShortestPaths. A backup that is kept is still among the k nearest,
+ * as other controllers only got farther. An added link plans everything
+ * again. Updates lock the graph before the plan.
+ */
+
+import java.util.Arrays;
+
+public class BackupPlanner {
+	private Graph g;
+	private Graph.Snapshot topology; // the topology of the current update
+	private int k;
+	private boolean[] isController;
+	private boolean[] alive; // the controller has not failed
+	private int[] count; // labels kept by each vertex
+	private int[] controller; // vertex * k + rank
+	private int[] next;
+	private int[] hops; // -1 for a backup dropped by the current update
+
+	// scratch of one update
+	private int[] mark; // epoch of the update that dropped a backup of the vertex
+	private int epoch;
+
+	/**
+	 * Plans the backups of all eNodeBs of a run
+	 *
+	 * @param ctx the run
+	 * @param k the backups kept per eNodeB
+	 * @return the plan
+	 */
+	public static BackupPlanner plan(SimContext ctx, int k) {
+		int[] controllers = new int[ctx.getControllers().size()];
+		for (int i = 0; i < controllers.length; i++) {
+			controllers[i] = ctx.getControllers().get(i).getId();
+		}
+		final BackupPlanner p = new BackupPlanner(ctx.getGraph(), controllers, k);
+		ctx.getGraph().addListener(new Graph.Listener() {
+			@Override
+			public void edgeAdded(int edge) {
+				p.addEdge(edge);
+			}
+
+			@Override
+			public void edgeRemoved(int edge) {
+				p.removeEdge(edge);
+			}
+		});
+		return p;
+	}
+
+	/**
+	 * Plans the backups of all vertices that are not controllers
+	 *
+	 * @param g the graph
+	 * @param controllers the vertices of the controllers
+	 * @param k the backups kept per vertex
+	 */
+	public BackupPlanner(Graph g, int[] controllers, int k) {
+		this.g = g;
+		this.k = k;
+		topology = g.snapshot();
+		int n = topology.getVertexCount();
+		isController = new boolean[n];
+		alive = new boolean[n];
+		for (int c : controllers) {
+			isController[c] = true;
+			alive[c] = true;
+		}
+		plan();
+	}
+
+	/**
+	 * Plans the backups of all vertices from the live controllers
+	 */
+	private void plan() {
+		int n = topology.getVertexCount();
+		isController = Arrays.copyOf(isController, n);
+		alive = Arrays.copyOf(alive, n);
+		count = new int[n];
+		controller = new int[n * k];
+		next = new int[n * k];
+		hops = new int[n * k];
+		mark = new int[n];
+		epoch = 0;
+		Arrays.fill(controller, -1);
+
+		int[] controllers = new int[n];
+		int live = 0;
+		for (int c = 0; c < n; c++) {
+			if (alive[c]) {
+				controllers[live++] = c;
+			}
+		}
+		controllers = Arrays.copyOf(controllers, live);
+
+		// every vertex enters the queue at most k times, every controller once
+		int[] qv = new int[n * k + controllers.length];
+		int[] qc = new int[qv.length];
+		int[] qd = new int[qv.length];
+		int tail = 0;
+		for (int c : controllers) {
+			qv[tail] = c;
+			qc[tail] = c;
+			qd[tail++] = 0;
+		}
+		for (int head = 0; head < tail; head++) {
+			int v = qv[head];
+			int c = qc[head];
+			int d = qd[head] + 1;
+			for (int s = topology.begin(v); s < topology.end(v); s++) {
+				int w = topology.neighbour(s);
+				if (isController[w] || count[w] == k || topology.isRemoved(topology.edge(s)) || rank(w, c) >= 0) {
+					continue;
+				}
+				int i = w * k + count[w]++;
+				controller[i] = c;
+				next[i] = v;
+				hops[i] = d;
+				qv[tail] = w;
+				qc[tail] = c;
+				qd[tail++] = d;
+			}
+		}
+	}
+
+	/**
+	 * Drops the backups whose path used a removed edge
+	 *
+	 * @param edge the removed edge
+	 */
+	public void removeEdge(int edge) {
+		synchronized (g) {
+			synchronized (this) {
+				topology = g.snapshot();
+				int a = topology.getA(edge);
+				int b = topology.getB(edge);
+				if (topology.findEdge(a, b) >= 0) {
+					return; // another edge joins the same vertices
+				}
+				epoch++;
+				int[] qv = new int[2 * k];
+				int[] qc = new int[2 * k];
+				int tail = 0;
+				for (int r = 0; r < count[b]; r++) {
+					if (next[b * k + r] == a) {
+						qv[tail] = b;
+						qc[tail++] = controller[b * k + r];
+					}
+				}
+				for (int r = 0; r < count[a]; r++) {
+					if (next[a * k + r] == b) {
+						qv[tail] = a;
+						qc[tail++] = controller[a * k + r];
+					}
+				}
+				repair(drop(qv, qc, tail));
+			}
+		}
+	}
+
+	/**
+	 * Drops a failed controller from the backups of all eNodeBs
+	 *
+	 * @param c the controller
+	 */
+	public void removeController(int c) {
+		synchronized (g) {
+			synchronized (this) {
+				topology = g.snapshot();
+				if (!alive[c]) {
+					return;
+				}
+				alive[c] = false;
+				epoch++;
+				int[] qv = new int[topology.end(c) - topology.begin(c)];
+				int[] qc = new int[qv.length];
+				int tail = 0;
+				for (int s = topology.begin(c); s < topology.end(c); s++) {
+					int w = topology.neighbour(s);
+					int r = rank(w, c);
+					if (r >= 0 && next[w * k + r] == c) {
+						qv[tail] = w;
+						qc[tail++] = c;
+					}
+				}
+				repair(drop(qv, qc, tail));
+			}
+		}
+	}
+
+	/**
+	 * Plans everything again after an edge was added
+	 *
+	 * @param edge the added edge
+	 */
+	public void addEdge(int edge) {
+		synchronized (g) {
+			synchronized (this) {
+				topology = g.snapshot();
+				plan();
+			}
+		}
+	}
+
+	/**
+	 * Drops the given backups and the backups learned from them
+	 *
+	 * @param qv the eNodeBs
+	 * @param qc the controllers, one per eNodeB
+	 * @param size the backups given
+	 * @return the eNodeBs that lost a backup
+	 */
+	private int[] drop(int[] qv, int[] qc, int size) {
+		int[] affected = new int[8];
+		int n = 0;
+		for (int head = 0; head < size; head++) {
+			int v = qv[head];
+			int c = qc[head];
+			int r = rank(v, c);
+			if (r < 0 || hops[v * k + r] < 0) {
+				continue;
+			}
+			hops[v * k + r] = -1;
+			if (mark[v] != epoch) {
+				mark[v] = epoch;
+				if (n == affected.length) {
+					affected = Arrays.copyOf(affected, n * 2);
+				}
+				affected[n++] = v;
+			}
+			for (int s = topology.begin(v); s < topology.end(v); s++) {
+				int w = topology.neighbour(s);
+				int x = isController[w] ? -1 : rank(w, c);
+				if (x >= 0 && next[w * k + x] == v && hops[w * k + x] >= 0) {
+					if (size == qv.length) {
+						qv = Arrays.copyOf(qv, size * 2);
+						qc = Arrays.copyOf(qc, size * 2);
+					}
+					qv[size] = w;
+					qc[size++] = c;
+				}
+			}
+		}
+		return Arrays.copyOf(affected, n);
+	}
+
+	/**
+	 * Fills the free ranks of the eNodeBs that lost backups. The offers of
+	 * the neighbours are taken nearest first, merged with a FIFO of the
+	 * backups found on the way, which only grow farther.
+	 *
+	 * @param affected the eNodeBs that lost a backup
+	 */
+	private void repair(int[] affected) {
+		for (int v : affected) {
+			int kept = 0;
+			for (int r = 0; r < count[v]; r++) {
+				int i = v * k + r;
+				if (hops[i] >= 0) {
+					controller[v * k + kept] = controller[i];
+					next[v * k + kept] = next[i];
+					hops[v * k + kept++] = hops[i];
+				}
+			}
+			for (int r = kept; r < count[v]; r++) {
+				controller[v * k + r] = -1;
+			}
+			count[v] = kept;
+		}
+
+		// offers of the neighbours: hops << 32 | slot in the offer tables
+		int[] ov = new int[8];
+		int[] oc = new int[8];
+		int[] on = new int[8];
+		long[] seeds = new long[8];
+		int offered = 0;
+		for (int v : affected) {
+			for (int s = topology.begin(v); s < topology.end(v); s++) {
+				int w = topology.neighbour(s);
+				if (topology.isRemoved(topology.edge(s)) || (isController[w] && !alive[w])) {
+					continue;
+				}
+				int labels = isController[w] ? 1 : count[w];
+				for (int r = 0; r < labels; r++) {
+					if (offered == ov.length) {
+						ov = Arrays.copyOf(ov, offered * 2);
+						oc = Arrays.copyOf(oc, offered * 2);
+						on = Arrays.copyOf(on, offered * 2);
+						seeds = Arrays.copyOf(seeds, offered * 2);
+					}
+					ov[offered] = v;
+					oc[offered] = isController[w] ? w : controller[w * k + r];
+					on[offered] = w;
+					seeds[offered] = ((long) (isController[w] ? 1 : hops[w * k + r] + 1) << 32) | offered;
+					offered++;
+				}
+			}
+		}
+		Arrays.sort(seeds, 0, offered);
+
+		int[] queue = new int[affected.length * k];
+		int head = 0;
+		int tail = 0;
+		int seed = 0;
+		while (seed < offered || head < tail) {
+			int v;
+			int c;
+			int w;
+			int d;
+			if (head == tail || (seed < offered && (int) (seeds[seed] >>> 32) <= hops[queue[head]] + 1)) {
+				int o = (int) seeds[seed];
+				d = (int) (seeds[seed++] >>> 32);
+				v = ov[o];
+				c = oc[o];
+				w = on[o];
+				if (!add(v, c, w, d)) {
+					continue;
+				}
+			} else {
+				int i = queue[head++];
+				w = i / k;
+				c = controller[i];
+				d = hops[i] + 1;
+				for (int s = topology.begin(w); s < topology.end(w); s++) {
+					v = topology.neighbour(s);
+					if (mark[v] == epoch && !isController[v] && !topology.isRemoved(topology.edge(s))
+							&& add(v, c, w, d)) {
+						queue[tail++] = v * k + rank(v, c);
+					}
+				}
+				continue;
+			}
+			queue[tail++] = v * k + rank(v, c);
+		}
+	}
+
+	/**
+	 * Takes an offered backup into a free rank of an eNodeB, behind the
+	 * backups that are as near
+	 *
+	 * @return true if it was taken
+	 */
+	private boolean add(int v, int c, int w, int d) {
+		if (count[v] == k || rank(v, c) >= 0) {
+			return false;
+		}
+		int r = count[v]++;
+		for (; r > 0 && hops[v * k + r - 1] > d; r--) {
+			controller[v * k + r] = controller[v * k + r - 1];
+			next[v * k + r] = next[v * k + r - 1];
+			hops[v * k + r] = hops[v * k + r - 1];
+		}
+		controller[v * k + r] = c;
+		next[v * k + r] = w;
+		hops[v * k + r] = d;
+		return true;
+	}
+
+	/**
+	 * Gets the number of backups of an eNodeB
+	 *
+	 * @param v the eNodeB
+	 * @return at most k
+	 */
+	public synchronized int getCount(int v) {
+		return count[v];
+	}
+
+	/**
+	 * Gets a backup controller
+	 *
+	 * @param v the eNodeB
+	 * @param rank 0 for the nearest
+	 * @return the controller
+	 */
+	public synchronized int getController(int v, int rank) {
+		return controller[v * k + rank];
+	}
+
+	/**
+	 * Gets the next hop towards a backup controller
+	 *
+	 * @param v the eNodeB
+	 * @param rank 0 for the nearest
+	 * @return the neighbour, which is the controller itself after one hop
+	 */
+	public synchronized int getNextHop(int v, int rank) {
+		return next[v * k + rank];
+	}
+
+	/**
+	 * Gets the hops to a backup controller
+	 *
+	 * @param v the eNodeB
+	 * @param rank 0 for the nearest
+	 * @return hops
+	 */
+	public synchronized int getHops(int v, int rank) {
+		return hops[v * k + rank];
+	}
+
+	/**
+	 * Finds a controller among the backups of an eNodeB
+	 *
+	 * @param v the eNodeB
+	 * @param c the controller
+	 * @return the rank or -1
+	 */
+	public synchronized int rank(int v, int c) {
+		for (int r = 0; r < count[v]; r++) {
+			if (controller[v * k + r] == c) {
+				return r;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,270 @@
+package failover;
+
+/**
+ * Benchmarks of the message path, of failover on the simulation topologies
+ * and of failover on generated topologies from 10 to 100k eNodeBs.
+ *
+ * Every benchmark runs warmup iterations followed by measured iterations,
+ * like JMH, and the results are written as a JSON array in the layout of
+ * JMH's JSON result format so runs from two commits can be diffed.
+ *
+ * usage: Benchmarks [name filter] [results.json]
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class Benchmarks {
+	private static final int WARMUPS = 3;
+	private static final int ITERATIONS = 5;
+	private static final long ITERATION_MILLIS = 1000;
+
+	private static volatile long sink; // keeps results alive, like a JMH Blackhole
+
+	private String filter;
+	private List<String> results;
+
+	public Benchmarks(String filter) {
+		this.filter = filter;
+		results = new ArrayList<String>();
+	}
+
+	public static void main(String[] args) throws IOException {
+		Benchmarks b = new Benchmarks(args.length > 0 ? args[0] : "");
+		b.runAll();
+
+		String json = b.toJson();
+		if (args.length > 1) {
+			PrintWriter out = new PrintWriter(new FileWriter(args[1]));
+			out.print(json);
+			out.close();
+		} else {
+			System.out.print(json);
+		}
+	}
+
+	/**
+	 * Runs the benchmarks whose names contain the filter
+	 */
+	public void runAll() {
+		forwarding();
+		adoption("Simulation1", new Simulation1(), 10, 5);
+		adoption("Simulation2", new Simulation2(), 10, 5);
+		for (int n : new int[] { 10, 100, 1000, 10000, 100000 }) {
+			failover(n);
+		}
+	}
+
+	/**
+	 * Throughput of one orphan request forwarded by an eNodeB to its
+	 * controller and the adoption message sent back through it.
+	 */
+	private void forwarding() {
+		final int batch = 1000;
+		final SimContext ctx = new SimContext(0, 0);
+		EventEngine engine = new EventEngine();
+		ctx.setClock(engine);
+		ctx.setTimers(engine);
+		ctx.setMailboxes(batch, Mailbox.REJECT); // the relay queues the whole batch, nothing is rejected
+
+		final Controller c = new Controller(0, Long.MAX_VALUE, 1, ctx);
+		final ENodeB relay = new ENodeB(0, Long.MAX_VALUE, 1, ctx);
+		final ENodeB orphan = new ENodeB(1, Long.MAX_VALUE, 1, ctx);
+		c.addENodeB(relay, c);
+		new Connection("C0-E0", c, relay);
+		new Connection("E0-E1", relay, orphan);
+
+		measure("forwarding", "", "thrpt", "ops/s", new Iteration() {
+			int sequence = 0;
+
+			@Override
+			public double run() {
+				long ops = 0;
+				long start = System.nanoTime();
+				do {
+					for (int i = 0; i < batch; i++) {
+						relay.messageController(ctx.getMessagePool().acquire(orphan, ++sequence));
+					}
+					relay.step(); // to the controller
+					c.step(); // adoption messages back to the relay
+					relay.step(); // to the orphan
+					ops += batch;
+				} while (System.nanoTime() - start < ITERATION_MILLIS * 1000000L);
+				sink += ctx.getResult().getAdoptions().size();
+				return ops * 1e9 / (System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Time of one run on the discrete-event engine, from building the
+	 * topology to the end of the run. The average simulated time from
+	 * failure to adoption is reported as a secondary metric.
+	 */
+	private void adoption(String name, final Topology topology, final long maxTime, final long failTime) {
+		final double[] latency = new double[2];
+		measure("adoption", "topology=" + name, "avgt", "ms/op", new Iteration() {
+			int run = 0;
+
+			@Override
+			public double run() {
+				long ops = 0;
+				long start = System.nanoTime();
+				do {
+					SimContext ctx = new SimContext(++run, run);
+					topology.build(ctx, maxTime, failTime, 25);
+					new EventBackend().execute(ctx);
+					double recovery = ctx.getResult().getRecoveryTime();
+					if (recovery >= 0) {
+						latency[0] += recovery - failTime;
+						latency[1]++;
+					}
+					ops++;
+				} while (System.nanoTime() - start < ITERATION_MILLIS * 1000000L);
+				return (System.nanoTime() - start) / 1e6 / ops;
+			}
+		});
+		if (latency[1] > 0 && matches("adoption")) {
+			secondary("simulatedRecoveryTime", latency[0] / latency[1], "s");
+		}
+	}
+
+	/**
+	 * Time to generate and build a grid of n eNodeBs and run one failover
+	 * on the discrete-event engine.
+	 */
+	private void failover(final int n) {
+		final int side = (int) Math.max(2, Math.round(Math.sqrt(n)));
+		final int controllers = Math.max(2, n / 2500);
+		final boolean large = n >= 10000;
+		measure("failover", "enodebs=" + n, "ss", "ms/op", new Iteration() {
+			int run = 0;
+
+			@Override
+			public double run() {
+				long start = System.nanoTime();
+				SimContext ctx = new SimContext(++run, run);
+				TopologyGenerator.grid(side, side, controllers).build(ctx, large ? 4 : 8, 2, 25);
+				new EventBackend().execute(ctx);
+				sink += ctx.getResult().getAdoptions().size();
+				return (System.nanoTime() - start) / 1e6;
+			}
+		}, large ? 1 : WARMUPS, large ? 2 : ITERATIONS);
+	}
+
+	/**
+	 * One measured iteration
+	 */
+	private interface Iteration {
+		/**
+		 * @return the score of the iteration
+		 */
+		public double run();
+	}
+
+	private void measure(String name, String params, String mode, String unit, Iteration iteration) {
+		measure(name, params, mode, unit, iteration, WARMUPS, ITERATIONS);
+	}
+
+	/**
+	 * Runs the warmup and measured iterations of a benchmark
+	 */
+	private void measure(String name, String params, String mode, String unit, Iteration iteration, int warmups,
+			int iterations) {
+		if (!matches(name)) {
+			return;
+		}
+		for (int i = 0; i < warmups; i++) {
+			iteration.run();
+		}
+		double[] scores = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			scores[i] = iteration.run();
+		}
+
+		double mean = 0;
+		for (double s : scores) {
+			mean += s;
+		}
+		mean /= iterations;
+		double variance = 0;
+		for (double s : scores) {
+			variance += (s - mean) * (s - mean);
+		}
+		// 99.9% error like JMH, with the normal quantile instead of Student's t
+		double error = iterations > 1 ? 3.29 * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations) : 0;
+
+		StringBuilder raw = new StringBuilder();
+		for (int i = 0; i < iterations; i++) {
+			raw.append(i > 0 ? ", " : "").append(number(scores[i]));
+		}
+		StringBuilder json = new StringBuilder();
+		json.append("    {\n");
+		json.append("        \"benchmark\" : \"failover.Benchmarks.").append(name).append("\",\n");
+		json.append("        \"mode\" : \"").append(mode).append("\",\n");
+		json.append("        \"warmupIterations\" : ").append(warmups).append(",\n");
+		json.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+		json.append("        \"params\" : {").append(params(params)).append("},\n");
+		json.append("        \"primaryMetric\" : {\n");
+		json.append("            \"score\" : ").append(number(mean)).append(",\n");
+		json.append("            \"scoreError\" : ").append(number(error)).append(",\n");
+		json.append("            \"scoreUnit\" : \"").append(unit).append("\",\n");
+		json.append("            \"rawData\" : [[").append(raw).append("]]\n");
+		json.append("        },\n");
+		json.append("        \"secondaryMetrics\" : {}\n");
+		json.append("    }");
+		results.add(json.toString());
+		System.err.println(name + " " + params + ": " + number(mean) + " +- " + number(error) + " " + unit);
+	}
+
+	/**
+	 * Adds a secondary metric to the last benchmark
+	 */
+	private void secondary(String name, double score, String unit) {
+		int last = results.size() - 1;
+		results.set(last, results.get(last).replace("\"secondaryMetrics\" : {}",
+				"\"secondaryMetrics\" : {\n            \"" + name + "\" : {\"score\" : " + number(score)
+						+ ", \"scoreUnit\" : \"" + unit + "\"}\n        }"));
+	}
+
+	private boolean matches(String name) {
+		return name.contains(filter);
+	}
+
+	private static String number(double d) {
+		return String.format(Locale.ROOT, "%.6f", d);
+	}
+
+	/**
+	 * Turns key=value pairs into JSON members
+	 */
+	private static String params(String params) {
+		if (params.isEmpty()) {
+			return "";
+		}
+		StringBuilder s = new StringBuilder();
+		for (String p : params.split(",")) {
+			String[] kv = p.split("=");
+			s.append(s.length() > 0 ? ", " : " ").append("\"").append(kv[0]).append("\" : \"").append(kv[1])
+					.append("\"");
+		}
+		return s.append(" ").toString();
+	}
+
+	/**
+	 * Gets the results in JMH's JSON format
+	 *
+	 * @return a JSON array
+	 */
+	public String toJson() {
+		StringBuilder s = new StringBuilder("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			s.append(results.get(i)).append(i + 1 < results.size() ? ",\n" : "\n");
+		}
+		return s.append("]\n").toString();
+	}
+}
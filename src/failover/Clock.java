@@ -0,0 +1,28 @@
+package failover;
+
+/**
+ * A source of time for the simulation.
+ * 
+ * Entities read the time through a clock so the same code can run against
+ * the wall clock (one thread per entity) or against the virtual clock of the
+ * discrete-event engine.
+ */
+public interface Clock {
+
+	/**
+	 * The wall clock
+	 */
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Gets the current time.
+	 * 
+	 * @return the current time in milliseconds
+	 */
+	public long currentTimeMillis();
+}
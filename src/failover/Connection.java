@@ -8,6 +8,7 @@ package failover;
  */
 
 public class Connection {
+	private int id; // edge of the connection in the graph of the run
 	private Entity[] endpoints;
 	private String name;
 
@@ -16,11 +17,27 @@ public class Connection {
 		endpoints = new Entity[2];
 		endpoints[0] = endpt0;
 		endpoints[1] = endpt1;
-		endpt0.addConnection(this);
-		endpt1.addConnection(this);
+		id = endpt0.getContext().getGraph().addEdge(endpt0.getId(), endpt1.getId());
 		//System.out.println(endpt0.getName() + " has a X2 connected to " + endpt1.getName());
 	}
 
+	/**
+	 * Gets the id of the connection
+	 * @return the edge in the graph of the run
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gives the connection its own propagation delay and capacity
+	 * @param delay in milliseconds
+	 * @param mbps capacity in Mbit/s, 0 for unlimited
+	 */
+	public void setLink(double delay, double mbps) {
+		endpoints[0].getContext().setLink(id, delay, mbps);
+	}
+
 	/**
 	 * Gets the name of the connection
 	 * @return the name of the connection
@@ -37,9 +54,9 @@ public class Connection {
 	 * @return the endpoint of the other eNodeB
 	 */
 	public Entity getEndpoint(Entity me) {
-		if (endpoints[0].equals(me)) {
+		if (endpoints[0].getId() == me.getId()) {
 			return endpoints[1];
-		} else if (endpoints[1].equals(me)) {
+		} else if (endpoints[1].getId() == me.getId()) {
 			return endpoints[0];
 		}
 		return null;
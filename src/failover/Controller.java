@@ -9,17 +9,80 @@ package failover;
  * @since Jan 2017
  */
 
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Controller extends Entity implements Runnable {
-	private ArrayList<ENodeB> eNodeBs;
-	private ConcurrentLinkedQueue<Message> orphans;
+public class Controller extends Entity {
+	private static final long OFFER_EXPIRY = 5000; // milliseconds an adoption holds room for its orphan
+	private Mailbox orphans;
+	private SeenCache seen;
+	private long nextHeartbeat;
+	private long heartbeat; // number of the last heartbeat
+	private long heartbeatsSent;
+	private double serviceTime; // milliseconds per adoption
+	private int queueLimit;
+	private int maxENodeBs;
+	private AtomicInteger queued; // orphan requests admitted and not yet served
+	private AtomicInteger peakQueued;
+	private double busyUntil; // time the controller has served its last adoption
+	private double busy; // milliseconds spent serving
+	private AtomicInteger load; // eNodeBs that joined and have not left, in every process of a sharded run
+	private HashMap<Integer, Long> offers; // orphans sent an adoption and not joined, by id, with the time it was sent
+	private long deferred;
+	private long rejected;
+	private AdoptionBatcher batcher;
+	private volatile boolean failed;
+	private CopyOnWriteArrayList<LoadListener> loadListeners;
+	private ControllerSync sync; // east-west channel to the other controllers, or null
+	private long nextSync;
 	
-	public Controller(int name, long maxTime, int load) {
-		super(("Controller" + Integer.toString(name)), maxTime, load);
-		eNodeBs = new ArrayList<ENodeB>();
-		orphans = new ConcurrentLinkedQueue<Message>();
+	public Controller(int name, long maxTime, int load, SimContext ctx) {
+		super(("Controller" + Integer.toString(name)), maxTime, load, ctx);
+		seen = new SeenCache(256, 5000);
+		queued = new AtomicInteger(0);
+		orphans = ctx.newMailbox(4, new Mailbox.Dropped() {
+			@Override
+			public void dropped(Message m) {
+				queued.decrementAndGet(); // the request is no longer admitted
+			}
+		});
+		peakQueued = new AtomicInteger(0);
+		setCapacity(ctx.getServiceRate(), ctx.getQueueLimit(), ctx.getMaxENodeBs());
+		busyUntil = 0;
+		busy = 0;
+		this.load = new AtomicInteger(0);
+		offers = new HashMap<Integer, Long>();
+		deferred = 0;
+		rejected = 0;
+		batcher = new AdoptionBatcher(this, ctx.isBatching());
+		failed = false;
+		loadListeners = new CopyOnWriteArrayList<LoadListener>();
+		ctx.getMetrics().gauge(getName() + ".orphans", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return orphans.size();
+			}
+		});
+		ctx.getMetrics().gauge(getName() + ".peak_orphans", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return peakQueued.get();
+			}
+		});
+		ctx.getMetrics().gauge(getName() + ".busy_ms", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return (long) busy;
+			}
+		});
+		nextHeartbeat = 0;
+		sync = ctx.getSyncInterval() > 0 ? new ControllerSync(this, ctx.getSyncInterval(), ctx.getSyncDelay()) : null;
+		nextSync = 0;
+		heartbeat = 0;
+		heartbeatsSent = 0;
 		//System.out.println(getName() + " is created");
 	}
 
@@ -32,71 +95,470 @@ public class Controller extends Entity implements Runnable {
 	public void addENodeB(ENodeB e1, Entity e2) {
 		e1.setController(this);
 		e1.setEntity(e2);
-		eNodeBs.add(e1);
+		joined(e1.getId(), 0, false);
 		//System.out.println(name + " adopts " + e1.getName());
 	}
 
 	/**
-	 * Runs the thread ( thread.start() )
+	 * Hears from an eNodeB that it joined the controller. Only
+	 * joins count towards the load: a response the orphan
+	 * ignores, e.g. because another controller adopted it
+	 * first, does not.
+	 * 
+	 * @param e id of the eNodeB
+	 * @param version the times the eNodeB joined a controller
+	 * @param takeover true if it took a takeover of the controller
+	 */
+	public void joined(int e, int version, boolean takeover) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.joined(id, e, version, takeover);
+			return;
+		}
+		synchronized (this) {
+			if (failed) {
+				return; // the eNodeB finds out and leaves
+			}
+			load.incrementAndGet();
+		}
+		synchronized (offers) {
+			offers.remove(e);
+		}
+		if (sync != null) {
+			sync.assigned(e, version, takeover);
+		}
+		loadChanged();
+	}
+
+	/**
+	 * Hears from an eNodeB that it left the controller: it
+	 * suspected the controller or another one took it over
+	 * 
+	 * @param e id of the eNodeB
+	 */
+	public void left(int e) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.left(id, e);
+			return;
+		}
+		synchronized (this) {
+			if (failed) {
+				return; // the load went with the failure
+			}
+			load.decrementAndGet();
+		}
+		loadChanged();
+	}
+
+	/**
+	 * Gets the east-west channel of the controller
+	 * 
+	 * @return the channel, or null if the controllers of the run do not sync
+	 */
+	public ControllerSync getSync() {
+		return sync;
+	}
+
+	/**
+	 * Counts an eNodeB of the controller that another process
+	 * of a sharded run has, so the load of the controller
+	 * is that of the whole run
+	 */
+	public void addRemoteENodeB() {
+		load.incrementAndGet();
+	}
+
+	/**
+	 * Sets the service model of the controller
+	 * 
+	 * @param serviceRate adoptions per second, 0 for no limit
+	 * @param queueLimit orphan requests admitted; more are deferred
+	 * @param maxENodeBs eNodeBs the controller takes; more are rejected
+	 */
+	public void setCapacity(double serviceRate, int queueLimit, int maxENodeBs) {
+		serviceTime = serviceRate > 0 ? 1000 / serviceRate : 0;
+		this.queueLimit = queueLimit;
+		this.maxENodeBs = maxENodeBs;
+	}
+
+	/**
+	 * One pass of the controller: adopt any orphans that asked for it.
 	 */
 	@Override
-	public void run() {
-		//System.out.println(getTime() + ": Running thread " + name);
-		try {
-			while (checkTime(System.currentTimeMillis())) {
-				Thread.sleep(random());
-
-				if (!orphans.isEmpty()) {
-					adoptOrphans();
-				}
+	public long step() {
+		if (failed) {
+			return random();
+		}
+		if (now() >= nextHeartbeat) {
+			sendHeartbeats();
+		}
+		if (sync != null && now() >= nextSync) {
+			nextSync = now() + ctx.getSyncInterval();
+			wakeAfter(ctx.getSyncInterval());
+			sync.tick();
+		}
+		if (!orphans.isEmpty()) {
+			adoptOrphans();
+		}
+		return random();
+	}
+
+	/**
+	 * Sends a heartbeat to the eNodeBs connected to the controller. The
+	 * eNodeBs pass it on along their toController chain, so every eNodeB
+	 * receives one heartbeat per interval.
+	 */
+	private void sendHeartbeats() {
+		heartbeat++;
+		nextHeartbeat = now() + ctx.getHeartbeatInterval();
+		wakeAfter(ctx.getHeartbeatInterval());
+		Graph.Snapshot s = ctx.getGraph().snapshot();
+		for (ENodeB child : children) {
+			if (s.findEdge(id, child.getId()) < 0) {
+				continue; // the connection was cut
+			}
+			child.receiveHeartbeat(this, this, heartbeat);
+			heartbeatsSent++;
+		}
+	}
+
+	/**
+	 * A controller is idle when no orphans are waiting
+	 */
+	@Override
+	public boolean isIdle() {
+		return failed || orphans.isEmpty();
+	}
+
+	/**
+	 * Fails the controller. It stops sending heartbeats and adopting, and
+	 * loses its connections, and its eNodeBs find out through their failure
+	 * detectors. Called by the FaultSchedule of the run.
+	 * 
+	 * In a sharded run every process takes the controller down
+	 * in its copy of the graph; the process that runs it records
+	 * the failure and tells the others.
+	 */
+	public void fail() {
+		synchronized (this) {
+			if (failed) {
+				return;
 			}
-		} catch (InterruptedException e) {
-			System.out.println(name + " interrupted.");
+			failed = true;
+			load.set(0);
+		}
+		ShortestPaths paths = ctx.getShortestPaths();
+		if (paths != null) {
+			// move the whole tree of the controller at once
+			ctx.getMetrics().record(Metrics.ROUTE_CHANGES, paths.removeController(id).length);
+		}
+		BackupPlanner plan = ctx.getBackupPlan();
+		if (plan != null) {
+			plan.removeController(id); // before its edges, so they find nothing to repair
 		}
+		// every removal publishes a new snapshot, walk the one from before
+		Graph.Snapshot s = ctx.getGraph().snapshot();
+		for (int k = s.begin(id); k < s.end(id); k++) {
+			ctx.getGraph().removeEdge(s.edge(k));
+		}
+		ctx.getMetrics().failure(now());
+		Shard shard = ctx.getShard();
+		if (shard == null || shard.owns(id)) {
+			ctx.getResult().addFailure(name, time(now()));
+			out().println("\n" + getTime() + ": " + name + " failure\n");
+			trace(Trace.FAILURE, -1, 0);
+			if (shard != null) {
+				shard.fail(id);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the controller has failed
+	 * 
+	 * @return failed
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Gets the eNodeBs the controller serves: those that
+	 * joined it and have not left, 0 once it failed
+	 * 
+	 * @return the load
+	 */
+	public int getLoad() {
+		return load.get();
+	}
 
-		if (name.equals("Controller1")){
-			for (Connection c: connections) {
-				Entity e = c.getEndpoint(this);
-				e.removeConnection(c);
+	/**
+	 * Tells whether the controller has no room for another eNodeB: the
+	 * eNodeBs it has and those it sent an adoption in the last
+	 * OFFER_EXPIRY that have not joined it fill its maximum. An
+	 * adoption that is lost or ignored stops holding room once it
+	 * expires.
+	 * 
+	 * @param now the current time
+	 * @return true if full
+	 */
+	private boolean isFull(long now) {
+		if (load.get() >= maxENodeBs) {
+			return true;
+		}
+		synchronized (offers) {
+			if (load.get() + offers.size() < maxENodeBs) {
+				return false;
 			}
-			removeController();
-			System.out.println("\n" + getTime() + ": " + name + " failure\n");
-		} 
-		/*else {
-			System.out.println(getTime() + ": Closing thread " + name);
-		}*/
+			for (Iterator<Map.Entry<Integer, Long>> i = offers.entrySet().iterator(); i.hasNext();) {
+				if (now - i.next().getValue() > OFFER_EXPIRY) {
+					i.remove();
+				}
+			}
+			return load.get() + offers.size() >= maxENodeBs;
+		}
+	}
+
+	/**
+	 * Holds room for an orphan the controller sends an adoption
+	 * 
+	 * @param e id of the orphan
+	 * @param now the current time
+	 */
+	private void offer(int e, long now) {
+		synchronized (offers) {
+			offers.put(e, now);
+		}
+	}
+
+	/**
+	 * Gets the orphan requests admitted and not yet served
+	 * 
+	 * @return queued
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Adds a listener to the load of the controller
+	 * 
+	 * @param l the listener
+	 */
+	public void addLoadListener(LoadListener l) {
+		loadListeners.add(l);
+	}
+
+	/**
+	 * Tells the load listeners about the current load
+	 */
+	private void loadChanged() {
+		for (LoadListener l : loadListeners) {
+			l.loadChanged(this, getLoad(), queued.get());
+		}
+	}
+
+	/**
+	 * Records the counts of the controller at the end of the run
+	 */
+	@Override
+	public void shutdown() {
+		ctx.getResult().addMessageCounts(0, seen.getSuppressed());
+		ctx.getResult().addHeartbeats(heartbeatsSent);
+		synchronized (this) {
+			ctx.getResult().addResponses(deferred, rejected);
+			// deferrals and rejections are sent on their own
+			ctx.getResult().addAdoptionMessages(batcher.getSent() + deferred + rejected,
+					batcher.getResponses() + deferred + rejected);
+		}
+		ctx.getResult().addMailbox(orphans);
+		if (sync != null) {
+			ctx.getResult().addSync(sync);
+		}
+		/*out().println(getTime() + ": Closing thread " + name);*/
 	}
 
 	/**
-	 * Sends adoption message back to eNodeBs
+	 * Sends adoption message back to eNodeBs. Every adoption
+	 * takes the service time of the controller, so a step
+	 * only serves the requests it has time for and wakes
+	 * the controller when the next one is due.
 	 */
 	private void adoptOrphans() {
-		while (!orphans.isEmpty()) {
+		long now = now();
+		busyUntil = Math.max(busyUntil, now);
+		int drained = 0;
+		while (busyUntil <= now) {
 			Message m = orphans.poll();
-			ENodeB e = m.removeBreadcrumb();
+			if (m == null) {
+				break;
+			}
+			queued.decrementAndGet();
+			trace(Trace.DEQUEUE, m.getOrphanId(), m.getSequence());
+			ctx.getMetrics().record(Metrics.QUEUE_DELAY, now - m.getQueuedAt());
+			busyUntil += serviceTime;
+			busy += serviceTime;
+			offer(m.getOrphanId(), now);
 			m.setController(this);
-			e.sendAdoptionMessage(m);
-			//System.out.println(getTime() + ": " + name + " sends adoption message to " + e.getName() + " for orphan " + orphan.getName());
+			batcher.add(nextHop(m), m);
+			ctx.getMetrics().count(id, Metrics.FORWARDED);
+			drained++;
+			//out().println(getTime() + ": " + name + " sends adoption message to " + e.getName() + " for orphan " + orphan.getName());
+		}
+		batcher.flush();
+		ctx.getMetrics().record(Metrics.DEPTH, drained);
+		if (drained > 0) {
+			loadChanged();
+		}
+		if (!orphans.isEmpty()) {
+			wakeAfter((long) Math.ceil(busyUntil - now));
 		}
 	}
 
 	/**
-	 * Removes the controller from the eNodeBs This acts as controller failure
+	 * Gets the eNodeB a response goes to first: the last
+	 * breadcrumb, or the orphan itself when it is a neighbour
+	 * 
+	 * @param m the request
+	 * @return the eNodeB
+	 */
+	private ENodeB nextHop(Message m) {
+		ENodeB e = m.removeBreadcrumb();
+		return e != null ? e : m.getOrphan();
+	}
+
+	/**
+	 * Sends a response back along the breadcrumbs of a request
+	 * at once, without batching
+	 * 
+	 * @param m the request
+	 * @param type DEFER or REJECT
+	 * @param retryAfter milliseconds, for DEFER
+	 */
+	private void respond(Message m, int type, long retryAfter) {
+		ENodeB e = nextHop(m);
+		m.setController(this);
+		m.setResponse(type, retryAfter);
+		send(e, Links.RESPONSE, m);
+	}
+
+	/**
+	 * Takes an eNodeB of a failed controller without waiting
+	 * for its request: the takeover goes to the eNodeB along
+	 * the planned path from the eNodeB to this controller, as
+	 * if the eNodeB had asked along that path. The eNodeB
+	 * may ignore it, e.g. if another survivor was first.
+	 * 
+	 * @param e the eNodeB
+	 * @param lost id of the failed controller
 	 */
-	private void removeController() {
-		for (ENodeB b : eNodeBs) {
-			b.setController(null);
+	void takeOver(ENodeB e, int lost) {
+		BackupPlanner plan = ctx.getBackupPlan();
+		if (failed || isFull(now()) || plan.rank(e.getId(), id) < 0) {
+			return; // the orphan asks on its own
 		}
-		eNodeBs.clear();
+		Message m = ctx.getMessagePool().acquire(e, 0);
+		for (int x = plan.getNextHop(e.getId(), plan.rank(e.getId(), id)); x != id;) {
+			int r = plan.rank(x, id);
+			if (r < 0 || !m.addBreadcrumb((ENodeB) ctx.getEntity(x))) {
+				m.release();
+				return;
+			}
+			x = plan.getNextHop(x, r);
+		}
+		m.setController(this);
+		m.setResponse(Message.TAKEOVER, 0);
+		m.setTarget(lost);
+		offer(e.getId(), now());
+		ctx.getMetrics().count(id, Metrics.FORWARDED);
+		send(nextHop(m), Links.RESPONSE, m);
+	}
 
+	/**
+	 * Defers a request the controller has no room for
+	 * 
+	 * @param m the request
+	 */
+	private void defer(Message m) {
+		synchronized (this) {
+			deferred++;
+		}
+		ctx.getMetrics().count(id, Metrics.DEFERRED);
+		// the time to serve the queue ahead of the request
+		respond(m, Message.DEFER, (long) Math.ceil(Math.min(queueLimit, orphans.getCapacity()) * serviceTime));
 	}
-	
+
 	/**
 	 * Sends a message to the controller
 	 * 
 	 * @param eNodeB
+	 * @return true: a full controller defers the request instead
+	 */
+	 public boolean messageController(Message orphanMessage) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.messageController(id, orphanMessage);
+			return true;
+		}
+		if (failed) {
+			orphanMessage.release(); // nobody is listening
+			ctx.getMetrics().count(id, Metrics.DROPPED);
+			return true;
+		}
+		if (!seen.firstSeen(orphanMessage.getOrphanId(), orphanMessage.getSequence(), now())) {
+			orphanMessage.release(); // the same request came along another path
+			ctx.getMetrics().count(id, Metrics.DROPPED);
+			return true;
+		}
+		if (orphanMessage.avoids(id)) {
+			orphanMessage.release(); // this controller deferred or rejected the orphan
+			ctx.getMetrics().count(id, Metrics.DROPPED);
+			return true;
+		}
+		if (isFull(now())) {
+			synchronized (this) {
+				rejected++;
+			}
+			ctx.getMetrics().count(id, Metrics.REJECTED);
+			respond(orphanMessage, Message.REJECT, 0);
+			return true;
+		}
+		int depth = queued.incrementAndGet();
+		if (depth > queueLimit) {
+			queued.decrementAndGet();
+			defer(orphanMessage);
+			return true;
+		}
+		for (int peak = peakQueued.get(); depth > peak && !peakQueued.compareAndSet(peak, depth);) {
+			peak = peakQueued.get();
+		}
+		orphanMessage.setQueuedAt(now());
+		int orphan = orphanMessage.getOrphanId();
+		int sequence = orphanMessage.getSequence();
+		if (!orphans.offer(orphanMessage)) {
+			queued.decrementAndGet();
+			trace(Trace.REJECT, orphan, sequence);
+			defer(orphanMessage); // the mailbox is full, the orphan retries later
+			return true;
+		}
+		trace(Trace.ENQUEUE, orphan, sequence);
+		ctx.getMetrics().count(id, Metrics.QUEUED);
+		loadChanged();
+		signal();
+		return true;
+	}
+
+	/**
+	 * Hears of the load of a controller, e.g. to make it fail under load.
+	 * Called on the thread that changed the load.
 	 */
-	 public void messageController(Message orphanMessage) {
-		orphans.add(orphanMessage);
+	public interface LoadListener {
+		/**
+		 * @param c the controller
+		 * @param load the eNodeBs it serves
+		 * @param queued the orphan requests waiting
+		 */
+		public void loadChanged(Controller c, int load, int queued);
 	}
 }
@@ -0,0 +1,457 @@
+package failover;
+
+/**
+ * The east-west channel of a controller: it tells the other controllers
+ * which eNodeBs it took and how it is doing, and keeps their view of the
+ * network, so the survivors of a failure already know the eNodeBs of the
+ * failed controller.
+ *
+ * Every sync interval a controller sends one batch to every other
+ * controller, after the delay of the channel. A batch has a header with
+ * the health of the sender (its load and waiting requests) and the
+ * assignments that changed since the last batch. The changes are sorted by
+ * eNodeB and written as varints of the difference to the previous eNodeB
+ * and the version of the assignment, so a change takes two or three bytes.
+ * The version counts the times the eNodeB joined a controller, and a view
+ * keeps the newest assignment of every eNodeB whatever the order the
+ * batches arrive in.
+ *
+ * A batch is also a keepalive. A busy controller sends its batches late, so
+ * each controller watches the batches of every other with a phi accrual
+ * detector (see PhiAccrualDetector) that learns how late they come. When it
+ * suspects another, it probes it and only takes it for failed if no answer
+ * comes back within a round trip and an interval; a slow controller answers
+ * and keeps its eNodeBs.
+ *
+ * A survivor then picks a new controller for each eNodeB of the failed one
+ * from its view: the best planned backup of the eNodeB (see BackupPlanner)
+ * that is alive and has room for it, counting the load it last reported
+ * and the eNodeBs already handed to it. The one picked sends the eNodeB a
+ * takeover along the planned path, without waiting for a request, so the
+ * eNodeB changes controller without becoming an orphan if the takeover
+ * arrives before it detects the failure. Survivors whose views agree pick
+ * the same controller; when they do not, the eNodeB takes the first
+ * takeover and ignores the others, as it ignores a takeover while the
+ * heartbeats of its controller still arrive. A takeover counts once the
+ * eNodeB took it. Without planned backups the views are kept but the
+ * orphans find a controller on their own.
+ *
+ * In a sharded run only the controllers of one process sync.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ControllerSync {
+	private static final double THRESHOLD = 8; // phi at which a silent peer is taken for failed
+
+	private Controller controller;
+	private SimContext ctx;
+	private long interval; // milliseconds between batches
+	private long delay; // milliseconds a batch takes to arrive
+	private long[] pending; // changes not yet sent, eNodeB id << 32 | version
+	private int pendingCount;
+	private long oldest; // time of the oldest change not yet sent
+	private byte[] buffer;
+	private int position; // in buffer
+	private long batch; // number of the last batch sent
+	private Controller[] peers; // null until the first batch
+	private FailureDetector[] watch; // on the batches of each peer
+	private int[] peerLoad; // as reported in the last batch of each peer
+	private int load; // as reported in the last batch of this controller
+	private boolean[] down;
+	private boolean[] probing; // suspected and waiting for the answer to a probe
+	private int[] owner; // the view: controller of every eNodeB by id, -1 if unknown
+	private int[] version;
+	private long batches;
+	private long bytes;
+	private long takeovers;
+
+	/**
+	 * @param controller the controller
+	 * @param interval milliseconds between batches
+	 * @param delay milliseconds a batch takes to arrive
+	 */
+	public ControllerSync(Controller controller, long interval, long delay) {
+		this.controller = controller;
+		this.interval = interval;
+		this.delay = delay;
+		ctx = controller.getContext();
+		pending = new long[16];
+		pendingCount = 0;
+		oldest = 0;
+		buffer = new byte[64];
+		batch = 0;
+		peers = null;
+		owner = null;
+		batches = 0;
+		bytes = 0;
+		takeovers = 0;
+	}
+
+	/**
+	 * Records that an eNodeB joined the controller, for the next batch
+	 *
+	 * @param e id of the eNodeB
+	 * @param v version of the assignment
+	 * @param takeover true if the eNodeB took a takeover of the controller
+	 */
+	public synchronized void assigned(int e, int v, boolean takeover) {
+		if (takeover) {
+			takeovers++;
+		}
+		if (pendingCount == pending.length) {
+			pending = Arrays.copyOf(pending, 2 * pendingCount);
+		}
+		if (pendingCount == 0) {
+			oldest = ctx.currentTimeMillis();
+		}
+		pending[pendingCount++] = (long) e << 32 | v;
+		apply(e, controller.getId(), v);
+	}
+
+	/**
+	 * Sends a batch to the other controllers and looks for the ones that
+	 * went silent. Called by the controller every sync interval.
+	 */
+	public void tick() {
+		long now = ctx.currentTimeMillis();
+		ArrayList<Integer> suspects = new ArrayList<Integer>();
+		byte[] b;
+		synchronized (this) {
+			if (peers == null) {
+				meet(now);
+			}
+			b = encode(now);
+			for (int q = 0; q < peers.length; q++) {
+				if (!down[q] && !probing[q] && watch[q].isSuspected(now)) {
+					probing[q] = true;
+					suspects.add(q);
+				}
+			}
+		}
+
+		final byte[] message = b;
+		for (int q = 0; q < peers.length; q++) {
+			final Controller peer = peers[q];
+			ctx.getTimers().schedule(delay, new Runnable() {
+				@Override
+				public void run() {
+					peer.getSync().receive(message);
+				}
+			});
+		}
+		synchronized (this) {
+			batches += peers.length;
+			bytes += (long) peers.length * message.length;
+		}
+
+		for (int q : suspects) {
+			probe(q);
+		}
+	}
+
+	/**
+	 * Asks a suspected peer whether it is alive. A live peer answers
+	 * at once, however busy it is, and the answer takes the delay of
+	 * the channel back.
+	 *
+	 * @param q the index of the peer
+	 */
+	private void probe(final int q) {
+		final Controller peer = peers[q];
+		ctx.getTimers().schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				if (peer.isFailed()) {
+					return; // nobody answers
+				}
+				ctx.getTimers().schedule(delay, new Runnable() {
+					@Override
+					public void run() {
+						answered(q);
+					}
+				});
+			}
+		});
+		ctx.getTimers().schedule(2 * delay + interval, new Runnable() {
+			@Override
+			public void run() {
+				confirm(q);
+			}
+		});
+	}
+
+	/**
+	 * Hears the answer of a peer to a probe: it was only slow
+	 */
+	private synchronized void answered(int q) {
+		probing[q] = false;
+		watch[q].heartbeat(ctx.currentTimeMillis());
+	}
+
+	/**
+	 * Takes a probed peer for failed unless it answered or sent a batch
+	 * meanwhile
+	 */
+	private void confirm(int q) {
+		synchronized (this) {
+			if (!probing[q] || controller.isFailed()) {
+				return;
+			}
+			probing[q] = false;
+			down[q] = true;
+		}
+		takeOver(peers[q]);
+	}
+
+	/**
+	 * Finds the other controllers of this process
+	 */
+	private void meet(long now) {
+		ArrayList<Controller> found = new ArrayList<Controller>();
+		Shard shard = ctx.getShard();
+		for (Controller c : ctx.getControllers()) {
+			if (c != controller && c.getSync() != null && (shard == null || shard.owns(c.getId()))) {
+				found.add(c);
+			}
+		}
+		peers = found.toArray(new Controller[found.size()]);
+		watch = new FailureDetector[peers.length];
+		for (int q = 0; q < peers.length; q++) {
+			watch[q] = new PhiAccrualDetector(THRESHOLD, 100, interval, interval);
+			watch[q].heartbeat(now);
+		}
+		peerLoad = new int[peers.length];
+		down = new boolean[peers.length];
+		probing = new boolean[peers.length];
+	}
+
+	/**
+	 * Writes the health of the controller and the pending changes into
+	 * a batch. Called with the lock.
+	 *
+	 * @param now the current time
+	 * @return the batch
+	 */
+	private byte[] encode(long now) {
+		// sort by eNodeB and keep the newest change of each
+		Arrays.sort(pending, 0, pendingCount);
+		int n = 0;
+		for (int i = 0; i < pendingCount; i++) {
+			if (n > 0 && pending[n - 1] >>> 32 == pending[i] >>> 32) {
+				pending[n - 1] = pending[i];
+			} else {
+				pending[n++] = pending[i];
+			}
+		}
+		long start = ctx.getStartTime();
+		if (buffer.length < 70 + 10 * n) {
+			buffer = new byte[70 + 10 * n];
+		}
+		position = 0;
+		put(controller.getId());
+		put(++batch);
+		put(now - start);
+		put(n > 0 ? now - Math.max(oldest, start) : 0); // age of the oldest change
+		load = controller.getLoad();
+		put(load);
+		put(controller.getQueued());
+		put(n);
+		long previous = 0;
+		for (int i = 0; i < n; i++) {
+			long e = pending[i] >>> 32;
+			put(e - previous);
+			put(pending[i] & 0xffffffffL);
+			previous = e;
+		}
+		pendingCount = 0;
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/**
+	 * Writes a non-negative number as a varint: seven bits a byte, the
+	 * high bit set on all but the last
+	 */
+	private void put(long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	/**
+	 * Reads a varint written by put()
+	 *
+	 * @param b the batch
+	 * @return the number
+	 */
+	private long get(byte[] b) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte next = b[position++];
+			value |= (long) (next & 0x7f) << shift;
+			if (next >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Takes a batch of another controller into the view
+	 *
+	 * @param b the batch
+	 */
+	public synchronized void receive(byte[] b) {
+		if (controller.isFailed()) {
+			return;
+		}
+		if (peers == null) {
+			meet(ctx.currentTimeMillis());
+		}
+		long now = ctx.currentTimeMillis();
+		position = 0;
+		int sender = (int) get(b);
+		get(b); // the number of the batch
+		long sent = get(b) + ctx.getStartTime();
+		long age = get(b);
+		int reported = (int) get(b);
+		get(b); // waiting requests
+		int n = (int) get(b);
+		for (int q = 0; q < peers.length; q++) {
+			if (peers[q].getId() == sender) {
+				watch[q].heartbeat(now);
+				peerLoad[q] = reported;
+				down[q] = false; // it was only slow
+				probing[q] = false;
+			}
+		}
+		int e = 0;
+		for (int i = 0; i < n; i++) {
+			e += (int) get(b);
+			apply(e, sender, (int) get(b));
+		}
+		if (n > 0) {
+			ctx.getMetrics().record(Metrics.SYNC_STALENESS, now - sent + age);
+		}
+	}
+
+	/**
+	 * Puts an assignment in the view unless the view has a newer one.
+	 * Called with the lock.
+	 */
+	private void apply(int e, int c, int v) {
+		if (owner == null || e >= owner.length) {
+			int n = Math.max(e + 1, ctx.getGraph().getVertexCount());
+			int old = owner == null ? 0 : owner.length;
+			owner = owner == null ? new int[n] : Arrays.copyOf(owner, n);
+			version = version == null ? new int[n] : Arrays.copyOf(version, n);
+			Arrays.fill(owner, old, n, -1);
+		}
+		if (owner[e] < 0 || v >= version[e]) {
+			owner[e] = c;
+			version[e] = v;
+		}
+	}
+
+	/**
+	 * Hands out the eNodeBs of a failed controller. Every survivor picks
+	 * the same controller for an eNodeB from its view; this controller only
+	 * sends the takeovers of the eNodeBs it picked itself.
+	 *
+	 * @param failed the controller that went silent
+	 */
+	private void takeOver(Controller failed) {
+		BackupPlanner plan = ctx.getBackupPlan();
+		if (plan == null) {
+			return;
+		}
+		int[] mine = new int[16];
+		int count = 0;
+		synchronized (this) {
+			if (owner == null) {
+				return;
+			}
+			int[] handed = new int[peers.length + 1]; // eNodeBs picked for each peer, the last for this controller
+			for (int e = 0; e < owner.length; e++) {
+				if (owner[e] != failed.getId()) {
+					continue;
+				}
+				int c = pick(plan, e, failed.getId(), handed);
+				if (c < 0) {
+					continue;
+				}
+				owner[e] = c;
+				if (c == controller.getId()) {
+					if (count == mine.length) {
+						mine = Arrays.copyOf(mine, 2 * count);
+					}
+					mine[count++] = e;
+				}
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			controller.takeOver((ENodeB) ctx.getEntity(mine[i]), failed.getId());
+		}
+	}
+
+	/**
+	 * Picks the best planned backup of an eNodeB that is alive in the view
+	 * and has room for it. Called with the lock.
+	 *
+	 * @param handed eNodeBs picked so far for each peer and, last, for this
+	 *            controller; raised for the pick
+	 * @return the id of the controller or -1 if none is left
+	 */
+	private int pick(BackupPlanner plan, int e, int failed, int[] handed) {
+		int max = ctx.getMaxENodeBs();
+		for (int r = 0; r < plan.getCount(e); r++) {
+			int c = plan.getController(e, r);
+			if (c == failed) {
+				continue;
+			}
+			if (c == controller.getId()) {
+				if (load + handed[peers.length] < max) {
+					handed[peers.length]++;
+					return c;
+				}
+				continue;
+			}
+			for (int q = 0; q < peers.length; q++) {
+				if (peers[q].getId() == c && !down[q] && peerLoad[q] + handed[q] < max) {
+					handed[q]++;
+					return c;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the batches sent
+	 *
+	 * @return batches, one per peer
+	 */
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Gets the bytes sent
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Gets the eNodeBs this controller took over from failed controllers
+	 *
+	 * @return takeovers the eNodeBs took
+	 */
+	public synchronized long getTakeovers() {
+		return takeovers;
+	}
+}
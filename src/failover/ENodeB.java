@@ -9,20 +9,89 @@ package failover;
  * @since Jan 2017
  */
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-public class ENodeB extends Entity implements Runnable {
-	private Controller controller;
-	private Entity toController;
-	private ConcurrentLinkedQueue<Message> orphanMessages;
-	private ConcurrentLinkedQueue<Message> adoptionMessages;
-	private boolean initialFailureDetection;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ENodeB extends Entity {
+	private static final int SEEN_CAPACITY = 64; // orphans remembered by the seen-cache
+	private static final long SEEN_EXPIRY = 5000; // milliseconds before a seen request is forgotten
+	private static final int UNICAST_ROUNDS = 2; // rounds an orphan asks a backup before flooding
+	private static final int DRAIN = 32; // messages taken from a mailbox at once
+	private static final long PAUSE = 100; // milliseconds an eNodeB stops passing on messages after a neighbour rejected one
+	private static final int MAX_BACKOFF = 8; // longest wait between broadcasts, in rebroadcast intervals
+	private AtomicReference<Assignment> assignment; // controller and path, replaced as a whole
+	private Mailbox orphanMessages;
+	private Mailbox adoptionMessages;
+	private Mailbox unicastMessages; // requests to a backup controller
+	private Message[] taken; // messages drained from a mailbox
+	private FailureDetector detector;
+	private TimerService.Timeout detection; // wakes the eNodeB when the detector may suspect
+	private int watching; // id of the controller the detector watches or -1
+	private volatile long heartbeat; // latest heartbeat received from toController
+	private volatile long heardAt; // time it arrived
+	private long heartbeatSeen; // latest heartbeat processed
+	private long heartbeatsForwarded;
+	private boolean orphan;
+	private long orphanSince; // time the eNodeB became an orphan
+	private int lost; // id of the controller the eNodeB lost or -1
+	private int unicasts; // rounds asked to a backup controller as an orphan
+	private int sequence; // broadcast round as an orphan
+	private int joins; // times the eNodeB joined a controller, the version of its assignment
+	private long lastBroadcast;
+	private long rebroadcastInterval;
+	private volatile long backoff; // added to the rebroadcast interval while neighbours reject the requests
+	private volatile long requestsPaused; // time until which requests are not passed on
+	private volatile long responsesPaused; // time until which responses are not passed on
+	private long broadcasts;
+	private SeenCache seen;
+	private int[] avoid; // controllers that deferred or rejected this orphan
+	private long[] avoidUntil;
+	private int[] avoidBuffer;
+	private AdoptionBatcher batcher;
 	
-	public ENodeB(int name, long maxTime, int load) {
-		super(("eNodeB" + Integer.toString(name)), maxTime, load);
-		orphanMessages = new ConcurrentLinkedQueue<Message>();
-		adoptionMessages = new ConcurrentLinkedQueue<Message>();
-		initialFailureDetection = true;
+	public ENodeB(int name, long maxTime, int load, SimContext ctx) {
+		super(("eNodeB" + Integer.toString(name)), maxTime, load, ctx);
+		assignment = new AtomicReference<Assignment>(Assignment.NONE);
+		orphanMessages = ctx.newMailbox(1, null);
+		adoptionMessages = ctx.newMailbox(1, null);
+		unicastMessages = ctx.newMailbox(1, null);
+		taken = new Message[DRAIN];
+		detector = null;
+		detection = null;
+		watching = -1;
+		heartbeat = 0;
+		heardAt = 0;
+		heartbeatSeen = 0;
+		heartbeatsForwarded = 0;
+		orphan = false;
+		orphanSince = 0;
+		lost = -1;
+		unicasts = 0;
+		sequence = 0;
+		joins = 0;
+		lastBroadcast = 0;
+		rebroadcastInterval = ctx.getRebroadcastInterval();
+		backoff = 0;
+		requestsPaused = 0;
+		responsesPaused = 0;
+		broadcasts = 0;
+		seen = new SeenCache(SEEN_CAPACITY, SEEN_EXPIRY);
+		avoid = new int[Message.MAX_AVOID];
+		avoidUntil = new long[Message.MAX_AVOID];
+		avoidBuffer = new int[Message.MAX_AVOID];
+		batcher = new AdoptionBatcher(this, ctx.isBatching());
+		ctx.getMetrics().gauge(getName() + ".orphanMessages", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return orphanMessages.size();
+			}
+		});
+		ctx.getMetrics().gauge(getName() + ".adoptionMessages", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return adoptionMessages.size();
+			}
+		});
 		//System.out.println(getName() + " is created");
 	}
 
@@ -32,7 +101,13 @@ public class ENodeB extends Entity implements Runnable {
 	 * @param c is the new controller for the eNodeB
 	 */
 	public void setController(Controller c) {
-		controller = c;
+		Assignment a;
+		do {
+			a = assignment.get();
+		} while (!assignment.compareAndSet(a, new Assignment(c, a.getToController())));
+		if (c == null) {
+			signal();
+		}
 	}
 	
 	/**
@@ -44,98 +119,525 @@ public class ENodeB extends Entity implements Runnable {
 	 * @param e the Entity to the controller
 	 */
 	public void setEntity(Entity e) {
-		toController = e;
+		Assignment a;
+		do {
+			a = assignment.get();
+		} while (!assignment.compareAndSet(a, new Assignment(a.getController(), e)));
+		moveChild(a.getToController(), e);
+	}
+
+	/**
+	 * Moves this eNodeB from the children of one
+	 * Entity to the children of another
+	 * 
+	 * @param from the old Entity towards the controller or null
+	 * @param to the new Entity towards the controller or null
+	 */
+	private void moveChild(Entity from, Entity to) {
+		if (from != null) {
+			from.removeChild(this);
+		}
+		if (to != null) {
+			to.addChild(this);
+		}
+	}
+
+	/**
+	 * Gets the controller and the path to it
+	 * 
+	 * @return the current assignment
+	 */
+	public Assignment getAssignment() {
+		return assignment.get();
+	}
+
+	/**
+	 * Receives a heartbeat of a controller. Only heartbeats
+	 * of its own controller that come from the Entity
+	 * towards that controller are accepted.
+	 * 
+	 * @param from the controller or the eNodeB passing it on
+	 * @param c the controller
+	 * @param number of the heartbeat
+	 */
+	public void receiveHeartbeat(Entity from, Controller c, long number) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.receiveHeartbeat(id, from.getId(), c.getId(), number);
+			return;
+		}
+		Assignment a = assignment.get();
+		if (from == a.getToController() && c == a.getController() && number > heartbeat) {
+			heartbeat = number;
+			heardAt = now();
+			signal();
+		}
 	}
 	
 	/**
-	 * Runs the thread ( thread.start() )
+	 * The eNodeBs start one second after the controllers
 	 */
 	@Override
-	public void run() {
-		//System.out.println(getTime() + ": Running thread " + name);
-		
-		//pauses the system to start at the same time
-		while ( time(System.currentTimeMillis() ) < 1.0 ) {	}
-
-		try {
-			while (checkTime(System.currentTimeMillis())) {
-				Thread.sleep(random());
-				//eNodeB becomes an orphan
-				if ( controller == null ) {
-					if (initialFailureDetection){
-						Thread.sleep(30000); //added for failure detect through heartbeat messages
-						initialFailureDetection = false;
-						System.out.println(getTime() + ": " + name + " is an orphan");
+	public long startDelay() {
+		return 1000;
+	}
+
+	/**
+	 * One pass of the eNodeB: pass on heartbeats, detect failure,
+	 * broadcast as an orphan and forward messages in both directions.
+	 */
+	@Override
+	public long step() {
+		long now = now();
+		if (detector == null) {
+			detector = ctx.getDetectorFactory().create();
+			heartbeat(now); // the controller is alive at the start
+			Controller c = assignment.get().getController();
+			watching = c != null ? c.getId() : -1;
+			ctx.getBackupPlan(); // plan the backups before anything fails
+			ctx.getShortestPaths();
+		}
+
+		Assignment a = assignment.get();
+		Controller controller = a.getController();
+		if ( controller != null && (orphan || controller.getId() != watching) ) {
+			// adopted or taken over since the last step: watch the new controller
+			orphan = false;
+			unicasts = 0;
+			watching = controller.getId();
+			detector = ctx.getDetectorFactory().create();
+			heartbeat(now);
+		}
+
+		if ( controller != null ) {
+			// pass heartbeats down the toController chain
+			long h = heartbeat;
+			if (h > heartbeatSeen) {
+				heartbeatSeen = h;
+				heartbeat(now);
+				Graph.Snapshot s = ctx.getGraph().snapshot();
+				for (ENodeB child : children) {
+					if (s.findEdge(id, child.getId()) < 0) {
+						continue; // the connection was cut
 					}
-					orphanNode();
+					child.receiveHeartbeat(this, controller, h);
+					heartbeatsForwarded++;
+				}
+			}
+			if (detector.isSuspected(now) && assignment.compareAndSet(a, a.orphan())) {
+				lost = controller.getId();
+				controller.left(id);
+				controller = null;
+				detection.cancel();
+			}
+		}
+
+		//eNodeB becomes an orphan
+		if ( controller == null ) {
+			if (!orphan) {
+				orphan = true;
+				orphanSince = now;
+				out().println(getTime() + ": " + name + " is an orphan");
+				trace(Trace.ORPHAN, lost, 0);
+				ctx.getResult().addOrphan(name, time(now));
+				long failure = ctx.getMetrics().getFailureTime();
+				if (failure >= 0) {
+					ctx.getMetrics().record(Metrics.DETECT, now - failure);
+				}
+			}
+			orphanNode();
+		}
+		
+		Metrics metrics = ctx.getMetrics();
+		// pass message from orphan to controller
+		int drained = 0;
+		a = assignment.get(); // may have been adopted meanwhile
+		Controller c = a.getController();
+		for (int n = c != null ? drain(orphanMessages, requestsPaused) : 0; n > 0; n = drain(orphanMessages,
+				requestsPaused)) {
+			for (int i = 0; i < n; i++) {
+				Message m = taken[i];
+				taken[i] = null;
+				trace(Trace.DEQUEUE, m.getOrphanId(), m.getSequence());
+				if (m.avoids(c.getId())) {
+					m.release(); // the orphan does not want this controller
+					metrics.count(id, Metrics.DROPPED);
+				} else if (ctx.getGraph().findEdge(id, a.getToController().getId()) < 0) {
+					m.release(); // the connection towards the controller was cut
+					metrics.count(id, Metrics.DROPPED);
+				} else {
+					send(a.getToController(), Links.REQUEST, m);
+					metrics.count(id, Metrics.FORWARDED);
 				}
-				
-				// pass message from orphan to controller
-				while(!orphanMessages.isEmpty() && controller != null) {
-					Message m = orphanMessages.poll();
-					toController.messageController(m);
+			}
+			drained += n;
+		}
+		if (drained > 0) {
+			metrics.record(Metrics.DEPTH, drained);
+		}
+
+		// pass requests on towards their backup controller, with or without a controller
+		for (int n = drain(unicastMessages, requestsPaused); n > 0; n = drain(unicastMessages, requestsPaused)) {
+			for (int i = 0; i < n; i++) {
+				Message m = taken[i];
+				taken[i] = null;
+				trace(Trace.DEQUEUE, m.getOrphanId(), m.getSequence());
+				Entity hop = backupHop(m.getTarget());
+				if (hop == null) {
+					m.release(); // no live path to the backup from here
+					metrics.count(id, Metrics.DROPPED);
+				} else {
+					send(hop, Links.REQUEST, m);
+					metrics.count(id, Metrics.FORWARDED);
 				}
-								
-				// pass message from controller to orphan
-				while (!adoptionMessages.isEmpty()) {
-					Message m = adoptionMessages.poll();
+			}
+		}
+						
+		// pass message from controller to orphan, splitting
+		// batches where the paths of their responses diverge
+		drained = 0;
+		for (int n = drain(adoptionMessages, responsesPaused); n > 0; n = drain(adoptionMessages, responsesPaused)) {
+			for (int i = 0; i < n; i++) {
+				Message batch = taken[i];
+				taken[i] = null;
+				while (batch != null) {
+					Message m = batch;
+					batch = m.getNext();
+					m.setNext(null);
+					trace(Trace.DEQUEUE, m.getOrphanId(), m.getSequence());
+					metrics.count(id, Metrics.FORWARDED);
+					drained++;
 					if( m.atOrphan() ){
-						ENodeB orphan = m.getOrphan();
-						orphan.acceptAdoption(m, this);
-						//if (m.getOrphan().getName().equals("eNodeB4")) {System.out.println(getTime() + ": " + name + " sends adoption message from " + m.getController().getName() + " to " + orphan.getName());}
+						ENodeB sender = m.getOrphan(); // the orphan that sent the request
+						batcher.delivered();
+						// the response comes straight from the controller to a neighbouring orphan
+						if (sender == this) {
+							acceptAdoption(m, m.getController());
+						} else {
+							send(sender, Links.ACCEPT, m);
+						}
+						//if (m.getOrphan().getName().equals("eNodeB4")) {out().println(getTime() + ": " + name + " sends adoption message from " + m.getController().getName() + " to " + sender.getName());}
 					}else{
 						ENodeB e = m.removeBreadcrumb();
-						e.sendAdoptionMessage(m);
-						//if (m.getOrphan().getName().equals("eNodeB4")) {System.out.println(getTime() + ": " + name + " sends adoption message from " + m.getController().getName() + " to " + e.getName());}
+						batcher.add(e, m);
+						//if (m.getOrphan().getName().equals("eNodeB4")) {out().println(getTime() + ": " + name + " sends adoption message from " + m.getController().getName() + " to " + e.getName());}
 					}
 				}
 			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
 		}
+		batcher.flush();
+		if (drained > 0) {
+			metrics.record(Metrics.DEPTH, drained);
+		}
+		return random();
+	}
+
+	/**
+	 * Takes the next messages of a mailbox into taken, unless
+	 * passing them on is paused
+	 * 
+	 * @param mailbox the mailbox
+	 * @param paused time until which its messages wait
+	 * @return the number taken
+	 */
+	private int drain(Mailbox mailbox, long paused) {
+		return now() < paused ? 0 : mailbox.drain(taken);
+	}
+
+	/**
+	 * Backs off when a neighbour rejected a message because its mailbox
+	 * is full. An orphan asks less often, up to MAX_BACKOFF rebroadcast
+	 * intervals apart. An eNodeB passing messages on stops passing on
+	 * that kind for a while, so its own mailbox fills and rejects the
+	 * messages of its senders in turn.
+	 */
+	@Override
+	protected void rejected(Entity to, int kind, Message m) {
+		if (kind == Links.REQUEST && m.getOrphanId() == id) {
+			backoff = Math.min(MAX_BACKOFF * rebroadcastInterval, Math.max(rebroadcastInterval, 2 * backoff));
+		} else if (kind == Links.REQUEST) {
+			requestsPaused = now() + PAUSE;
+		} else {
+			responsesPaused = now() + PAUSE;
+		}
+		super.rejected(to, kind, m);
+	}
 
-		//System.out.println(getTime() + ": Closing thread " + name);
+	/**
+	 * An eNodeB is idle when it has a controller and no messages
+	 */
+	@Override
+	public boolean isIdle() {
+		return assignment.get().getController() != null && orphanMessages.isEmpty() && adoptionMessages.isEmpty()
+				&& unicastMessages.isEmpty();
+	}
+
+	/**
+	 * Adds the message counts of the eNodeB to the results
+	 */
+	@Override
+	public void shutdown() {
+		ctx.getResult().addMessageCounts(broadcasts, seen.getSuppressed());
+		ctx.getResult().addHeartbeats(heartbeatsForwarded);
+		ctx.getResult().addAdoptionMessages(batcher.getSent(), batcher.getResponses());
+		ctx.getResult().addMailbox(orphanMessages);
+		ctx.getResult().addMailbox(adoptionMessages);
+		ctx.getResult().addMailbox(unicastMessages);
+	}
+
+	/**
+	 * Records a heartbeat of the controller and sets a timer
+	 * for the time the detector may suspect the controller
+	 * 
+	 * @param now the time of the heartbeat
+	 */
+	private void heartbeat(long now) {
+		detector.heartbeat(now);
+		if (detection != null) {
+			detection.cancel();
+		}
+		detection = wakeAfter(detector.deadline() - now);
 	}
 
 	/**
 	 * call out to other connected eNodeBs and inform them this eNodeB is an
-	 * orphan.
+	 * orphan. A broadcast is repeated at most once per rebroadcast interval,
+	 * and less often while neighbours reject them, and every broadcast has
+	 * a new sequence number.
 	 */
 	private void orphanNode() {
-		for (Connection c : connections) {
-			Entity b = c.getEndpoint(this);
-			Message orphanBroadcast = new Message(this);
-			b.messageController(orphanBroadcast);
-			//if (name.equals("eNodeB7")) {System.out.println(getTime() + ": " + name + " broadcasts message to " + b.getName());}
+		long now = now();
+		if (sequence > 0 && now - lastBroadcast < rebroadcastInterval + backoff) {
+			return;
+		}
+		sequence++;
+		lastBroadcast = now;
+		int avoided = getAvoided(now, avoidBuffer);
+
+		if (unicasts < UNICAST_ROUNDS && unicast(avoided)) {
+			unicasts++;
+			return;
+		}
+
+		Graph.Snapshot s = ctx.getGraph().snapshot();
+		for (int k = s.begin(id); k < s.end(id); k++) {
+			if (s.isRemoved(s.edge(k))) {
+				continue;
+			}
+			Entity b = ctx.getEntity(s.neighbour(k));
+			Message orphanBroadcast = ctx.getMessagePool().acquire(this, sequence);
+			orphanBroadcast.setAvoid(avoidBuffer, avoided);
+			broadcasts++;
+			send(b, Links.REQUEST, orphanBroadcast);
+			//if (name.equals("eNodeB7")) {out().println(getTime() + ": " + name + " broadcasts message to " + b.getName());}
+		}
+	}
+
+	/**
+	 * Asks the best planned backup controller that is not
+	 * the lost controller and not avoided
+	 * 
+	 * @param avoided the number of avoided controllers in avoidBuffer
+	 * @return false if there is no backup plan or no usable backup
+	 */
+	private boolean unicast(int avoided) {
+		BackupPlanner plan = ctx.getBackupPlan();
+		if (plan == null) {
+			return false;
+		}
+		for (int r = 0; r < plan.getCount(id); r++) {
+			int c = plan.getController(id, r);
+			boolean avoid = c == lost;
+			for (int i = 0; i < avoided; i++) {
+				avoid |= avoidBuffer[i] == c;
+			}
+			Entity hop = avoid ? null : backupHop(c);
+			if (hop != null) {
+				Message m = ctx.getMessagePool().acquire(this, sequence);
+				m.setAvoid(avoidBuffer, avoided);
+				m.setTarget(c);
+				broadcasts++;
+				send(hop, Links.REQUEST, m);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the next hop towards a backup controller
+	 * 
+	 * @param c id of the controller
+	 * @return the neighbour or null if the controller is not a
+	 *         backup of this eNodeB or the link is gone
+	 */
+	private Entity backupHop(int c) {
+		BackupPlanner plan = ctx.getBackupPlan();
+		int r = plan.rank(id, c);
+		if (r < 0) {
+			return null;
+		}
+		int next = plan.getNextHop(id, r);
+		if (ctx.getGraph().findEdge(id, next) < 0) {
+			return null;
 		}
+		return ctx.getEntity(next);
 	}
 
 	/**
 	 * Sends a message to the controller
 	 * 
 	 * @param eNodeB
+	 * @return false if the mailbox is full; the sender still has the message
 	 */
-	public void messageController(Message orphanMessage) {
+	public boolean messageController(Message orphanMessage) {
 		//if(orphanMessage.getOrphan().getName().equals("eNodeB4")){ System.out.println(name + " receives message from eNB4");; }
-		orphanMessage.addBreadcrumb(this);
-		orphanMessages.add(orphanMessage);			
+		Shard shard = remote();
+		if (shard != null) {
+			shard.messageController(id, orphanMessage);
+			return true;
+		}
+		if (!seen.firstSeen(orphanMessage.getOrphanId(), orphanMessage.getSequence(), now())
+				|| !orphanMessage.addBreadcrumb(this)) {
+			orphanMessage.release(); // already passed on this request or too many hops
+			ctx.getMetrics().count(id, Metrics.DROPPED);
+			return true;
+		}
+		Mailbox mailbox = orphanMessage.getTarget() >= 0 ? unicastMessages : orphanMessages;
+		if (!mailbox.offer(orphanMessage)) {
+			orphanMessage.removeBreadcrumb();
+			return false; // full, the sender backs off
+		}
+		trace(Trace.ENQUEUE, orphanMessage.getOrphanId(), orphanMessage.getSequence());
+		ctx.getMetrics().count(id, Metrics.QUEUED);
+		signal();
+		return true;
 	}
 	
 	/**
-	 * Adds messages for adoption
+	 * Adds messages for adoption. The message may
+	 * carry a batch of responses
 	 * @param adoptMessage
+	 * @return false if the mailbox is full; the sender still has the batch
 	 */
-	public void sendAdoptionMessage(Message adoptMessage) {
-		adoptionMessages.add(adoptMessage);
+	public boolean sendAdoptionMessage(Message adoptMessage) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.sendAdoptionMessage(id, adoptMessage);
+			return true;
+		}
+		if (!adoptionMessages.offer(adoptMessage)) {
+			return false; // full, the sender backs off
+		}
+		for (Message m = adoptMessage; m != null; m = m.getNext()) {
+			trace(Trace.ENQUEUE, m.getOrphanId(), m.getSequence());
+		}
+		ctx.getMetrics().count(id, Metrics.QUEUED);
+		signal();
+		return true;
 	}
 	
-	private void acceptAdoption(Message m, ENodeB e) {
+	/**
+	 * Avoids a controller until a given time
+	 * 
+	 * @param c id of the controller
+	 * @param until time in milliseconds
+	 */
+	private synchronized void avoid(int c, long until) {
+		int slot = 0;
+		for (int i = 0; i < avoid.length; i++) {
+			if (avoidUntil[i] == 0 || avoid[i] == c) {
+				slot = i;
+				break;
+			}
+			if (avoidUntil[i] < avoidUntil[slot]) {
+				slot = i; // replace the one that expires first
+			}
+		}
+		avoid[slot] = c;
+		avoidUntil[slot] = until;
+	}
+
+	/**
+	 * Gets the controllers the orphan avoids
+	 * 
+	 * @param now the current time
+	 * @param into the ids of the controllers
+	 * @return the number of ids
+	 */
+	private synchronized int getAvoided(long now, int[] into) {
+		int n = 0;
+		for (int i = 0; i < avoid.length; i++) {
+			if (avoidUntil[i] > now) {
+				into[n++] = avoid[i];
+			} else {
+				avoidUntil[i] = 0;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Takes the response of a controller: an adoption, or a
+	 * deferral or rejection after which the orphan asks
+	 * other controllers, or a takeover of a survivor when
+	 * the controller of the eNodeB failed
+	 * 
+	 * @param m the response
+	 * @param e the eNodeB it came from, or the controller itself
+	 */
+	void acceptAdoption(Message m, Entity e) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.acceptAdoption(id, m, e.getId());
+			return;
+		}
 		Controller c = m.getController();
-		if (controller == null) {
-			controller = c;
-			System.out.println(getTime() + ": " + c.getName() + " adopts " + name + " with " + m.getHops() + " hops");
+		if (m.getType() == Message.DEFER) {
+			trace(Trace.DEFER, c.getId(), m.getSequence());
+			avoid(c.getId(), now() + m.getRetryAfter());
+			m.release();
+			return;
+		}
+		if (m.getType() == Message.REJECT) {
+			trace(Trace.REJECT, c.getId(), m.getSequence());
+			avoid(c.getId(), Long.MAX_VALUE);
+			m.release();
+			return;
+		}
+		Assignment a = assignment.get();
+		Controller current = a.getController();
+		// a takeover is only taken from the controller it names as failed, once its heartbeats stopped
+		boolean takeover = m.getType() == Message.TAKEOVER && current != null && current.getId() == m.getTarget()
+				&& now() - heardAt >= ctx.getHeartbeatInterval();
+		if ((current == null || takeover) && assignment.compareAndSet(a, new Assignment(c, e))) {
+			moveChild(a.getToController(), e);
+			if (takeover) {
+				current.left(id);
+			}
+			long now = now();
+			out().println(getTime() + ": " + c.getName() + (takeover ? " takes over " : " adopts ") + name + " with "
+					+ m.getHops() + " hops");
+			trace(Trace.ADOPT, c.getId(), m.getSequence());
+			ctx.getResult().addAdoption(name, c.getName(), m.getHops(), time(now));
+			Metrics metrics = ctx.getMetrics();
+			if (!takeover) {
+				metrics.record(Metrics.ADOPT, now - orphanSince);
+			}
+			metrics.record(Metrics.HOPS, m.getHops());
+			if (metrics.getFailureTime() >= 0) {
+				metrics.record(Metrics.OUTAGE, now - metrics.getFailureTime());
+			}
 			
-			toController = e;
+			int version;
+			synchronized (this) {
+				Arrays.fill(avoidUntil, 0);
+				version = ++joins;
+			}
+			backoff = 0;
+			c.joined(id, version, takeover);
+			signal();
 		}
+		m.release();
 	}
 }
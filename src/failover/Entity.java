@@ -1,7 +1,5 @@
 package failover;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * An Entity in LTE.
@@ -13,25 +11,28 @@ import java.util.HashMap;
  * @since Jan 2017
  */
 
-import java.util.Random;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
+import java.io.PrintStream;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Entity {
 	protected String name;
-	protected static long startTime;
+	protected int id; // vertex of the Entity in the graph of the run
 	private long maxTime;
-	protected static DecimalFormat decFor;
-	protected ArrayList<Connection> connections; // a list of connections to other eNodeBs
 	private int load;
+	protected SimContext ctx; // the run this Entity belongs to
+	private SplittableRandom random; // the stream of this Entity, split off the seed of the run
+	private volatile Runnable waker; // set by the backend running this Entity
+	protected CopyOnWriteArrayList<ENodeB> children; // eNodeBs that reach their controller through this Entity
 
-	public Entity(String name, long maxTime, int load) {
+	public Entity(String name, long maxTime, int load, SimContext ctx) {
 		this.name = name;
 		this.maxTime = maxTime;
 		this.load = load;
-		connections = new ArrayList<Connection>();
-		Entity.decFor = new DecimalFormat("#0.000");
-		decFor.setRoundingMode(RoundingMode.CEILING);
+		this.ctx = ctx;
+		id = ctx.register(this);
+		random = ctx.newRandom();
+		children = new CopyOnWriteArrayList<ENodeB>();
 	}
 
 	/**
@@ -44,13 +45,48 @@ public class Entity {
 	}
 
 	/**
-	 * sets the start time of the simulation
+	 * Gets the id of the Entity.
 	 * 
-	 * @param startTime
-	 *            is in milliseconds
+	 * @return id
 	 */
-	public void setStartTime(long startTime) {
-		Entity.startTime = startTime;
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the run of the Entity.
+	 * 
+	 * @return the context
+	 */
+	public SimContext getContext() {
+		return ctx;
+	}
+
+	/**
+	 * Gets the maximum time of the Entity.
+	 * 
+	 * @return maxTime in seconds
+	 */
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	/**
+	 * Gets the current time of the run.
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long now() {
+		return ctx.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the output of the run.
+	 * 
+	 * @return a PrintStream
+	 */
+	protected PrintStream out() {
+		return ctx.getOut();
 	}
 
 	/**
@@ -82,8 +118,7 @@ public class Entity {
 	public int random() {
 		int time = load * 10;
 		
-		Random r = new Random();
-		return r.nextInt(time);
+		return random.nextInt(time);
 	}
 
 	/**
@@ -94,7 +129,7 @@ public class Entity {
 	 * @return elapsed time in seconds
 	 */
 	public double time(long currentTime) {
-		return ((double) (currentTime - startTime)) / 1000;
+		return ((double) (currentTime - ctx.getStartTime())) / 1000;
 	}
 
 	/**
@@ -106,33 +141,190 @@ public class Entity {
 	 *         ceiling
 	 */
 	public String getTime() {
-		double t = time(System.currentTimeMillis());
-		return decFor.format(t);
+		double t = time(now());
+		return ctx.format(t);
 	}
 
 	/**
-	 * Adds a connection to other eNodeBs or controllers
+	 * Removes a connection
 	 * 
-	 * @param c the connection between eNodeBs
+	 * @param c
 	 */
-	public void addConnection(Connection c) {
-		connections.add(c);
+	public void removeConnection(Connection c) {
+		removeConnection(c.getId());
 	}
-	
+
 	/**
 	 * Removes a connection
 	 * 
-	 * @param c
+	 * @param edge the id of the connection
 	 */
-	public void removeConnection(Connection c) {
-		connections.remove(c);
+	public void removeConnection(int edge) {
+		ctx.getGraph().removeEdge(edge);
+	}
+
+	/**
+	 * Gets the shard to hand calls on this Entity to when another process
+	 * of a sharded run runs it. The Entity is then a stand-in for the
+	 * neighbour of an Entity this process runs.
+	 * 
+	 * @return the shard of this process, or null if this process runs the Entity
+	 */
+	protected Shard remote() {
+		Shard s = ctx.getShard();
+		return s != null && !s.owns(id) ? s : null;
+	}
+
+	/**
+	 * Records an event of a request in the trace of the run, if any
+	 * 
+	 * @param kind Trace.ENQUEUE .. Trace.FAILURE
+	 * @param peer the id of the other entity or -1
+	 * @param sequence the sequence number of the request or 0
+	 */
+	protected void trace(int kind, int peer, int sequence) {
+		Trace t = ctx.getTrace();
+		if (t != null) {
+			t.record(kind, now() - ctx.getStartTime(), id, peer, sequence);
+		}
 	}
 
 	/**
 	 * THIS REQUIRES AN OVERRIDE 
 	 * @param orphanBoardcast
+	 * @return false if a full mailbox rejected the message; the sender still has it
 	 */
-	public void messageController(Message orphanBroadcast) {
-		
+	public boolean messageController(Message orphanBroadcast) {
+		return true;
+	}
+
+	/**
+	 * Sends a message to a neighbour over the connection between them,
+	 * through the links of the run if it has any
+	 * 
+	 * @param to the neighbour
+	 * @param kind Links.REQUEST, RESPONSE or ACCEPT
+	 * @param m the message or batch
+	 */
+	protected void send(Entity to, int kind, Message m) {
+		Links links = ctx.getLinks();
+		if (links != null) {
+			links.transmit(this, to, kind, m);
+		} else {
+			Links.deliver(this, to, kind, m);
+		}
+	}
+
+	/**
+	 * Takes back a message the full mailbox of a neighbour rejected,
+	 * at once or when it arrived over a link. The message goes back
+	 * to the pool.
+	 * 
+	 * @param to the neighbour
+	 * @param kind Links.REQUEST or RESPONSE
+	 * @param m the message or batch
+	 */
+	protected void rejected(Entity to, int kind, Message m) {
+		Mailbox.release(m);
+		ctx.getMetrics().count(id, Metrics.DROPPED);
+	}
+
+	/**
+	 * The time the Entity waits after the start of the simulation
+	 * before it takes its first step.
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long startDelay() {
+		return 0;
+	}
+
+	/**
+	 * One pass of the Entity's work loop.
+	 * THIS REQUIRES AN OVERRIDE
+	 * 
+	 * @return the time in milliseconds until the next step
+	 */
+	public long step() {
+		return random();
+	}
+
+	/**
+	 * Called once when the Entity reaches its maximum time.
+	 */
+	public void shutdown() {
+
+	}
+
+	/**
+	 * Determines if the Entity has nothing to do until it is signalled.
+	 * 
+	 * @return true if the next step can wait for a message
+	 */
+	public boolean isIdle() {
+		return false;
+	}
+
+	/**
+	 * Adds an eNodeB that sends to its controller through this Entity
+	 * 
+	 * @param e the eNodeB
+	 */
+	public void addChild(ENodeB e) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.addChild(id, e.getId());
+			return;
+		}
+		children.add(e);
+	}
+
+	/**
+	 * Removes an eNodeB that no longer sends through this Entity
+	 * 
+	 * @param e the eNodeB
+	 */
+	public void removeChild(ENodeB e) {
+		Shard shard = remote();
+		if (shard != null) {
+			shard.removeChild(id, e.getId());
+			return;
+		}
+		children.remove(e);
+	}
+
+	/**
+	 * Sets the callback that wakes the Entity when it is signalled.
+	 * 
+	 * @param waker from the backend, or null
+	 */
+	public void setWaker(Runnable waker) {
+		this.waker = waker;
+	}
+
+	/**
+	 * Schedules a wake-up of the Entity on the timers of the run, e.g. for
+	 * a timeout.
+	 * 
+	 * @param delay in milliseconds
+	 * @return the timer, which can be cancelled
+	 */
+	protected TimerService.Timeout wakeAfter(long delay) {
+		return ctx.getTimers().schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				signal();
+			}
+		});
+	}
+
+	/**
+	 * Tells the backend the Entity has work, e.g. a message arrived.
+	 */
+	protected void signal() {
+		Runnable w = waker;
+		if (w != null) {
+			w.run();
+		}
 	}
 }
@@ -0,0 +1,26 @@
+package failover;
+
+/**
+ * Runs a simulation on the discrete-event engine. The run uses virtual time,
+ * so it finishes as soon as its events are processed and the same seed
+ * gives the same run.
+ */
+public class EventBackend implements ExecutionBackend {
+
+	@Override
+	public void execute(SimContext ctx) {
+		EventEngine engine = new EventEngine();
+		ctx.setClock(engine);
+		ctx.setTimers(engine);
+		ctx.setStartTime(0);
+		ctx.getFaults().install(ctx);
+
+		for (Controller c : ctx.getControllers()) {
+			engine.add(c);
+		}
+		for (ENodeB b : ctx.getENodeBs()) {
+			engine.add(b);
+		}
+		engine.run();
+	}
+}
@@ -0,0 +1,193 @@
+package failover;
+
+/**
+ * A discrete-event engine for the simulation.
+ *
+ * The engine keeps a virtual clock and a priority queue of events ordered by
+ * time. Instead of sleeping, entities are stepped by scheduled events, so a
+ * run takes as long as it takes to process its events rather than maxTime
+ * seconds of wall time. Events at the same time run in the order they were
+ * scheduled, so the same seed always gives the same ordering.
+ */
+
+import java.util.PriorityQueue;
+
+public class EventEngine implements Clock, TimerService {
+	private PriorityQueue<Event> events;
+	private long now;
+	private long sequence;
+
+	public EventEngine() {
+		events = new PriorityQueue<Event>();
+		now = 0;
+		sequence = 0;
+	}
+
+	/**
+	 * Gets the virtual time.
+	 *
+	 * @return the virtual time in milliseconds
+	 */
+	@Override
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	/**
+	 * Schedules an action after a delay from the current virtual time.
+	 *
+	 * @param delay in milliseconds
+	 * @param action the action to run
+	 * @return the event, which can be cancelled
+	 */
+	@Override
+	public Event schedule(long delay, Runnable action) {
+		return scheduleAt(now + Math.max(0, delay), action);
+	}
+
+	/**
+	 * Schedules an action at a virtual time.
+	 *
+	 * @param time in milliseconds
+	 * @param action the action to run
+	 * @return the event, which can be cancelled
+	 */
+	public Event scheduleAt(long time, Runnable action) {
+		Event e = new Event(Math.max(now, time), sequence++, action);
+		events.add(e);
+		return e;
+	}
+
+	/**
+	 * Adds an entity to the simulation. The entity is stepped until its
+	 * maximum time, when it is shut down. An idle entity is not stepped
+	 * again until it is signalled, which steps it at once, as on the
+	 * other backends.
+	 *
+	 * @param e the entity
+	 */
+	public void add(final Entity e) {
+		final long stopTime = e.getMaxTime() * 1000;
+		final Stepper stepper = new Stepper(e, stopTime);
+		e.setWaker(new Runnable() {
+			@Override
+			public void run() {
+				stepper.wake();
+			}
+		});
+		stepper.next = scheduleAt(e.startDelay() + e.random(), stepper);
+		scheduleAt(stopTime, new Runnable() {
+			@Override
+			public void run() {
+				e.setWaker(null);
+				e.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Steps one entity. At most one step of an entity is scheduled at a
+	 * time.
+	 */
+	private class Stepper implements Runnable {
+		private Entity entity;
+		private long stopTime;
+		private Event next; // the scheduled step, or null while idle
+
+		Stepper(Entity entity, long stopTime) {
+			this.entity = entity;
+			this.stopTime = stopTime;
+		}
+
+		/**
+		 * Steps the entity now, unless a step is already due now
+		 */
+		void wake() {
+			if (now >= stopTime || (next != null && next.time <= now)) {
+				return;
+			}
+			if (next != null) {
+				next.cancel();
+			}
+			next = scheduleAt(now, this);
+		}
+
+		@Override
+		public void run() {
+			next = null;
+			if (now < stopTime) {
+				long delay = entity.step();
+				if (next == null && !entity.isIdle()) {
+					next = schedule(delay, this); // signalled during the step otherwise
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs events until there are none left.
+	 */
+	public void run() {
+		runUntil(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs the events up to a time and leaves the later ones, e.g. up to
+	 * the time before which no other shard can send anything.
+	 *
+	 * @param time in milliseconds
+	 */
+	public void runUntil(long time) {
+		while (!events.isEmpty() && events.peek().time <= time) {
+			Event e = events.poll();
+			if (!e.cancelled) {
+				now = e.time;
+				e.action.run();
+			}
+		}
+	}
+
+	/**
+	 * Gets the time of the next event
+	 *
+	 * @return time in milliseconds or Long.MAX_VALUE if there are no events
+	 */
+	public long nextEventTime() {
+		while (!events.isEmpty() && events.peek().cancelled) {
+			events.poll();
+		}
+		return events.isEmpty() ? Long.MAX_VALUE : events.peek().time;
+	}
+
+	/**
+	 * An action at a point in virtual time.
+	 */
+	public static class Event implements Comparable<Event>, TimerService.Timeout {
+		private final long time;
+		private final long sequence;
+		private final Runnable action;
+		private boolean cancelled;
+
+		private Event(long time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		/**
+		 * Stops the event from running
+		 */
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if (time != o.time) {
+				return time < o.time ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+}
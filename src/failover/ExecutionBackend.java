@@ -0,0 +1,37 @@
+package failover;
+
+/**
+ * Executes the Controllers and eNodeBs of a run.
+ *
+ * The Entity code is the same for every backend. An Entity does one pass of
+ * its work in step(), tells the backend when it needs to be woken through
+ * signal() and isIdle(), and is shut down at its maximum time.
+ */
+public interface ExecutionBackend {
+
+	/**
+	 * Runs the entities of a run until they have all been shut down
+	 *
+	 * @param ctx the run
+	 */
+	public void execute(SimContext ctx);
+
+	/**
+	 * Gets a backend by name
+	 *
+	 * @param name events, threads, virtual-threads or actors
+	 * @return the backend
+	 */
+	public static ExecutionBackend forName(String name) {
+		if (name.equals("events")) {
+			return new EventBackend();
+		} else if (name.equals("threads")) {
+			return new ThreadBackend(false);
+		} else if (name.equals("virtual-threads")) {
+			return new ThreadBackend(true);
+		} else if (name.equals("actors")) {
+			return new ActorBackend(Runtime.getRuntime().availableProcessors());
+		}
+		throw new IllegalArgumentException("Unknown backend: " + name);
+	}
+}
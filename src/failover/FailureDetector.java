@@ -0,0 +1,72 @@
+package failover;
+
+/**
+ * Decides when an eNodeB should suspect that its controller has failed,
+ * from the arrival times of heartbeats.
+ *
+ * Every eNodeB has its own detector, created by the Factory of the run.
+ */
+public interface FailureDetector {
+
+	/**
+	 * Records the arrival of a heartbeat
+	 *
+	 * @param now the arrival time in milliseconds
+	 */
+	public void heartbeat(long now);
+
+	/**
+	 * Determines if the controller is suspected to have failed
+	 *
+	 * @param now the current time in milliseconds
+	 * @return true if the controller is suspected
+	 */
+	public boolean isSuspected(long now);
+
+	/**
+	 * Gets the earliest time the controller can become suspected if no
+	 * heartbeat arrives before then
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long deadline();
+
+	/**
+	 * Creates the detectors of a run
+	 */
+	public interface Factory {
+		public FailureDetector create();
+	}
+
+	/**
+	 * Suspects the controller when no heartbeat arrived for a fixed time
+	 *
+	 * @param timeout in milliseconds
+	 * @return a factory of fixed timeout detectors
+	 */
+	public static Factory fixed(final long timeout) {
+		return new Factory() {
+			@Override
+			public FailureDetector create() {
+				return new FixedTimeoutDetector(timeout);
+			}
+		};
+	}
+
+	/**
+	 * Suspects the controller when the phi value of the time since the last
+	 * heartbeat reaches a threshold
+	 *
+	 * @param threshold phi, e.g. 8
+	 * @param interval the expected heartbeat interval in milliseconds
+	 * @return a factory of phi accrual detectors
+	 */
+	public static Factory phiAccrual(final double threshold, final long interval) {
+		return new Factory() {
+			@Override
+			public FailureDetector create() {
+				return new PhiAccrualDetector(threshold, 100, interval, interval / 4);
+			}
+		};
+	}
+}
@@ -0,0 +1,474 @@
+package failover;
+
+/**
+ * The failures of a run: controllers failing at given times, cascades of
+ * controllers failing under load, and cut X2 connections and partitions.
+ *
+ * A schedule only describes the faults and is shared by the runs that use
+ * it; install() turns it into timers and load listeners of one run. A
+ * controller that fails stops its heartbeats and loses its connections, as
+ * Controller1 always did. A cut connection stops the heartbeats and
+ * requests that went over it, so the eNodeBs behind it find out through
+ * their failure detectors.
+ *
+ * File format, one statement per line, # starts a comment. Endpoints are
+ * named as in topology files: eNodeB i is Ei and controller j is Cj.
+ *
+ * scenario c1-alone           starts the next scenario of a file
+ * fail C1 C2 at 5             C1 and C2 fail 5 s into the run
+ * cut E0 E2 at 7              the connections between E0 and E2 are cut
+ * partition E0 E1 E2 at 9     every connection between E0, E1, E2 and the rest is cut
+ * cascade load 150% after 1   a controller fails 1 s after it serves more than
+ *                             150% of the eNodeBs it had when the run started
+ * cascade load 20 after 1     ... more than 20 eNodeBs
+ * cascade queue 10 after 0.5  ... more than 10 orphan requests waiting
+ *
+ * Scenario sets are also generated from a descriptor, so a sweep can
+ * try thousands of scenarios on a topology without writing them:
+ *
+ * single:T                    each controller failing alone at T s
+ * pairs:T                     each pair of controllers failing at T s
+ * random:N[:failures[:cuts[:seed]]]  N scenarios failing random controllers
+ *                             and cutting random connections at random times
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FaultSchedule {
+	public static final int FAIL = 0;
+	public static final int CUT = 1;
+	public static final int PARTITION = 2;
+	public static final int CASCADE_LOAD = 3;
+	public static final int CASCADE_QUEUE = 4;
+
+	private String name;
+	private ArrayList<Fault> faults;
+
+	public FaultSchedule(String name) {
+		this.name = name;
+		faults = new ArrayList<Fault>();
+	}
+
+	/**
+	 * Gets the name of the scenario
+	 *
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the number of faults
+	 *
+	 * @return faults
+	 */
+	public int size() {
+		return faults.size();
+	}
+
+	/**
+	 * Makes controllers fail
+	 *
+	 * @param time into the run in seconds
+	 * @param controllers the controller numbers
+	 */
+	public void fail(double time, int... controllers) {
+		faults.add(new Fault(FAIL, time, controllers, 0, false, 0));
+	}
+
+	/**
+	 * Cuts the connections between two endpoints
+	 *
+	 * @param time into the run in seconds
+	 * @param a an endpoint, see TopologySpec.controller()
+	 * @param b an endpoint
+	 */
+	public void cut(double time, int a, int b) {
+		faults.add(new Fault(CUT, time, new int[] { a, b }, 0, false, 0));
+	}
+
+	/**
+	 * Cuts every connection between a set of endpoints and the rest
+	 *
+	 * @param time into the run in seconds
+	 * @param endpoints the set, see TopologySpec.controller()
+	 */
+	public void partition(double time, int... endpoints) {
+		faults.add(new Fault(PARTITION, time, endpoints, 0, false, 0));
+	}
+
+	/**
+	 * Makes every controller fail some time after its load passes a threshold
+	 *
+	 * @param kind CASCADE_LOAD (eNodeBs served) or CASCADE_QUEUE (requests waiting)
+	 * @param threshold the load that must be passed
+	 * @param percent true if the threshold is a percentage of the load at the start
+	 * @param delay from passing the threshold to the failure in seconds
+	 */
+	public void cascade(int kind, double threshold, boolean percent, double delay) {
+		faults.add(new Fault(kind, 0, new int[0], threshold, percent, delay));
+	}
+
+	/**
+	 * Applies the schedule to a run. Called by the backend once its clock
+	 * and timers are set.
+	 *
+	 * @param ctx the run
+	 */
+	public void install(final SimContext ctx) {
+		for (final Fault f : faults) {
+			if (f.kind == FAIL) {
+				for (int j : f.targets) {
+					final Controller c = ctx.getControllers().get(j);
+					at(ctx, f.time, new Runnable() {
+						@Override
+						public void run() {
+							c.fail();
+						}
+					});
+				}
+			} else if (f.kind == CUT || f.kind == PARTITION) {
+				at(ctx, f.time, new Runnable() {
+					@Override
+					public void run() {
+						cut(ctx, f);
+					}
+				});
+			} else {
+				for (Controller c : ctx.getControllers()) {
+					watch(ctx, c, f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a task at a time of the run
+	 */
+	private static void at(SimContext ctx, double seconds, Runnable task) {
+		long elapsed = ctx.currentTimeMillis() - ctx.getStartTime();
+		ctx.getTimers().schedule(Math.max(0, Math.round(seconds * 1000) - elapsed), task);
+	}
+
+	/**
+	 * Cuts the connections of a CUT or PARTITION
+	 */
+	private static void cut(SimContext ctx, Fault f) {
+		Graph g = ctx.getGraph();
+		boolean[] inside = new boolean[g.getVertexCount()];
+		for (int p : f.targets) {
+			inside[vertex(ctx, p)] = true;
+		}
+		int a = vertex(ctx, f.targets[0]);
+		int b = f.kind == CUT ? vertex(ctx, f.targets[1]) : -1;
+		// every removal publishes a new snapshot, walk the one from before
+		Graph.Snapshot s = g.snapshot();
+		for (int p : f.targets) {
+			int v = vertex(ctx, p);
+			for (int k = s.begin(v); k < s.end(v); k++) {
+				int w = s.neighbour(k);
+				boolean crosses = f.kind == CUT ? (v == a && w == b) : !inside[w];
+				if (crosses && !s.isRemoved(s.edge(k))) {
+					g.removeEdge(s.edge(k));
+				}
+			}
+		}
+		ctx.getOut().println("\n" + ctx.format((ctx.currentTimeMillis() - ctx.getStartTime()) / 1000.0) + ": "
+				+ (f.kind == CUT ? "cut " : "partition ") + f.describeTargets() + "\n");
+	}
+
+	/**
+	 * Watches the load of a controller for a cascade
+	 */
+	private static void watch(final SimContext ctx, final Controller c, final Fault f) {
+		final double threshold = f.percent ? f.threshold / 100 * c.getLoad() : f.threshold;
+		final AtomicBoolean triggered = new AtomicBoolean(false);
+		c.addLoadListener(new Controller.LoadListener() {
+			@Override
+			public void loadChanged(Controller controller, int load, int queued) {
+				double value = f.kind == CASCADE_LOAD ? load : queued;
+				if (value > threshold && !controller.isFailed() && triggered.compareAndSet(false, true)) {
+					ctx.getTimers().schedule(Math.round(f.delay * 1000), new Runnable() {
+						@Override
+						public void run() {
+							c.fail();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the id of the Entity of an endpoint. A shard does not have every
+	 * eNodeB, but it has the ids of all of them.
+	 */
+	private static int vertex(SimContext ctx, int p) {
+		if (ctx.getShard() != null) {
+			return ctx.getShard().vertex(p);
+		}
+		if (p >= 0) {
+			return ctx.getENodeBs().get(p).getId();
+		}
+		return ctx.getControllers().get(TopologySpec.controller(p)).getId();
+	}
+
+	/**
+	 * Writes the schedule in the file format
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("scenario ").append(name).append('\n');
+		for (Fault f : faults) {
+			sb.append(f).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the scenarios of a file, or generates them if there is no such file
+	 *
+	 * @param name a file or a generator descriptor
+	 * @param topology the topology the scenarios are for
+	 * @param maxTime of the runs in seconds
+	 * @return the scenarios
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static List<FaultSchedule> load(String name, TopologySpec topology, long maxTime) throws IOException {
+		File file = new File(name);
+		if (file.isFile()) {
+			Reader r = new FileReader(file);
+			try {
+				return read(file.getName(), r, topology);
+			} finally {
+				r.close();
+			}
+		}
+		return generate(name, topology, maxTime);
+	}
+
+	/**
+	 * Reads scenarios
+	 *
+	 * @param name of the first scenario if the file does not name it
+	 * @param reader the scenarios in the file format
+	 * @param topology the topology the scenarios are for
+	 * @return the scenarios
+	 * @throws IOException if the scenarios cannot be read, are malformed or
+	 *             name an endpoint the topology does not have
+	 */
+	public static List<FaultSchedule> read(String name, Reader reader, TopologySpec topology)
+			throws IOException {
+		List<FaultSchedule> scenarios = new ArrayList<FaultSchedule>();
+		FaultSchedule schedule = null;
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			String[] words = line.split("\\s+");
+			try {
+				if (words[0].equals("scenario") && words.length == 2) {
+					schedule = new FaultSchedule(words[1]);
+					scenarios.add(schedule);
+					continue;
+				}
+				if (schedule == null) {
+					schedule = new FaultSchedule(name);
+					scenarios.add(schedule);
+				}
+				int n = words.length;
+				if (words[0].equals("fail") && n >= 4 && words[n - 2].equals("at")) {
+					int[] controllers = new int[n - 3];
+					for (int i = 0; i < controllers.length; i++) {
+						controllers[i] = TopologySpec.parseController(words[i + 1]);
+						check(TopologySpec.controller(controllers[i]), topology);
+					}
+					schedule.fail(Double.parseDouble(words[n - 1]), controllers);
+				} else if (words[0].equals("cut") && n == 5 && words[3].equals("at")) {
+					schedule.cut(Double.parseDouble(words[4]), check(TopologySpec.parseEndpoint(words[1]), topology),
+							check(TopologySpec.parseEndpoint(words[2]), topology));
+				} else if (words[0].equals("partition") && n >= 4 && words[n - 2].equals("at")) {
+					int[] endpoints = new int[n - 3];
+					for (int i = 0; i < endpoints.length; i++) {
+						endpoints[i] = check(TopologySpec.parseEndpoint(words[i + 1]), topology);
+					}
+					schedule.partition(Double.parseDouble(words[n - 1]), endpoints);
+				} else if (words[0].equals("cascade") && n == 5 && words[3].equals("after")
+						&& (words[1].equals("load") || words[1].equals("queue"))) {
+					boolean percent = words[2].endsWith("%");
+					String threshold = percent ? words[2].substring(0, words[2].length() - 1) : words[2];
+					schedule.cascade(words[1].equals("load") ? CASCADE_LOAD : CASCADE_QUEUE,
+							Double.parseDouble(threshold), percent, Double.parseDouble(words[4]));
+				} else {
+					throw new IllegalArgumentException("Unknown statement");
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IOException(name + ":" + lineNumber + ": " + e.getMessage() + ": " + line);
+			}
+		}
+		return scenarios;
+	}
+
+	/**
+	 * Checks that a topology has an endpoint, so a schedule that names
+	 * another topology fails while it is read, not in the middle of a run
+	 *
+	 * @param p the endpoint, see TopologySpec.controller()
+	 * @param topology the topology
+	 * @return the endpoint
+	 */
+	private static int check(int p, TopologySpec topology) {
+		int count = p >= 0 ? topology.getENodeBCount() : topology.getControllerCount();
+		if ((p >= 0 ? p : TopologySpec.controller(p)) >= count) {
+			throw new IllegalArgumentException("No endpoint " + TopologySpec.endpointName(p) + " in a topology of "
+					+ topology.getControllerCount() + " controllers and " + topology.getENodeBCount() + " eNodeBs");
+		}
+		return p;
+	}
+
+	/**
+	 * Generates scenarios from a descriptor
+	 *
+	 * @param descriptor e.g. single:5 or random:1000:2:1
+	 * @param topology the topology the scenarios are for
+	 * @param maxTime of the runs in seconds
+	 * @return the scenarios
+	 */
+	public static List<FaultSchedule> generate(String descriptor, TopologySpec topology, long maxTime) {
+		String[] parts = descriptor.split(":");
+		int controllers = topology.getControllerCount();
+		List<FaultSchedule> scenarios = new ArrayList<FaultSchedule>();
+
+		if (parts[0].equals("single") && parts.length == 2) {
+			double time = Double.parseDouble(parts[1]);
+			for (int j = 0; j < controllers; j++) {
+				FaultSchedule s = new FaultSchedule("C" + j);
+				s.fail(time, j);
+				scenarios.add(s);
+			}
+		} else if (parts[0].equals("pairs") && parts.length == 2) {
+			double time = Double.parseDouble(parts[1]);
+			for (int i = 0; i < controllers; i++) {
+				for (int j = i + 1; j < controllers; j++) {
+					FaultSchedule s = new FaultSchedule("C" + i + "+C" + j);
+					s.fail(time, i, j);
+					scenarios.add(s);
+				}
+			}
+		} else if (parts[0].equals("random") && parts.length >= 2) {
+			int count = Integer.parseInt(parts[1]);
+			int failures = Math.min(parts.length > 2 ? Integer.parseInt(parts[2]) : 1, controllers);
+			int cuts = parts.length > 3 ? Integer.parseInt(parts[3]) : 0;
+			Random random = new Random(parts.length > 4 ? Long.parseLong(parts[4]) : 1);
+			double latest = maxTime / 2.0; // leave the second half for recovery
+			for (int n = 0; n < count; n++) {
+				FaultSchedule s = new FaultSchedule("random-" + n);
+				int[] order = shuffle(controllers, random);
+				for (int i = 0; i < failures; i++) {
+					s.fail(time(random, latest), order[i]);
+				}
+				for (int i = 0; i < cuts && topology.getLinkCount() > 0; i++) {
+					int link = random.nextInt(topology.getLinkCount());
+					s.cut(time(random, latest), topology.getLinkA(link), topology.getLinkB(link));
+				}
+				scenarios.add(s);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown fault schedule " + descriptor);
+		}
+		return scenarios;
+	}
+
+	/**
+	 * A random time between 1 s and the latest time, to the millisecond
+	 */
+	private static double time(Random random, double latest) {
+		return Math.round((1 + random.nextDouble() * (latest - 1)) * 1000) / 1000.0;
+	}
+
+	/**
+	 * A random order of 0 .. n - 1
+	 */
+	private static int[] shuffle(int n, Random random) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		return order;
+	}
+
+	/**
+	 * One statement of a schedule
+	 */
+	private static class Fault {
+		private int kind;
+		private double time; // seconds into the run
+		private int[] targets; // controller numbers for FAIL, endpoints otherwise
+		private double threshold;
+		private boolean percent;
+		private double delay; // seconds
+
+		Fault(int kind, double time, int[] targets, double threshold, boolean percent, double delay) {
+			this.kind = kind;
+			this.time = time;
+			this.targets = Arrays.copyOf(targets, targets.length);
+			this.threshold = threshold;
+			this.percent = percent;
+			this.delay = delay;
+		}
+
+		/**
+		 * Names the targets, e.g. "E0 E1 E2"
+		 */
+		String describeTargets() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < targets.length; i++) {
+				if (i > 0) {
+					sb.append(' ');
+				}
+				sb.append(kind == FAIL ? "C" + targets[i] : TopologySpec.endpointName(targets[i]));
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			if (kind == CASCADE_LOAD || kind == CASCADE_QUEUE) {
+				String t = threshold == Math.rint(threshold) ? Long.toString((long) threshold)
+						: Double.toString(threshold);
+				return "cascade " + (kind == CASCADE_LOAD ? "load " : "queue ") + t + (percent ? "% " : " ")
+						+ "after " + delay;
+			}
+			String[] names = { "fail ", "cut ", "partition " };
+			return names[kind] + describeTargets() + " at " + time;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package failover;
+
+/**
+ * Suspects the controller when no heartbeat arrived for a fixed time.
+ */
+public class FixedTimeoutDetector implements FailureDetector {
+	private long timeout;
+	private long last;
+
+	/**
+	 * @param timeout in milliseconds
+	 */
+	public FixedTimeoutDetector(long timeout) {
+		this.timeout = timeout;
+		last = Long.MIN_VALUE;
+	}
+
+	@Override
+	public void heartbeat(long now) {
+		last = now;
+	}
+
+	@Override
+	public boolean isSuspected(long now) {
+		return last != Long.MIN_VALUE && now - last >= timeout;
+	}
+
+	@Override
+	public long deadline() {
+		return last == Long.MIN_VALUE ? Long.MAX_VALUE : last + timeout;
+	}
+}
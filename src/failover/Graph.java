@@ -0,0 +1,449 @@
+package failover;
+
+/**
+ * The connections of a run as a graph over integer entity ids.
+ *
+ * Edges are collected while the topology is built and compiled into
+ * compressed-sparse-row arrays: the neighbours of vertex v are in the slots
+ * begin(v) .. end(v) - 1, so iterating them is a walk over two int arrays.
+ * Removing a connection sets its tombstone bit; adding one after the
+ * graph was compiled recompiles it on the next read. Listeners hear of
+ * every edge added or removed.
+ *
+ * Readers do not lock. Every change publishes a new immutable Snapshot
+ * with the next epoch: a removal copies the tombstones and shares the rows,
+ * a compile builds new rows. A reader that walks one Snapshot sees one
+ * consistent topology however the graph changes meanwhile.
+ *
+ * e.g.
+ * Graph.Snapshot s = g.snapshot();
+ * for (int k = s.begin(v); k < s.end(v); k++) {
+ *     if (!s.isRemoved(s.edge(k))) { visit(s.neighbour(k)); }
+ * }
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class Graph {
+	private int vertexCount;
+	private int edgeCount;
+	private int[] edgeA; // endpoints of every edge by edge id
+	private int[] edgeB;
+	private volatile long[] removed; // tombstones by edge id, copied on write
+
+	private volatile Snapshot current; // the latest published topology
+	private volatile boolean dirty;
+	private CopyOnWriteArrayList<Listener> listeners;
+
+	public Graph() {
+		vertexCount = 0;
+		edgeCount = 0;
+		edgeA = new int[16];
+		edgeB = new int[16];
+		removed = new long[1];
+		current = new Snapshot(0, 0, 0, new int[1], new int[0], new int[0], edgeA, edgeB, removed);
+		dirty = false;
+		listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	/**
+	 * Adds a listener to the changes of the graph
+	 *
+	 * @param l the listener
+	 */
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	/**
+	 * Gets the latest topology, compiling the graph first if it changed
+	 *
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		if (dirty) {
+			compile();
+		}
+		return current;
+	}
+
+	/**
+	 * Gets the epoch of the latest topology
+	 *
+	 * @return the number of snapshots published before it
+	 */
+	public long getEpoch() {
+		return snapshot().getEpoch();
+	}
+
+	/**
+	 * Adds a vertex
+	 *
+	 * @return the id of the vertex
+	 */
+	public synchronized int addVertex() {
+		dirty = true;
+		return vertexCount++;
+	}
+
+	/**
+	 * Adds an edge between two vertices
+	 *
+	 * @param a a vertex
+	 * @param b a vertex
+	 * @return the id of the edge
+	 */
+	public synchronized int addEdge(int a, int b) {
+		if (a < 0 || a >= vertexCount || b < 0 || b >= vertexCount) {
+			throw new IllegalArgumentException("Unknown vertex in edge " + a + "-" + b);
+		}
+		if (edgeCount == edgeA.length) {
+			edgeA = Arrays.copyOf(edgeA, edgeCount * 2);
+			edgeB = Arrays.copyOf(edgeB, edgeCount * 2);
+		}
+		if ((edgeCount >> 6) >= removed.length) {
+			removed = Arrays.copyOf(removed, removed.length * 2); // published snapshots keep the old array
+		}
+		edgeA[edgeCount] = a;
+		edgeB[edgeCount] = b;
+		dirty = true;
+		int edge = edgeCount++;
+		for (Listener l : listeners) {
+			l.edgeAdded(edge);
+		}
+		return edge;
+	}
+
+	/**
+	 * Removes an edge by publishing a copy of the tombstones with its bit set
+	 *
+	 * @param edge the id of the edge
+	 */
+	public synchronized void removeEdge(int edge) {
+		if (isRemoved(edge)) {
+			return;
+		}
+		long[] r = removed.clone();
+		r[edge >> 6] |= 1L << edge;
+		removed = r;
+		Snapshot s = current;
+		current = new Snapshot(s.epoch + 1, s.vertexCount, s.edgeCount, s.offsets, s.neighbours, s.edges,
+				s.edgeA, s.edgeB, r);
+		for (Listener l : listeners) {
+			l.edgeRemoved(edge);
+		}
+	}
+
+	/**
+	 * Determines if an edge has been removed
+	 *
+	 * @param edge the id of the edge
+	 * @return true if the edge is removed
+	 */
+	public boolean isRemoved(int edge) {
+		return (removed[edge >> 6] & (1L << edge)) != 0;
+	}
+
+	/**
+	 * Gets the number of vertices
+	 *
+	 * @return vertices
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Gets the number of edges, including removed edges
+	 *
+	 * @return edges
+	 */
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * Gets the first endpoint of an edge
+	 *
+	 * @param edge the id of the edge
+	 * @return the vertex
+	 */
+	public int getA(int edge) {
+		return edgeA[edge];
+	}
+
+	/**
+	 * Gets the second endpoint of an edge
+	 *
+	 * @param edge the id of the edge
+	 * @return the vertex
+	 */
+	public int getB(int edge) {
+		return edgeB[edge];
+	}
+
+	/**
+	 * Gets the first slot of a vertex in the latest topology
+	 *
+	 * @param v the vertex
+	 * @return the slot
+	 */
+	public int begin(int v) {
+		return snapshot().begin(v);
+	}
+
+	/**
+	 * Gets the slot after the last slot of a vertex in the latest topology
+	 *
+	 * @param v the vertex
+	 * @return the slot
+	 */
+	public int end(int v) {
+		return snapshot().end(v);
+	}
+
+	/**
+	 * Gets the neighbour in a slot of the latest topology
+	 *
+	 * @param slot from begin() .. end()
+	 * @return the vertex
+	 */
+	public int neighbour(int slot) {
+		return snapshot().neighbour(slot);
+	}
+
+	/**
+	 * Gets the edge in a slot of the latest topology
+	 *
+	 * @param slot from begin() .. end()
+	 * @return the id of the edge
+	 */
+	public int edge(int slot) {
+		return snapshot().edge(slot);
+	}
+
+	/**
+	 * Finds the edge between two vertices
+	 *
+	 * @param a a vertex
+	 * @param b a vertex
+	 * @return the id of an edge that is not removed or -1
+	 */
+	public int findEdge(int a, int b) {
+		return snapshot().findEdge(a, b);
+	}
+
+	/**
+	 * Gets the number of edges of a vertex that are not removed
+	 *
+	 * @param v the vertex
+	 * @return the degree
+	 */
+	public int degree(int v) {
+		return snapshot().degree(v);
+	}
+
+	/**
+	 * Compiles the edges into rows. The slots of a vertex keep the order the
+	 * edges were added in.
+	 */
+	public synchronized void compile() {
+		if (!dirty) {
+			return;
+		}
+		int[] o = new int[vertexCount + 1];
+		for (int i = 0; i < edgeCount; i++) {
+			o[edgeA[i] + 1]++;
+			o[edgeB[i] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			o[v + 1] += o[v];
+		}
+		int[] fill = Arrays.copyOf(o, vertexCount);
+		int[] n = new int[2 * edgeCount];
+		int[] e = new int[2 * edgeCount];
+		for (int i = 0; i < edgeCount; i++) {
+			int a = edgeA[i];
+			int b = edgeB[i];
+			n[fill[a]] = b;
+			e[fill[a]++] = i;
+			n[fill[b]] = a;
+			e[fill[b]++] = i;
+		}
+		current = new Snapshot(current.epoch + 1, vertexCount, edgeCount, o, n, e, edgeA, edgeB, removed);
+		dirty = false;
+	}
+
+	/**
+	 * The topology of a graph at one epoch. Never changes once published.
+	 */
+	public static final class Snapshot {
+		private final long epoch;
+		private final int vertexCount;
+		private final int edgeCount;
+		private final int[] offsets; // compiled rows, vertexCount + 1
+		private final int[] neighbours; // the vertex at the other end of each slot
+		private final int[] edges; // the edge id of each slot
+		private final int[] edgeA; // shared with the graph, read below edgeCount only
+		private final int[] edgeB;
+		private final long[] removed;
+
+		private Snapshot(long epoch, int vertexCount, int edgeCount, int[] offsets, int[] neighbours,
+				int[] edges, int[] edgeA, int[] edgeB, long[] removed) {
+			this.epoch = epoch;
+			this.vertexCount = vertexCount;
+			this.edgeCount = edgeCount;
+			this.offsets = offsets;
+			this.neighbours = neighbours;
+			this.edges = edges;
+			this.edgeA = edgeA;
+			this.edgeB = edgeB;
+			this.removed = removed;
+		}
+
+		/**
+		 * Gets the epoch
+		 *
+		 * @return the number of snapshots published before this one
+		 */
+		public long getEpoch() {
+			return epoch;
+		}
+
+		/**
+		 * Gets the number of vertices
+		 *
+		 * @return vertices
+		 */
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+		/**
+		 * Gets the number of edges, including removed edges
+		 *
+		 * @return edges
+		 */
+		public int getEdgeCount() {
+			return edgeCount;
+		}
+
+		/**
+		 * Gets the first endpoint of an edge
+		 *
+		 * @param edge the id of the edge
+		 * @return the vertex
+		 */
+		public int getA(int edge) {
+			return edgeA[edge];
+		}
+
+		/**
+		 * Gets the second endpoint of an edge
+		 *
+		 * @param edge the id of the edge
+		 * @return the vertex
+		 */
+		public int getB(int edge) {
+			return edgeB[edge];
+		}
+
+		/**
+		 * Determines if an edge was removed at this epoch
+		 *
+		 * @param edge the id of the edge
+		 * @return true if the edge is removed
+		 */
+		public boolean isRemoved(int edge) {
+			return (removed[edge >> 6] & (1L << edge)) != 0;
+		}
+
+		/**
+		 * Gets the first slot of a vertex
+		 *
+		 * @param v the vertex
+		 * @return the slot
+		 */
+		public int begin(int v) {
+			return offsets[v];
+		}
+
+		/**
+		 * Gets the slot after the last slot of a vertex
+		 *
+		 * @param v the vertex
+		 * @return the slot
+		 */
+		public int end(int v) {
+			return offsets[v + 1];
+		}
+
+		/**
+		 * Gets the neighbour in a slot
+		 *
+		 * @param slot from begin() .. end()
+		 * @return the vertex
+		 */
+		public int neighbour(int slot) {
+			return neighbours[slot];
+		}
+
+		/**
+		 * Gets the edge in a slot
+		 *
+		 * @param slot from begin() .. end()
+		 * @return the id of the edge
+		 */
+		public int edge(int slot) {
+			return edges[slot];
+		}
+
+		/**
+		 * Finds the edge between two vertices
+		 *
+		 * @param a a vertex
+		 * @param b a vertex
+		 * @return the id of an edge that is not removed or -1
+		 */
+		public int findEdge(int a, int b) {
+			for (int k = offsets[a]; k < offsets[a + 1]; k++) {
+				if (neighbours[k] == b && !isRemoved(edges[k])) {
+					return edges[k];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Gets the number of edges of a vertex that are not removed
+		 *
+		 * @param v the vertex
+		 * @return the degree
+		 */
+		public int degree(int v) {
+			int d = 0;
+			for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+				if (!isRemoved(edges[k])) {
+					d++;
+				}
+			}
+			return d;
+		}
+	}
+
+	/**
+	 * Hears of the changes of a graph. Called while the graph is locked.
+	 */
+	public interface Listener {
+		/**
+		 * @param edge the id of the added edge
+		 */
+		public void edgeAdded(int edge);
+
+		/**
+		 * @param edge the id of the removed edge
+		 */
+		public void edgeRemoved(int edge);
+	}
+}
@@ -0,0 +1,160 @@
+package failover;
+
+/**
+ * A log-linear histogram of non-negative values.
+ *
+ * Values below 32 have a bucket each. Above that every power of two is cut
+ * into 32 buckets, so a bucket is at most about 3% wide and a histogram of
+ * any long value has fewer than 2000 buckets. Recording is a few shifts and
+ * an array increment. A histogram is not thread-safe: Metrics gives every
+ * thread its own and adds them together for a snapshot.
+ */
+
+import java.io.Serializable;
+
+public class Histogram implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private long[] counts;
+	private long count;
+	private long sum;
+	private long min;
+	private long max;
+
+	public Histogram() {
+		counts = new long[BUCKETS];
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Adds the values of another histogram to this one
+	 *
+	 * @param h the other histogram
+	 */
+	public void add(Histogram h) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += h.counts[i];
+		}
+		count += h.count;
+		sum += h.sum;
+		min = Math.min(min, h.min);
+		max = Math.max(max, h.max);
+	}
+
+	/**
+	 * Gets the number of values recorded
+	 *
+	 * @return count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the exact mean of the values
+	 *
+	 * @return mean or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Gets the smallest value recorded
+	 *
+	 * @return min or 0 if nothing was recorded
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * Gets the largest value recorded
+	 *
+	 * @return max
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Gets a percentile of the values, to within the width of a bucket
+	 *
+	 * @param percent between 0 and 100
+	 * @return the middle of the bucket holding the percentile, or 0 if
+	 *         nothing was recorded
+	 */
+	public long getPercentile(double percent) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				long low = lowest(i);
+				long high = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+				long middle = low + (high - low) / 2;
+				return Math.max(getMin(), Math.min(max, middle));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Gets the bucket of a value
+	 *
+	 * @param value non-negative
+	 * @return the index of the bucket
+	 */
+	private static int index(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return exponent * SUB + (int) (value >>> exponent);
+	}
+
+	/**
+	 * Gets the lowest value of a bucket
+	 *
+	 * @param index of the bucket
+	 * @return the lowest value
+	 */
+	private static long lowest(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int exponent = index / SUB - 1;
+		return (long) (index % SUB + SUB) << exponent;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + String.format("%.1f", getMean()) + " p50=" + getPercentile(50)
+				+ " p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + max;
+	}
+}
@@ -0,0 +1,321 @@
+package failover;
+
+/**
+ * The X2 and controller connections of a run as links that take time:
+ * messages wait in a FIFO transmit queue, are shaped by a token bucket,
+ * take their size over the capacity of the link to send and then the
+ * propagation delay of the link to arrive.
+ *
+ * Each direction of a connection is a link of its own. Its state is a few
+ * entries in flat arrays indexed by 2 * edge + direction: the time the link
+ * is busy until, the tokens of its bucket and the messages in flight, which
+ * are linked through the messages themselves. Messages leave in order and
+ * all take the same propagation delay, so they also arrive in order and one
+ * timer per busy link delivers them. Sending a message allocates nothing,
+ * and a message that arrives at once on an idle link is delivered without a
+ * timer.
+ *
+ * When the messages waiting on a link would take longer than the queue
+ * limit to send, a new message is dropped and goes back to the pool; the
+ * orphans ask again. A message the full mailbox of its receiver rejects on
+ * arrival goes back to its sender, see Entity.rejected(). Heartbeats are
+ * not messages and are not delayed.
+ *
+ * Every link has the propagation delay and capacity of the run unless its
+ * connection sets its own (see SimContext.setLink()). A capacity or queue
+ * limit of 0 is unlimited.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Links {
+	// what the receiver does with a message
+	public static final int REQUEST = 0; // messageController()
+	public static final int RESPONSE = 1; // sendAdoptionMessage()
+	public static final int ACCEPT = 2; // acceptAdoption()
+	private static final int LOCKS = 64;
+
+	private SimContext ctx;
+	private double delay; // milliseconds
+	private double rate; // bytes per millisecond, 0 for unlimited
+	private double queueBytes; // most bytes waiting on a link, 0 for unlimited
+	private double shapeRate; // tokens per millisecond, 0 for no shaping
+	private double burst; // most tokens in a bucket
+	private double[] edgeDelay; // of connections with their own, -1 for the run's
+	private double[] edgeRate;
+	private Object[] locks; // a link is guarded by the lock of its index modulo LOCKS
+	private volatile double[] busyUntil; // null until the first message
+	private double[] tokens;
+	private double[] tokensAt; // time the tokens were counted
+	private Message[] heads; // in flight, the next to arrive first
+	private Message[] tails;
+	private Runnable[] arrivals; // of every link that had a message in flight
+	private LongAdder sent;
+	private LongAdder bytes;
+	private LongAdder dropped;
+
+	/**
+	 * @param ctx the run
+	 * @param delay propagation delay of a link in milliseconds
+	 * @param mbps capacity of a link in Mbit/s, 0 for unlimited
+	 * @param queueKB most kilobytes waiting on a link, 0 for unlimited
+	 * @param shapeMbps rate of the token bucket of a link in Mbit/s, 0 for
+	 *            no shaping
+	 * @param burstKB size of the token bucket in kilobytes
+	 */
+	public Links(SimContext ctx, double delay, double mbps, double queueKB, double shapeMbps, double burstKB) {
+		this.ctx = ctx;
+		this.delay = delay;
+		rate = bytesPerMilli(mbps);
+		queueBytes = queueKB * 1024;
+		shapeRate = bytesPerMilli(shapeMbps);
+		burst = burstKB * 1024;
+		edgeDelay = new double[0];
+		edgeRate = new double[0];
+		locks = new Object[LOCKS];
+		for (int i = 0; i < LOCKS; i++) {
+			locks[i] = new Object();
+		}
+		busyUntil = null;
+		sent = new LongAdder();
+		bytes = new LongAdder();
+		dropped = new LongAdder();
+	}
+
+	/**
+	 * Converts Mbit/s to bytes per millisecond
+	 */
+	private static double bytesPerMilli(double mbps) {
+		return mbps * 1000000 / 8 / 1000;
+	}
+
+	/**
+	 * Gives a connection its own propagation delay and capacity. Called
+	 * while the topology is built.
+	 *
+	 * @param edge the id of the connection
+	 * @param delay in milliseconds
+	 * @param mbps capacity in Mbit/s, 0 for unlimited
+	 */
+	public synchronized void configure(int edge, double delay, double mbps) {
+		if (edge >= edgeDelay.length) {
+			int n = Math.max(edge + 1, 2 * edgeDelay.length);
+			int old = edgeDelay.length;
+			edgeDelay = Arrays.copyOf(edgeDelay, n);
+			edgeRate = Arrays.copyOf(edgeRate, n);
+			Arrays.fill(edgeDelay, old, n, -1);
+			Arrays.fill(edgeRate, old, n, -1);
+		}
+		edgeDelay[edge] = delay;
+		edgeRate[edge] = bytesPerMilli(mbps);
+	}
+
+	/**
+	 * Allocates the links for the first message, once the graph is built
+	 */
+	private synchronized void allocate() {
+		if (busyUntil != null) {
+			return;
+		}
+		int links = 2 * ctx.getGraph().getEdgeCount();
+		tokens = new double[links];
+		tokensAt = new double[links];
+		heads = new Message[links];
+		tails = new Message[links];
+		arrivals = new Runnable[links];
+		busyUntil = new double[links]; // published last, see transmit()
+	}
+
+	/**
+	 * Sends a message over the connection between two neighbours. Entities
+	 * that are not neighbours, e.g. an orphan that hears from its own
+	 * controller, get the message at once.
+	 *
+	 * @param from the sender
+	 * @param to the receiver
+	 * @param kind REQUEST, RESPONSE or ACCEPT
+	 * @param m the message or batch
+	 */
+	public void transmit(Entity from, Entity to, int kind, Message m) {
+		Graph g = ctx.getGraph();
+		int edge = g.findEdge(from.getId(), to.getId());
+		if (edge < 0) {
+			deliver(from, to, kind, m);
+			return;
+		}
+		if (busyUntil == null) {
+			allocate();
+		}
+		int link = 2 * edge + (g.getA(edge) == from.getId() ? 0 : 1);
+		double propagation = delay;
+		double capacity = rate;
+		if (edge < edgeDelay.length && edgeDelay[edge] >= 0) {
+			propagation = edgeDelay[edge];
+			capacity = edgeRate[edge];
+		}
+		int size = m.size();
+		long now = ctx.currentTimeMillis();
+
+		double arrival;
+		boolean queued = false;
+		synchronized (locks[link % LOCKS]) {
+			double start = Math.max(now, busyUntil[link]);
+			double t = 0;
+			if (shapeRate > 0) {
+				t = Math.min(burst, tokens[link] + (start - tokensAt[link]) * shapeRate);
+				if (t < size) {
+					start += (size - t) / shapeRate; // wait for the tokens
+					t = size;
+				}
+			}
+			double drain = shapeRate > 0 && (capacity == 0 || shapeRate < capacity) ? shapeRate : capacity;
+			if (queueBytes > 0 && drain > 0 && (start - now) * drain > queueBytes) {
+				arrival = -1; // the transmit queue is full
+			} else {
+				if (shapeRate > 0) {
+					tokens[link] = t - size;
+					tokensAt[link] = start;
+				}
+				busyUntil[link] = capacity > 0 ? start + size / capacity : start;
+				arrival = busyUntil[link] + propagation;
+				if (arrival > now || heads[link] != null) {
+					queued = true;
+					m.setTransit(kind, arrival);
+					if (heads[link] == null) {
+						heads[link] = m;
+						schedule(link, arrival - now);
+					} else {
+						tails[link].setFollowing(m);
+					}
+					tails[link] = m;
+				}
+			}
+		}
+
+		if (arrival < 0) {
+			dropped.increment();
+			Mailbox.release(m);
+			ctx.getMetrics().count(from.getId(), Metrics.DROPPED);
+			return;
+		}
+		sent.increment();
+		bytes.add(size);
+		ctx.getMetrics().record(Metrics.LINK_DELAY, Math.round(arrival - now));
+		if (!queued) {
+			deliver(from, to, kind, m); // an idle link without delay
+		}
+	}
+
+	/**
+	 * Schedules the delivery of the next messages of a link. Called with
+	 * the lock of the link.
+	 *
+	 * @param link the link
+	 * @param delay until the first arrives, in milliseconds
+	 */
+	private void schedule(final int link, double delay) {
+		if (arrivals[link] == null) {
+			arrivals[link] = new Runnable() {
+				@Override
+				public void run() {
+					arrive(link);
+				}
+			};
+		}
+		ctx.getTimers().schedule(Math.max(0, (long) Math.ceil(delay)), arrivals[link]);
+	}
+
+	/**
+	 * Delivers the messages of a link that have arrived
+	 *
+	 * @param link the link
+	 */
+	private void arrive(int link) {
+		Message first;
+		synchronized (locks[link % LOCKS]) {
+			long now = ctx.currentTimeMillis();
+			first = heads[link];
+			Message last = null;
+			Message m = first;
+			while (m != null && m.getArrival() <= now) {
+				last = m;
+				m = m.getFollowing();
+			}
+			heads[link] = m;
+			if (m == null) {
+				tails[link] = null;
+			} else {
+				schedule(link, m.getArrival() - now);
+			}
+			if (last == null) {
+				return; // the timer was early
+			}
+			last.setFollowing(null);
+		}
+
+		Graph g = ctx.getGraph();
+		int edge = link / 2;
+		Entity a = ctx.getEntity(g.getA(edge));
+		Entity b = ctx.getEntity(g.getB(edge));
+		Entity from = link % 2 == 0 ? a : b;
+		Entity to = link % 2 == 0 ? b : a;
+		while (first != null) {
+			Message m = first;
+			first = m.getFollowing();
+			int kind = m.getTransitKind();
+			m.setFollowing(null);
+			deliver(from, to, kind, m);
+		}
+	}
+
+	/**
+	 * Hands a message to its receiver, and back to the sender if a full
+	 * mailbox of the receiver rejected it
+	 *
+	 * @param from the sender
+	 * @param to the receiver
+	 * @param kind REQUEST, RESPONSE or ACCEPT
+	 * @param m the message or batch
+	 */
+	static void deliver(Entity from, Entity to, int kind, Message m) {
+		boolean taken = true;
+		if (kind == REQUEST) {
+			taken = to.messageController(m);
+		} else if (kind == RESPONSE) {
+			taken = ((ENodeB) to).sendAdoptionMessage(m);
+		} else {
+			((ENodeB) to).acceptAdoption(m, from);
+		}
+		if (!taken) {
+			from.rejected(to, kind, m);
+		}
+	}
+
+	/**
+	 * Gets the number of messages sent over links
+	 *
+	 * @return sent, a batch counts once
+	 */
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * Gets the bytes sent over links
+	 *
+	 * @return bytes
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * Gets the messages dropped by full transmit queues
+	 *
+	 * @return dropped
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+}
@@ -0,0 +1,319 @@
+package failover;
+
+/**
+ * A bounded queue of the messages waiting for an Entity.
+ *
+ * The messages are kept in a ring of fixed size, so a flood of orphan
+ * requests cannot grow the heap and queueing a message allocates nothing.
+ * Any thread may add, and the ring is allocated on the first message, so
+ * the many eNodeBs that never queue one cost nothing. Every slot has a
+ * sequence number that tells whether it is free for the next add or full
+ * for the next take (a bounded queue after Dmitry Vyukov). Taking also
+ * claims its slot with a compare-and-set, so a sender can take out the
+ * oldest message to make room.
+ *
+ * When the ring is full the policy of the mailbox decides:
+ *   BLOCK        the sender waits for the owner to take messages, for at
+ *                most a millisecond so two full mailboxes feeding each
+ *                other, or an owner on the thread of the sender, cannot
+ *                hang the run; then the message is rejected
+ *   DROP_OLDEST  the oldest message is dropped for the new one
+ *   REJECT       the new message is given back to the sender
+ *
+ * Dropped messages go back to the pool; the sender of a rejected message
+ * decides what to do with it. The mailbox counts them and remembers its
+ * peak occupancy.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class Mailbox {
+	public static final int BLOCK = 0;
+	public static final int DROP_OLDEST = 1;
+	public static final int REJECT = 2;
+	private static final String[] POLICIES = { "block", "drop-oldest", "reject" };
+	private static final long BLOCK_NANOS = 1000000; // longest wait of a blocked sender
+	private static final long PARK_NANOS = 10000;
+
+	private int capacity;
+	private int policy;
+	private Dropped dropped;
+	private volatile Message[] items; // null until the first message
+	private AtomicLongArray sequences;
+	private AtomicLong tail; // position of the next add
+	private AtomicLong head; // position of the next take
+	private AtomicLong peak;
+	private AtomicLong droppedCount;
+	private AtomicLong rejectedCount;
+	private AtomicLong blockedCount;
+
+	/**
+	 * @param capacity the most messages held, rounded up to a power of two
+	 * @param policy BLOCK, DROP_OLDEST or REJECT
+	 * @param dropped told about messages dropped by DROP_OLDEST before they
+	 *            go back to the pool, or null
+	 */
+	public Mailbox(int capacity, int policy, Dropped dropped) {
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.policy = policy;
+		this.dropped = dropped;
+		items = null;
+		tail = new AtomicLong(0);
+		head = new AtomicLong(0);
+		peak = new AtomicLong(0);
+		droppedCount = new AtomicLong(0);
+		rejectedCount = new AtomicLong(0);
+		blockedCount = new AtomicLong(0);
+	}
+
+	/**
+	 * Gets a policy by name
+	 *
+	 * @param name block, drop-oldest or reject
+	 * @return BLOCK, DROP_OLDEST or REJECT
+	 */
+	public static int policy(String name) {
+		for (int i = 0; i < POLICIES.length; i++) {
+			if (POLICIES[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown mailbox policy " + name);
+	}
+
+	/**
+	 * Gets the name of a policy
+	 *
+	 * @param policy BLOCK, DROP_OLDEST or REJECT
+	 * @return the name
+	 */
+	public static String policyName(int policy) {
+		return POLICIES[policy];
+	}
+
+	/**
+	 * Adds a message, or a batch of responses linked through
+	 * Message.getNext()
+	 *
+	 * @param m the message
+	 * @return false if the message was rejected; the sender still has it
+	 */
+	public boolean offer(Message m) {
+		if (items == null) {
+			allocate();
+		}
+		if (add(m)) {
+			return true;
+		}
+		if (policy == DROP_OLDEST) {
+			do {
+				Message oldest = poll();
+				if (oldest != null) {
+					droppedCount.incrementAndGet();
+					if (dropped != null) {
+						dropped.dropped(oldest);
+					}
+					release(oldest);
+				}
+			} while (!add(m));
+			return true;
+		}
+		if (policy == BLOCK) {
+			blockedCount.incrementAndGet();
+			long deadline = System.nanoTime() + BLOCK_NANOS;
+			while (System.nanoTime() < deadline) {
+				LockSupport.parkNanos(PARK_NANOS);
+				if (add(m)) {
+					return true;
+				}
+			}
+		}
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Allocates the ring for the first message
+	 */
+	private synchronized void allocate() {
+		if (items != null) {
+			return;
+		}
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+		items = new Message[capacity]; // published last, see offer()
+	}
+
+	/**
+	 * Puts a message in the next free slot
+	 *
+	 * @return false if the ring is full
+	 */
+	private boolean add(Message m) {
+		Message[] ring = items;
+		int mask = capacity - 1;
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & mask;
+			long d = sequences.get(i) - pos;
+			if (d == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					ring[i] = m;
+					sequences.set(i, pos + 1); // full for the take at pos
+					break;
+				}
+				pos = tail.get();
+			} else if (d < 0) {
+				return false; // the take of the last round has not happened
+			} else {
+				pos = tail.get(); // another sender took the slot
+			}
+		}
+		long size = pos + 1 - head.get();
+		for (long p = peak.get(); size > p && !peak.compareAndSet(p, size);) {
+			p = peak.get();
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the oldest message
+	 *
+	 * @return the message or null if the mailbox is empty
+	 */
+	public Message poll() {
+		Message[] ring = items;
+		if (ring == null) {
+			return null;
+		}
+		int mask = capacity - 1;
+		long pos = head.get();
+		while (true) {
+			int i = (int) pos & mask;
+			long d = sequences.get(i) - (pos + 1);
+			if (d == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					Message m = ring[i];
+					ring[i] = null;
+					sequences.set(i, pos + capacity); // free for the add of the next round
+					return m;
+				}
+				pos = head.get();
+			} else if (d < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Takes up to as many messages as fit, oldest first
+	 *
+	 * @param into where the messages go
+	 * @return the number of messages taken, 0 if the mailbox is empty
+	 */
+	public int drain(Message[] into) {
+		int n = 0;
+		while (n < into.length) {
+			Message m = poll();
+			if (m == null) {
+				break;
+			}
+			into[n++] = m;
+		}
+		return n;
+	}
+
+	/**
+	 * Tells whether the mailbox is empty
+	 *
+	 * @return true if there is nothing to take
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the number of messages waiting
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * Gets the most messages the mailbox holds
+	 *
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the most messages that waited at once
+	 *
+	 * @return peak occupancy
+	 */
+	public long getPeak() {
+		return peak.get();
+	}
+
+	/**
+	 * Gets the messages dropped for newer ones
+	 *
+	 * @return dropped
+	 */
+	public long getDropped() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Gets the messages given back to their senders
+	 *
+	 * @return rejected
+	 */
+	public long getRejected() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Gets the times a sender waited for room
+	 *
+	 * @return blocked
+	 */
+	public long getBlocked() {
+		return blockedCount.get();
+	}
+
+	/**
+	 * Gives a message and the rest of its batch back to the pool
+	 *
+	 * @param m the message or batch
+	 */
+	public static void release(Message m) {
+		while (m != null) {
+			Message next = m.getNext();
+			m.setNext(null);
+			m.release();
+			m = next;
+		}
+	}
+
+	/**
+	 * Hears of messages dropped by DROP_OLDEST, e.g. to forget an admitted
+	 * request. Called on the thread of the sender of the newer message.
+	 */
+	public interface Dropped {
+		/**
+		 * @param m the message, still linked to the rest of its batch
+		 */
+		public void dropped(Message m);
+	}
+}
@@ -1,24 +1,85 @@
 package failover;
 
-import java.util.ArrayList;
 /**
  * This is a message that gets sent
  * between eNodeBs and Controllers
  * 
+ * Messages are taken from the MessagePool
+ * of the run and given back once they are
+ * delivered or dropped. The breadcrumbs are
+ * entity ids on a preallocated int stack, so
+ * forwarding a message allocates nothing.
+ * 
+ * On the way back a message is a response of
+ * the controller: an adoption, or a deferral
+ * or rejection when the controller is full.
+ * On the way out it carries the controllers
+ * the orphan avoids after such responses.
+ * 
  * @author nathankong
  *
  */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class Message {
-	private Controller controller;
-	private ENodeB orphan;
-	private ArrayList<ENodeB> eNodeB;
+	public static final int MAX_HOPS = 256; // breadcrumbs a message can hold
+	public static final int MAX_AVOID = 8; // controllers a message can avoid
+	
+	// responses of a controller
+	public static final int ADOPT = 0;
+	public static final int DEFER = 1; // the admission queue is full, retry later
+	public static final int REJECT = 2; // the controller takes no more eNodeBs
+	public static final int TAKEOVER = 3; // an adoption unasked, the controller of the eNodeB failed
+	
+	private SimContext ctx;
+	private int controller; // id of the adopting controller or -1
+	private int orphan; // id of the orphan
+	private int[] eNodeB; // breadcrumbs
+	private int depth;
 	private int hops;
+	private int sequence; // the broadcast round of the orphan
+	private int type; // ADOPT, DEFER or REJECT
+	private long retryAfter; // milliseconds, for DEFER
+	private long queuedAt; // time the controller admitted the request
+	private int[] avoid; // ids of controllers the orphan avoids
+	private int avoidCount;
+	private Message next; // next response of a batch
+	private Message following; // next message in flight on the same link, see Links
+	private int transitKind; // what the receiver does with the message in flight
+	private double arrival; // time the message in flight arrives, in milliseconds
+	private int target; // id of the controller a unicast request goes to, of the failed one for TAKEOVER, or -1
+	private boolean pooled;
+	
+	Message (SimContext ctx){
+		this.ctx = ctx;
+		this.eNodeB = new int[MAX_HOPS];
+		this.avoid = new int[MAX_AVOID];
+		this.pooled = false;
+	}
 	
-	public Message (ENodeB orphan){
-		controller = null;
-		this.orphan = orphan;
-		this.eNodeB = new ArrayList<ENodeB>();
+	/**
+	 * Starts a new orphan message
+	 * 
+	 * @param orphan the orphan eNodeB
+	 * @param sequence the broadcast round of the orphan
+	 */
+	void reset(ENodeB orphan, int sequence) {
+		controller = -1;
+		this.orphan = orphan.getId();
+		this.sequence = sequence;
+		this.depth = 0;
 		this.hops = 1; // includes the last hop to the controller
+		this.type = ADOPT;
+		this.retryAfter = 0;
+		this.queuedAt = 0;
+		this.avoidCount = 0;
+		this.next = null;
+		this.following = null;
+		this.target = -1;
+		this.pooled = false;
 	}
 	
 	/**
@@ -28,7 +89,203 @@ public class Message {
 	 * @param c the controller
 	 */
 	public void setController(Controller c) {
-		controller = c;
+		controller = c.getId();
+	}
+	
+	/**
+	 * Makes the message a response of
+	 * the controller
+	 * 
+	 * @param type ADOPT, DEFER, REJECT or TAKEOVER
+	 * @param retryAfter milliseconds before a deferred orphan tries the controller again
+	 */
+	public void setResponse(int type, long retryAfter) {
+		this.type = type;
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * Gets the response of the controller
+	 * 
+	 * @return ADOPT, DEFER, REJECT or TAKEOVER
+	 */
+	public int getType() {
+		return type;
+	}
+	
+	/**
+	 * Gets the time a deferred orphan
+	 * waits for the controller
+	 * 
+	 * @return milliseconds
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	
+	/**
+	 * Stamps the message when the
+	 * controller admits it
+	 * 
+	 * @param time in milliseconds
+	 */
+	public void setQueuedAt(long time) {
+		queuedAt = time;
+	}
+	
+	/**
+	 * Gets the time the controller
+	 * admitted the message
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+	
+	/**
+	 * Sets the controllers the orphan
+	 * avoids
+	 * 
+	 * @param ids of the controllers
+	 * @param n the number of ids, at most MAX_AVOID
+	 */
+	public void setAvoid(int[] ids, int n) {
+		System.arraycopy(ids, 0, avoid, 0, n);
+		avoidCount = n;
+	}
+	
+	/**
+	 * Tells if the orphan avoids
+	 * a controller
+	 * 
+	 * @param controller id of the controller
+	 * @return true if the request must not go to it
+	 */
+	public boolean avoids(int controller) {
+		for (int i = 0; i < avoidCount; i++) {
+			if (avoid[i] == controller) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends the request to one backup
+	 * controller instead of any controller,
+	 * or names the failed controller in a
+	 * TAKEOVER
+	 * 
+	 * @param c id of the controller
+	 */
+	public void setTarget(int c) {
+		target = c;
+	}
+	
+	/**
+	 * Gets the controller a unicast
+	 * request goes to
+	 * 
+	 * @return id of the controller or -1 for any controller
+	 */
+	public int getTarget() {
+		return target;
+	}
+	
+	/**
+	 * Links the next response of a batch
+	 * 
+	 * @param m the next response or null
+	 */
+	public void setNext(Message m) {
+		next = m;
+	}
+	
+	/**
+	 * Gets the next response of a batch
+	 * 
+	 * @return the next response or null
+	 */
+	public Message getNext() {
+		return next;
+	}
+	
+	/**
+	 * Puts the message in flight on a link
+	 * 
+	 * @param kind Links.REQUEST, RESPONSE or ACCEPT
+	 * @param arrival time it arrives in milliseconds
+	 */
+	void setTransit(int kind, double arrival) {
+		transitKind = kind;
+		this.arrival = arrival;
+	}
+	
+	/**
+	 * Gets what the receiver does with
+	 * the message in flight
+	 * 
+	 * @return Links.REQUEST, RESPONSE or ACCEPT
+	 */
+	int getTransitKind() {
+		return transitKind;
+	}
+	
+	/**
+	 * Gets the time the message in
+	 * flight arrives
+	 * 
+	 * @return time in milliseconds
+	 */
+	double getArrival() {
+		return arrival;
+	}
+	
+	/**
+	 * Links the next message in flight
+	 * on the same link
+	 * 
+	 * @param m the next message or null
+	 */
+	void setFollowing(Message m) {
+		following = m;
+	}
+	
+	/**
+	 * Gets the next message in flight
+	 * on the same link
+	 * 
+	 * @return the next message or null
+	 */
+	Message getFollowing() {
+		return following;
+	}
+	
+	/**
+	 * Gets the size of the message and
+	 * the rest of its batch on a link,
+	 * as written by write()
+	 * 
+	 * @return bytes
+	 */
+	int size() {
+		int size = 0;
+		for (Message m = this; m != null; m = m.next) {
+			size += 44 + 4 * (m.depth + m.avoidCount);
+		}
+		return size;
+	}
+	
+	/**
+	 * Gets the sequence number of the
+	 * orphan's broadcast. Copies of the
+	 * same broadcast have the same number
+	 * 
+	 * @return sequence
+	 */
+	public int getSequence() {
+		return sequence;
 	}
 	
 	/**
@@ -50,10 +307,10 @@ public class Message {
 	 * @return the controller
 	 */
 	public Controller getController() {
-		if (controller != null) {
-			return controller;
+		if (controller >= 0) {
+			return (Controller) ctx.getEntity(controller);
 		}
-		return controller;
+		return null;
 	}
 	
 	/**
@@ -61,10 +318,15 @@ public class Message {
 	 * sends the orphan message
 	 * 
 	 * @param e
+	 * @return false if the message already has MAX_HOPS breadcrumbs
 	 */
-	public void addBreadcrumb(ENodeB e){
-		eNodeB.add(e);
+	public boolean addBreadcrumb(ENodeB e){
+		if (depth == eNodeB.length) {
+			return false;
+		}
+		eNodeB[depth++] = e.getId();
 		hops++;
+		return true;
 	}
 	
 	/**
@@ -75,8 +337,8 @@ public class Message {
 	 * @return eNodeB that sends 
 	 */
 	public ENodeB removeBreadcrumb(){
-		if(!eNodeB.isEmpty()) {
-			return eNodeB.remove(eNodeB.size()-1);
+		if(depth > 0) {
+			return (ENodeB) ctx.getEntity(eNodeB[--depth]);
 		}
 		else {
 			return null;
@@ -91,6 +353,15 @@ public class Message {
 	 * @return the orphan eNodeB
 	 */
 	public ENodeB getOrphan() {
+		return (ENodeB) ctx.getEntity(orphan);
+	}
+	
+	/**
+	 * Gets the id of the Orphan eNodeB
+	 * 
+	 * @return the id of the orphan
+	 */
+	public int getOrphanId() {
 		return orphan;
 	}
 	
@@ -98,9 +369,85 @@ public class Message {
 	 * Determines if it is at its location
 	 */
 	public boolean atOrphan(){
-		if (eNodeB.isEmpty()){
+		if (depth == 0){
 			return true;
 		}
 		return false;
 	}
+	
+	/**
+	 * Writes the message, without the rest of its
+	 * batch, for a shard in another process
+	 * 
+	 * @param out where to write
+	 * @throws IOException if it cannot be written
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeInt(controller);
+		out.writeInt(orphan);
+		out.writeInt(sequence);
+		out.writeInt(hops);
+		out.writeByte(type);
+		out.writeLong(retryAfter);
+		out.writeLong(queuedAt);
+		out.writeInt(target);
+		out.writeShort(depth);
+		for (int i = 0; i < depth; i++) {
+			out.writeInt(eNodeB[i]);
+		}
+		out.writeByte(avoidCount);
+		for (int i = 0; i < avoidCount; i++) {
+			out.writeInt(avoid[i]);
+		}
+	}
+	
+	/**
+	 * Reads a message written by write()
+	 * 
+	 * @param in where to read
+	 * @throws IOException if it cannot be read
+	 */
+	void read(DataInput in) throws IOException {
+		controller = in.readInt();
+		orphan = in.readInt();
+		sequence = in.readInt();
+		hops = in.readInt();
+		type = in.readByte();
+		retryAfter = in.readLong();
+		queuedAt = in.readLong();
+		target = in.readInt();
+		depth = in.readShort();
+		for (int i = 0; i < depth; i++) {
+			eNodeB[i] = in.readInt();
+		}
+		avoidCount = in.readByte();
+		for (int i = 0; i < avoidCount; i++) {
+			avoid[i] = in.readInt();
+		}
+		next = null;
+		following = null;
+		pooled = false;
+	}
+	
+	/**
+	 * Gives the message back to the pool
+	 * once it is delivered or dropped
+	 */
+	public void release() {
+		ctx.getMessagePool().release(this);
+	}
+	
+	/**
+	 * Marks the message as in or out of the pool
+	 * 
+	 * @param pooled true when the pool holds the message
+	 * @return false if the message already was in that state
+	 */
+	boolean setPooled(boolean pooled) {
+		if (this.pooled == pooled) {
+			return false;
+		}
+		this.pooled = pooled;
+		return true;
+	}
 }
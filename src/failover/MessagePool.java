@@ -0,0 +1,98 @@
+package failover;
+
+/**
+ * Recycles the messages of a run.
+ *
+ * Messages are kept on a fixed array stack, so taking and returning one
+ * allocates nothing. When the pool is empty a new message is created, and
+ * when it is full a returned message is left to the garbage collector.
+ * Messages are taken and returned by different threads, so the pool is
+ * synchronized.
+ */
+
+import java.io.DataInput;
+import java.io.IOException;
+
+public class MessagePool {
+	private SimContext ctx;
+	private Message[] free;
+	private int size;
+	private long created;
+
+	/**
+	 * @param ctx the run
+	 * @param capacity the most messages kept for reuse
+	 */
+	public MessagePool(SimContext ctx, int capacity) {
+		this.ctx = ctx;
+		free = new Message[capacity];
+		size = 0;
+		created = 0;
+	}
+
+	/**
+	 * Takes a message for a new orphan broadcast
+	 *
+	 * @param orphan the orphan eNodeB
+	 * @param sequence the broadcast round of the orphan
+	 * @return the message
+	 */
+	public Message acquire(ENodeB orphan, int sequence) {
+		Message m = take();
+		m.reset(orphan, sequence);
+		return m;
+	}
+
+	/**
+	 * Takes a message for one that arrives from a shard in another process
+	 *
+	 * @param in where the message is read from
+	 * @return the message
+	 * @throws IOException if it cannot be read
+	 */
+	Message read(DataInput in) throws IOException {
+		Message m = take();
+		m.read(in);
+		return m;
+	}
+
+	/**
+	 * Takes a free message or creates one
+	 */
+	private Message take() {
+		Message m;
+		synchronized (this) {
+			if (size > 0) {
+				m = free[--size];
+				free[size] = null;
+			} else {
+				m = null;
+				created++;
+			}
+		}
+		if (m == null) {
+			m = new Message(ctx);
+		}
+		return m;
+	}
+
+	/**
+	 * Returns a message. Returning a message twice has no effect.
+	 *
+	 * @param m the message
+	 */
+	public synchronized void release(Message m) {
+		if (m.setPooled(true) && size < free.length) {
+			free[size++] = m;
+		}
+	}
+
+	/**
+	 * Gets the number of messages the pool had to create
+	 *
+	 * @return created
+	 */
+	public synchronized long getCreated() {
+		return created;
+	}
+}
@@ -0,0 +1,295 @@
+package failover;
+
+/**
+ * The metrics of one run: histograms of recovery latencies and hop counts,
+ * counters of the messages each Entity handled and gauges of queue depths.
+ *
+ * Every thread records into its own buffer, so recording takes no lock and
+ * threads don't contend on shared cache lines. A snapshot adds the buffers
+ * together; it is taken once the run is over, when no thread records any
+ * more.
+ */
+
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Metrics {
+	// histograms
+	public static final int DETECT = 0; // failure to orphan, milliseconds
+	public static final int ADOPT = 1; // orphan to adoption, milliseconds
+	public static final int OUTAGE = 2; // failure to adoption, milliseconds
+	public static final int HOPS = 3; // hops of the adoption
+	public static final int DEPTH = 4; // messages in a queue when it is drained
+	public static final int QUEUE_DELAY = 5; // admission to adoption at a controller, milliseconds
+	public static final int ROUTE_CHANGES = 6; // eNodeBs whose nearest controller or next hop changed
+	public static final int LINK_DELAY = 7; // sending to arrival over a link, milliseconds
+	public static final int SYNC_STALENESS = 8; // change at a controller to its arrival at another, milliseconds
+	private static final String[] HISTOGRAMS = { "detect_ms", "adopt_ms", "outage_ms", "hops", "queue_depth",
+			"queue_delay_ms", "route_changes", "link_delay_ms", "sync_staleness_ms" };
+
+	// counters of each Entity
+	public static final int FORWARDED = 0;
+	public static final int QUEUED = 1;
+	public static final int DROPPED = 2;
+	public static final int DEFERRED = 3; // requests a controller answered with DEFER
+	public static final int REJECTED = 4; // requests a controller answered with REJECT
+	private static final String[] COUNTERS = { "forwarded", "queued", "dropped", "deferred", "rejected" };
+
+	private SimContext ctx;
+	private List<Buffer> buffers;
+	private ThreadLocal<Buffer> local;
+	private Map<String, Gauge> gauges;
+	private volatile long failure; // time of the last controller failure
+
+	public Metrics(SimContext ctx) {
+		this.ctx = ctx;
+		buffers = new ArrayList<Buffer>();
+		local = new ThreadLocal<Buffer>() {
+			@Override
+			protected Buffer initialValue() {
+				Buffer b = new Buffer();
+				synchronized (buffers) {
+					buffers.add(b);
+				}
+				return b;
+			}
+		};
+		gauges = new LinkedHashMap<String, Gauge>();
+		failure = -1;
+	}
+
+	/**
+	 * Records a value in a histogram
+	 *
+	 * @param histogram DETECT, ADOPT, OUTAGE, HOPS, DEPTH, QUEUE_DELAY, ROUTE_CHANGES, LINK_DELAY or SYNC_STALENESS
+	 * @param value to record
+	 */
+	public void record(int histogram, long value) {
+		local.get().record(histogram, value);
+	}
+
+	/**
+	 * Counts a message of an Entity
+	 *
+	 * @param entity id of the Entity
+	 * @param counter FORWARDED, QUEUED, DROPPED, DEFERRED or REJECTED
+	 */
+	public void count(int entity, int counter) {
+		local.get().count(entity, counter);
+	}
+
+	/**
+	 * Registers a gauge, read when a snapshot is taken
+	 *
+	 * @param name of the gauge
+	 * @param g the gauge
+	 */
+	public synchronized void gauge(String name, Gauge g) {
+		gauges.put(name, g);
+	}
+
+	/**
+	 * Records the failure of a controller. Detection and outage times are
+	 * measured from the last failure.
+	 *
+	 * @param time of the failure in milliseconds
+	 */
+	public void failure(long time) {
+		failure = time;
+	}
+
+	/**
+	 * Gets the time of the last controller failure
+	 *
+	 * @return time in milliseconds or -1 if no controller failed
+	 */
+	public long getFailureTime() {
+		return failure;
+	}
+
+	/**
+	 * Adds the buffers of all threads together and reads the gauges
+	 *
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		Snapshot s = new Snapshot();
+		synchronized (buffers) {
+			for (Buffer b : buffers) {
+				for (int i = 0; i < HISTOGRAMS.length; i++) {
+					if (b.histograms[i] != null) {
+						s.histograms[i].add(b.histograms[i]);
+					}
+				}
+				if (s.counters.length < b.counters.length) {
+					s.counters = Arrays.copyOf(s.counters, b.counters.length);
+				}
+				for (int i = 0; i < b.counters.length; i++) {
+					s.counters[i] += b.counters[i];
+				}
+			}
+		}
+		int entities = ctx.getGraph().getVertexCount();
+		s.counters = Arrays.copyOf(s.counters, entities * COUNTERS.length);
+		s.names = new String[entities];
+		for (int id = 0; id < s.names.length; id++) {
+			Entity e = ctx.getEntity(id);
+			s.names[id] = e != null ? e.getName() : null; // null for the entities of other shards
+		}
+		synchronized (this) {
+			for (Map.Entry<String, Gauge> g : gauges.entrySet()) {
+				s.gauges.put(g.getKey(), g.getValue().value());
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * A value read when a snapshot is taken
+	 */
+	public interface Gauge {
+		/**
+		 * @return the current value
+		 */
+		public long value();
+	}
+
+	/**
+	 * The metrics recorded by one thread. A histogram is created when the
+	 * thread first records in it, since with a thread per Entity most
+	 * threads record in few histograms or none.
+	 */
+	private static class Buffer {
+		private Histogram[] histograms; // null until recorded in
+		private long[] counters; // COUNTERS per Entity id
+
+		Buffer() {
+			histograms = new Histogram[HISTOGRAMS.length];
+			counters = new long[0];
+		}
+
+		void record(int histogram, long value) {
+			Histogram h = histograms[histogram];
+			if (h == null) {
+				h = new Histogram();
+				histograms[histogram] = h;
+			}
+			h.record(value);
+		}
+
+		void count(int entity, int counter) {
+			int i = entity * COUNTERS.length + counter;
+			if (i >= counters.length) {
+				counters = Arrays.copyOf(counters, Math.max(i + 1, 2 * counters.length));
+			}
+			counters[i]++;
+		}
+	}
+
+	/**
+	 * The metrics of a run at one point in time
+	 */
+	public static class Snapshot implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private Histogram[] histograms;
+		private long[] counters;
+		private String[] names; // of the entities by id
+		private Map<String, Long> gauges;
+
+		Snapshot() {
+			histograms = new Histogram[HISTOGRAMS.length];
+			for (int i = 0; i < histograms.length; i++) {
+				histograms[i] = new Histogram();
+			}
+			counters = new long[0];
+			names = new String[0];
+			gauges = new LinkedHashMap<String, Long>();
+		}
+
+		/**
+		 * Gets a histogram
+		 *
+		 * @param histogram DETECT, ADOPT, OUTAGE, HOPS, DEPTH, QUEUE_DELAY, ROUTE_CHANGES, LINK_DELAY or SYNC_STALENESS
+		 * @return the histogram
+		 */
+		public Histogram getHistogram(int histogram) {
+			return histograms[histogram];
+		}
+
+		/**
+		 * Gets a counter of an Entity
+		 *
+		 * @param entity id of the Entity
+		 * @param counter FORWARDED, QUEUED, DROPPED, DEFERRED or REJECTED
+		 * @return the count
+		 */
+		public long getCounter(int entity, int counter) {
+			int i = entity * COUNTERS.length + counter;
+			return i < counters.length ? counters[i] : 0;
+		}
+
+		/**
+		 * Gets a counter summed over all entities
+		 *
+		 * @param counter FORWARDED, QUEUED, DROPPED, DEFERRED or REJECTED
+		 * @return the total
+		 */
+		public long getTotal(int counter) {
+			long total = 0;
+			for (int i = counter; i < counters.length; i += COUNTERS.length) {
+				total += counters[i];
+			}
+			return total;
+		}
+
+		/**
+		 * Gets the gauges
+		 *
+		 * @return the value of each gauge by name
+		 */
+		public Map<String, Long> getGauges() {
+			return gauges;
+		}
+
+		/**
+		 * Adds the histograms of another snapshot to the histograms of this
+		 * one, e.g. to merge the runs of a simulation
+		 *
+		 * @param s the other snapshot
+		 */
+		public void addHistograms(Snapshot s) {
+			for (int i = 0; i < histograms.length; i++) {
+				histograms[i].add(s.histograms[i]);
+			}
+		}
+
+		/**
+		 * Writes the snapshot, one metric per line
+		 *
+		 * @param out where to write
+		 */
+		public void write(PrintStream out) {
+			for (int i = 0; i < histograms.length; i++) {
+				out.println("histogram " + HISTOGRAMS[i] + " " + histograms[i]);
+			}
+			for (int id = 0; id < names.length; id++) {
+				if (names[id] == null) {
+					continue;
+				}
+				StringBuilder s = new StringBuilder("counter ").append(names[id]);
+				for (int c = 0; c < COUNTERS.length; c++) {
+					s.append(" ").append(COUNTERS[c]).append("=").append(getCounter(id, c));
+				}
+				out.println(s);
+			}
+			for (Map.Entry<String, Long> g : gauges.entrySet()) {
+				out.println("gauge " + g.getKey() + " " + g.getValue());
+			}
+		}
+	}
+}
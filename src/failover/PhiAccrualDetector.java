@@ -0,0 +1,118 @@
+package failover;
+
+/**
+ * The phi accrual failure detector (Hayashibara et al.).
+ *
+ * The intervals between heartbeats are kept in a sliding window and modelled
+ * as a normal distribution. phi is -log10 of the probability that a
+ * heartbeat still arrives after the time since the last one, so phi = 8
+ * means the chance of a false suspicion is about 1 in 10^8. The normal
+ * distribution is approximated with a logistic function, as in Akka.
+ */
+public class PhiAccrualDetector implements FailureDetector {
+	private double threshold;
+	private long[] intervals; // sliding window
+	private int count;
+	private int next;
+	private double sum;
+	private double squares;
+	private long minStdDev;
+	private long last;
+
+	/**
+	 * @param threshold phi at which the controller is suspected
+	 * @param window the number of intervals kept
+	 * @param firstInterval the expected interval before any heartbeat arrived, in milliseconds
+	 * @param minStdDev the smallest standard deviation used, in milliseconds
+	 */
+	public PhiAccrualDetector(double threshold, int window, long firstInterval, long minStdDev) {
+		this.threshold = threshold;
+		this.minStdDev = Math.max(1, minStdDev);
+		intervals = new long[window];
+		count = 0;
+		next = 0;
+		sum = 0;
+		squares = 0;
+		last = Long.MIN_VALUE;
+		// start with a guess so the first heartbeats are not suspected
+		add(firstInterval);
+		add(firstInterval + this.minStdDev);
+	}
+
+	@Override
+	public void heartbeat(long now) {
+		if (last != Long.MIN_VALUE) {
+			add(now - last);
+		}
+		last = now;
+	}
+
+	/**
+	 * Adds an interval to the window
+	 *
+	 * @param interval in milliseconds
+	 */
+	private void add(long interval) {
+		if (count == intervals.length) {
+			long old = intervals[next];
+			sum -= old;
+			squares -= (double) old * old;
+		} else {
+			count++;
+		}
+		intervals[next] = interval;
+		next = (next + 1) % intervals.length;
+		sum += interval;
+		squares += (double) interval * interval;
+	}
+
+	/**
+	 * Gets phi at a time
+	 *
+	 * @param now the current time in milliseconds
+	 * @return phi, 0 before the first heartbeat
+	 */
+	public double phi(long now) {
+		if (last == Long.MIN_VALUE) {
+			return 0;
+		}
+		double mean = sum / count;
+		double variance = Math.max(0, squares / count - mean * mean);
+		double stdDev = Math.max(minStdDev, Math.sqrt(variance));
+
+		double y = ((now - last) - mean) / stdDev;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (now - last > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	@Override
+	public boolean isSuspected(long now) {
+		return phi(now) >= threshold;
+	}
+
+	@Override
+	public long deadline() {
+		if (last == Long.MIN_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		// phi grows with time, so search for the time it reaches the threshold
+		long low = last;
+		long high = last + Math.max(1, (long) (sum / count));
+		while (!isSuspected(high)) {
+			low = high;
+			high = last + 2 * (high - last);
+		}
+		while (high - low > 1) {
+			long mid = low + (high - low) / 2;
+			if (isSuspected(mid)) {
+				high = mid;
+			} else {
+				low = mid;
+			}
+		}
+		return high;
+	}
+}
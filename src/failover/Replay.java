@@ -0,0 +1,125 @@
+package failover;
+
+/**
+ * Runs a recorded run again on the discrete-event engine and compares the
+ * two traces.
+ *
+ * The replay uses the seed, topology, times, load, strategy and faults in
+ * the header of the trace. Every Entity draws from its own stream split off
+ * that seed, so a run recorded on the event backend replays event for
+ * event, in virtual time and much faster than it took. A run recorded on
+ * threads or actors also depends on how the threads were scheduled, so it
+ * cannot be replayed and its trace is refused. The topology is a file, a
+ * generator descriptor, Simulation1 or Simulation2.
+ *
+ * usage: Replay <trace file> [output]
+ *
+ * e.g. Replay traces/run-17.trace
+ *      Replay traces/run-17.trace output
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+
+public class Replay {
+	private static final int CONTEXT = 5; // events shown before a divergence
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: Replay <trace file> [output]");
+			return;
+		}
+		Trace recorded = Trace.read(new File(args[0]));
+		if (!recorded.getBackend().equals("events")) {
+			System.out.println(args[0] + " was recorded on " + recorded.getBackend()
+					+ ": only runs recorded on the events backend can be replayed, the others depend on how"
+					+ " their threads were scheduled");
+			return;
+		}
+		System.out.println("Replay of run " + recorded.getRun() + " (seed " + recorded.getSeed() + ") of "
+				+ recorded.getTopology() + (recorded.getStrategy().isEmpty() ? "" : " with " + recorded.getStrategy())
+				+ " recorded on " + recorded.getBackend() + ": " + recorded.getCount()
+				+ " events, " + recorded.getLength() + " bytes");
+
+		long start = System.currentTimeMillis();
+		SimContext ctx = replay(recorded);
+		long wall = System.currentTimeMillis() - start;
+		Trace replayed = ctx.getTrace();
+		System.out.println("Replayed " + replayed.getCount() + " events of " + recorded.getMaxTime() + " s in "
+				+ wall + " ms");
+
+		int d = recorded.diverges(replayed);
+		if (d < 0) {
+			System.out.println("The replay is identical to the recording");
+		} else {
+			System.out.println("First divergence at event " + d + ":");
+			Trace.Cursor a = recorded.cursor();
+			Trace.Cursor b = replayed.cursor();
+			for (int i = 0; i <= d; i++) {
+				boolean moreA = a.next();
+				boolean moreB = b.next();
+				if (i < d - CONTEXT) {
+					continue;
+				}
+				String mark = i == d ? "  recorded " : "  both     ";
+				System.out.println(mark + (moreA ? a.describe(ctx) : "end of trace"));
+				if (i == d) {
+					System.out.println("  replayed " + (moreB ? b.describe(ctx) : "end of trace"));
+				}
+			}
+		}
+		if (args.length > 1 && args[1].equals("output")) {
+			System.out.print(ctx.getOutput());
+		}
+		System.out.print(RunResult.summarize(Collections.singletonList(ctx.getResult())));
+	}
+
+	/**
+	 * Runs a recorded run again on the event backend, recording a new trace
+	 *
+	 * @param recorded the trace of the run
+	 * @return the context of the replay, with its trace
+	 * @throws IOException if the topology file cannot be read
+	 */
+	public static SimContext replay(Trace recorded) throws IOException {
+		Topology topology = topology(recorded.getTopology());
+		SimContext ctx = new SimContext(recorded.getRun(), recorded.getSeed());
+		if (!recorded.getFaults().isEmpty()) {
+			ctx.setFaults(FaultSchedule.read("trace", new StringReader(recorded.getFaults()),
+					(TopologySpec) topology).get(0)); // only runs of a TopologySpec have fault schedules
+		}
+		if (!recorded.getStrategy().isEmpty()) {
+			Strategy.parse(recorded.getStrategy()).apply(ctx);
+		}
+		Trace t = new Trace(recorded.getRun(), recorded.getSeed(), recorded.getTopology(), "events",
+				recorded.getMaxTime(), recorded.getFailTime(), recorded.getLoad());
+		t.setFaults(recorded.getFaults());
+		t.setStrategy(recorded.getStrategy());
+		ctx.setTrace(t);
+		topology.build(ctx, recorded.getMaxTime(), recorded.getFailTime(), recorded.getLoad());
+		new EventBackend().execute(ctx);
+		ctx.getResult().setMetrics(ctx.getMetrics().snapshot());
+		if (ctx.getLinks() != null) {
+			ctx.getResult().addLinks(ctx.getLinks());
+		}
+		return ctx;
+	}
+
+	/**
+	 * Gets the topology a trace names
+	 *
+	 * @param name Simulation1, Simulation2, a topology file or a generator descriptor
+	 * @return the topology
+	 * @throws IOException if the topology file cannot be read
+	 */
+	private static Topology topology(String name) throws IOException {
+		if (name.equals("Simulation1")) {
+			return new Simulation1();
+		} else if (name.equals("Simulation2")) {
+			return new Simulation2();
+		}
+		return TopologySimulation.load(name);
+	}
+}
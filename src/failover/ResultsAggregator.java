@@ -0,0 +1,299 @@
+package failover;
+
+/**
+ * Reads results logs and summarizes them per load and topology.
+ *
+ * The logs are read in memory-mapped windows straight from the page cache,
+ * one record at a time, and every statistic is kept in constant memory: a
+ * running mean and variance for the confidence interval and a Histogram
+ * for the percentiles. Logs of millions of runs are summarized without
+ * holding them on the heap.
+ *
+ * usage: ResultsAggregator <log> [log ...]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ResultsAggregator {
+	private static final long WINDOW = 1 << 20; // records mapped at a time
+
+	private Map<String, Group> groups;
+	private Map<Long, String> names; // of the topologies by hash, from the NAME records
+	private Map<Long, byte[]> nameBytes;
+	// state of the run being read
+	private boolean starting; // the next record starts a run
+	private int load;
+	private long topology;
+	private String key;
+	private double failure; // time of the last failure of the run so far, records come in time order
+
+	public ResultsAggregator() {
+		groups = new TreeMap<String, Group>();
+		names = new HashMap<Long, String>();
+		nameBytes = new HashMap<Long, byte[]>();
+		starting = true;
+		key = null;
+		failure = -1;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: ResultsAggregator <log> [log ...]");
+			return;
+		}
+		ResultsAggregator a = new ResultsAggregator();
+		for (String name : args) {
+			a.read(new File(name));
+		}
+		a.write(System.out);
+	}
+
+	/**
+	 * Adds the records of a log
+	 *
+	 * @param file the log
+	 * @throws IOException if the file cannot be read or is not a log
+	 */
+	public void read(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, ResultsLog.HEADER);
+			ResultsLog.checkHeader(header, file);
+			long count = header.getLong(ResultsLog.COUNT);
+
+			for (long first = 0; first < count; first += WINDOW) {
+				long n = Math.min(WINDOW, count - first);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+						ResultsLog.HEADER + first * ResultsLog.RECORD, n * ResultsLog.RECORD);
+				for (int r = 0; r < n; r++) {
+					record(window, r * ResultsLog.RECORD);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		starting = true;
+	}
+
+	/**
+	 * Adds one record
+	 *
+	 * @param b the mapped window
+	 * @param at offset of the record in the window
+	 */
+	private void record(MappedByteBuffer b, int at) {
+		int kind = b.getInt(at + 4);
+		int recordLoad = b.getInt(at + 8);
+		long recordTopology = b.getLong(at + 16);
+		double time = b.getDouble(at + 32);
+		if (kind == ResultsLog.NAME) {
+			name(b, at, recordTopology);
+			return;
+		}
+		if (starting || recordLoad != load || recordTopology != topology) {
+			// a run ends with its RUN record; a new load or topology is another run all the same
+			starting = false;
+			load = recordLoad;
+			topology = recordTopology;
+			String name = names.get(topology);
+			key = key(load, name != null ? name : String.format("%016x", topology));
+			failure = -1;
+		}
+		Group g = groups.get(key);
+		if (g == null) {
+			g = new Group();
+			groups.put(key, g);
+		}
+
+		switch (kind) {
+		case ResultsLog.FAILURE:
+			failure = time;
+			break;
+		case ResultsLog.ORPHAN:
+			g.orphans++;
+			break;
+		case ResultsLog.ADOPTION:
+			g.hops.add(b.getInt(at + 12));
+			if (failure >= 0) {
+				g.outage.add(time - failure);
+			}
+			break;
+		case ResultsLog.RUN:
+			g.runs++;
+			g.messages.add(b.getLong(at + 40));
+			if (time >= 0 && failure >= 0) {
+				g.recovery.add(time - failure);
+			}
+			starting = true;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Adds a part of a topology name
+	 */
+	private void name(MappedByteBuffer b, int at, long hash) {
+		byte[] bytes = new byte[ResultsLog.NAME_BYTES];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = b.get(at + 24 + i);
+		}
+		int n = bytes.length;
+		while (n > 0 && bytes[n - 1] == 0) {
+			n--;
+		}
+		byte[] name = b.getInt(at + 12) == 0 ? new byte[0] : nameBytes.get(hash);
+		name = Arrays.copyOf(name, name.length + n);
+		System.arraycopy(bytes, 0, name, name.length - n, n);
+		nameBytes.put(hash, name); // parts may split a character, so they are decoded together
+		names.put(hash, new String(name, StandardCharsets.UTF_8));
+	}
+
+	private static String key(int load, String topology) {
+		return String.format("load %3d  topology %s", load, topology);
+	}
+
+	/**
+	 * Writes one line per load and topology and statistic
+	 *
+	 * @param out where to write
+	 */
+	public void write(PrintStream out) {
+		for (Map.Entry<String, Group> e : groups.entrySet()) {
+			Group g = e.getValue();
+			out.println(e.getKey() + "  runs " + g.runs + "  orphans " + g.orphans + "  adoptions "
+					+ g.hops.getCount());
+			out.println("  recovery after failure (s)  " + g.recovery);
+			out.println("  outage per orphan (s)       " + g.outage);
+			out.println("  hops                        " + g.hops);
+			out.println("  orphan messages per run     " + g.messages);
+		}
+	}
+
+	/**
+	 * Gets the statistics of a load and topology
+	 *
+	 * @param load the percent load
+	 * @param topology name of the topology
+	 * @return the statistics or null if no run matches
+	 */
+	public Group getGroup(int load, String topology) {
+		return groups.get(key(load, topology));
+	}
+
+	/**
+	 * The runs of one load and topology
+	 */
+	public static class Group {
+		private long runs;
+		private long orphans;
+		private Statistic recovery = new Statistic(1000);
+		private Statistic outage = new Statistic(1000);
+		private Statistic hops = new Statistic(1);
+		private Statistic messages = new Statistic(1);
+
+		/**
+		 * @return the number of runs
+		 */
+		public long getRuns() {
+			return runs;
+		}
+
+		/**
+		 * @return the time from the failure to the last adoption of each run
+		 */
+		public Statistic getRecovery() {
+			return recovery;
+		}
+
+		/**
+		 * @return the time from the failure to each adoption
+		 */
+		public Statistic getOutage() {
+			return outage;
+		}
+
+		/**
+		 * @return the hops of each adoption
+		 */
+		public Statistic getHops() {
+			return hops;
+		}
+	}
+
+	/**
+	 * Mean, 95% confidence interval and percentiles of a value in constant
+	 * memory. The mean and variance are exact (Welford); the percentiles
+	 * come from a Histogram of the value times a scale.
+	 */
+	public static class Statistic {
+		private double scale;
+		private long count;
+		private double mean;
+		private double m2;
+		private Histogram histogram;
+
+		Statistic(double scale) {
+			this.scale = scale;
+			histogram = new Histogram();
+		}
+
+		void add(double x) {
+			count++;
+			double d = x - mean;
+			mean += d / count;
+			m2 += d * (x - mean);
+			histogram.record(Math.round(x * scale));
+		}
+
+		/**
+		 * @return the number of values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the mean of the values
+		 */
+		public double getMean() {
+			return mean;
+		}
+
+		/**
+		 * Gets the half width of the 95% confidence interval of the mean
+		 *
+		 * @return half width or 0 for fewer than two values
+		 */
+		public double getConfidence() {
+			return count < 2 ? 0 : 1.96 * Math.sqrt(m2 / (count - 1) / count);
+		}
+
+		/**
+		 * Gets a percentile
+		 *
+		 * @param percent between 0 and 100
+		 * @return the percentile
+		 */
+		public double getPercentile(double percent) {
+			return histogram.getPercentile(percent) / scale;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("mean %.3f +- %.3f  p50 %.3f  p90 %.3f  p99 %.3f  max %.3f", mean, getConfidence(),
+					getPercentile(50), getPercentile(90), getPercentile(99), histogram.getMax() / scale);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package failover;
+
+/**
+ * An append-only binary log of the results of runs.
+ *
+ * The file starts with a header of 32 bytes: the magic number, the version,
+ * the record size and the number of records. Then follow records of 56
+ * bytes, all big-endian:
+ *
+ *   0 int    run
+ *   4 int    kind: FAILURE, ORPHAN, ADOPTION, RUN or NAME
+ *   8 int    load
+ *  12 int    hops of an adoption, the part of a name
+ *  16 long   hash of the topology name
+ *  24 int    id of the eNodeB, or of the controller of a failure
+ *  28 int    id of the adopting controller
+ *  32 double time in seconds, the recovery time for a RUN record
+ *  40 long   orphan messages sent in the run (RUN records)
+ *  48 long   duplicates suppressed in the run (RUN records)
+ *
+ * The records of a run are appended together in time order, a failure
+ * before the orphans and adoptions of the same time, and end with its RUN
+ * record, so a reader measures every adoption from the failure before it
+ * and starts a new run after every RUN record, whatever the run numbers.
+ * Before the first run of a topology the log names it: NAME records hold
+ * 32 bytes of the UTF-8 name each from offset 24, part 0 first.
+ * Records are written through memory-mapped chunks of the file, and the
+ * record count in the header is only raised once a whole run is written, so
+ * a reader never sees half a run. One log is written by one process at a
+ * time; runs of that process can append in parallel.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ResultsLog {
+	public static final int MAGIC = 0x464F4C47; // "FOLG"
+	public static final int VERSION = 3; // 2 had no NAME records, 1 wrote the failures of a run first
+	public static final int HEADER = 32;
+	public static final int RECORD = 56;
+	public static final int COUNT = 16; // offset of the record count in the header
+
+	public static final int FAILURE = 0;
+	public static final int ORPHAN = 1;
+	public static final int ADOPTION = 2;
+	public static final int RUN = 3;
+	public static final int NAME = 4;
+	public static final int NAME_BYTES = 32; // of a name in one NAME record
+
+	private static final int CHUNK = 1 << 16; // records mapped at a time
+	private static final Comparator<RunResult.Orphan> BY_TIME = new Comparator<RunResult.Orphan>() {
+		@Override
+		public int compare(RunResult.Orphan a, RunResult.Orphan b) {
+			return Double.compare(a.time, b.time);
+		}
+	};
+
+	private FileChannel channel;
+	private MappedByteBuffer header;
+	private MappedByteBuffer chunk;
+	private long count; // records written
+	private long committed; // records in the header
+	private Set<String> named; // topologies named by this writer
+
+	/**
+	 * Opens a log for appending, creating it if there is no such file
+	 *
+	 * @param file the log
+	 * @throws IOException if the file cannot be opened or is not a log
+	 */
+	public ResultsLog(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		boolean empty = channel.size() == 0;
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+		if (empty) {
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, RECORD);
+			header.putLong(COUNT, 0);
+		} else {
+			checkHeader(header, file);
+		}
+		count = header.getLong(COUNT);
+		committed = count;
+		chunk = null;
+		named = new HashSet<String>();
+	}
+
+	/**
+	 * Checks the header of a log
+	 *
+	 * @param header the first bytes of the file
+	 * @param file the log
+	 * @throws IOException if the file is not a log of this version
+	 */
+	static void checkHeader(java.nio.ByteBuffer header, File file) throws IOException {
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD) {
+			throw new IOException(file + " is not a results log");
+		}
+	}
+
+	/**
+	 * Hashes the name of a topology (64-bit FNV-1a)
+	 *
+	 * @param name of the topology
+	 * @return the hash stored in the records
+	 */
+	public static long topologyHash(String name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Appends the results of a run that is over
+	 *
+	 * @param ctx the run
+	 * @param load the percent load of the run
+	 * @param name of the topology
+	 * @throws IOException if the file cannot grow
+	 */
+	public synchronized void append(SimContext ctx, int load, String name) throws IOException {
+		long topology = topologyHash(name);
+		if (named.add(name)) {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			for (int part = 0; part * NAME_BYTES < bytes.length; part++) {
+				reserve();
+				chunk.putInt(0);
+				chunk.putInt(NAME);
+				chunk.putInt(0);
+				chunk.putInt(part);
+				chunk.putLong(topology);
+				int from = part * NAME_BYTES;
+				int n = Math.min(NAME_BYTES, bytes.length - from);
+				chunk.put(bytes, from, n);
+				chunk.put(new byte[NAME_BYTES - n]);
+				count++;
+			}
+		}
+
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (int id = 0; id < ctx.getGraph().getVertexCount(); id++) {
+			ids.put(ctx.getEntity(id).getName(), id);
+		}
+
+		RunResult r = ctx.getResult();
+		int run = ctx.getRun();
+		List<RunResult.Orphan> failures = r.getFailures();
+		List<RunResult.Orphan> orphans = r.getOrphans();
+		List<RunResult.Adoption> adoptions = r.getAdoptions();
+		Collections.sort(failures, BY_TIME);
+		Collections.sort(orphans, BY_TIME);
+		Collections.sort(adoptions, new Comparator<RunResult.Adoption>() {
+			@Override
+			public int compare(RunResult.Adoption a, RunResult.Adoption b) {
+				return Double.compare(a.time, b.time);
+			}
+		});
+		// merge the three in time order
+		int f = 0;
+		int o = 0;
+		int a = 0;
+		while (f < failures.size() || o < orphans.size() || a < adoptions.size()) {
+			double failure = f < failures.size() ? failures.get(f).time : Double.MAX_VALUE;
+			double orphan = o < orphans.size() ? orphans.get(o).time : Double.MAX_VALUE;
+			double adoption = a < adoptions.size() ? adoptions.get(a).time : Double.MAX_VALUE;
+			if (failure <= orphan && failure <= adoption) {
+				RunResult.Orphan x = failures.get(f++);
+				append(run, FAILURE, load, 0, topology, id(ids, x.eNodeB), -1, x.time, 0, 0);
+			} else if (orphan <= adoption) {
+				RunResult.Orphan x = orphans.get(o++);
+				append(run, ORPHAN, load, 0, topology, id(ids, x.eNodeB), -1, x.time, 0, 0);
+			} else {
+				RunResult.Adoption x = adoptions.get(a++);
+				append(run, ADOPTION, load, x.hops, topology, id(ids, x.eNodeB), id(ids, x.controller), x.time, 0, 0);
+			}
+		}
+		append(run, RUN, load, 0, topology, -1, -1, r.getRecoveryTime(), r.getBroadcasts(), r.getSuppressed());
+
+		committed = count;
+		header.putLong(COUNT, committed);
+	}
+
+	private static int id(Map<String, Integer> ids, String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Maps the next chunk when the current one has no room for a record
+	 */
+	private void reserve() throws IOException {
+		if (chunk == null || chunk.remaining() < RECORD) {
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + count * RECORD, (long) CHUNK * RECORD);
+		}
+	}
+
+	/**
+	 * Writes one record into the mapped chunk
+	 */
+	private void append(int run, int kind, int load, int hops, long topology, int entity, int controller,
+			double time, long broadcasts, long suppressed) throws IOException {
+		reserve();
+		chunk.putInt(run);
+		chunk.putInt(kind);
+		chunk.putInt(load);
+		chunk.putInt(hops);
+		chunk.putLong(topology);
+		chunk.putInt(entity);
+		chunk.putInt(controller);
+		chunk.putDouble(time);
+		chunk.putLong(broadcasts);
+		chunk.putLong(suppressed);
+		count++;
+	}
+
+	/**
+	 * Gets the number of records in the log
+	 *
+	 * @return count
+	 */
+	public synchronized long getCount() {
+		return committed;
+	}
+
+	/**
+	 * Flushes the log and cuts off the unused end of the last chunk
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void close() throws IOException {
+		if (chunk != null) {
+			chunk.force();
+		}
+		header.force();
+		channel.truncate(HEADER + committed * RECORD);
+		channel.close();
+	}
+}
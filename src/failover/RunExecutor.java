@@ -0,0 +1,174 @@
+package failover;
+
+/**
+ * Runs the repetitions of a simulation in parallel.
+ *
+ * Every repetition gets its own SimContext (clock, random number generator,
+ * topology and output), so repetitions share nothing and are spread over a
+ * bounded pool with one worker per core. A repetition is reduced to its
+ * RunResult as soon as it ends, so only the contexts of the running
+ * repetitions are alive; the results are returned in run order once all
+ * repetitions are complete.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RunExecutor {
+	private int threads;
+	private ExecutionBackend backend;
+	private ResultsLog log;
+	private String topologyName;
+	private File traces; // directory of the traces, or null
+	private String traceTopology;
+	private String traceBackend;
+	private String traceFaults;
+	private FaultSchedule faults; // or null for the failures of the topology
+	private Strategy strategy; // or null for the defaults of SimContext
+	private boolean output; // keep the output of every run in its result
+
+	public RunExecutor(ExecutionBackend backend) {
+		this(Runtime.getRuntime().availableProcessors(), backend);
+	}
+
+	public RunExecutor(int threads, ExecutionBackend backend) {
+		this.threads = threads;
+		this.backend = backend;
+	}
+
+	/**
+	 * Appends the results of every run to a log
+	 *
+	 * @param log the results log
+	 * @param topology name of the topology in the log
+	 */
+	public void setResultsLog(ResultsLog log, String topology) {
+		this.log = log;
+		topologyName = topology;
+	}
+
+	/**
+	 * Sets the failover strategy of the runs
+	 *
+	 * @param strategy the strategy, or null for the defaults of SimContext
+	 */
+	public void setStrategy(Strategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Sets the failures of the runs
+	 *
+	 * @param faults the schedule, or null for the failures of the topology
+	 */
+	public void setFaults(FaultSchedule faults) {
+		this.faults = faults;
+	}
+
+	/**
+	 * Keeps what every run prints in its result, see RunResult.getOutput
+	 *
+	 * @param output false by default
+	 */
+	public void setOutput(boolean output) {
+		this.output = output;
+	}
+
+	/**
+	 * Records a trace of every run, written to run-<run>.trace in a
+	 * directory. Replay runs a trace again.
+	 *
+	 * @param dir the directory of the traces
+	 * @param topology the topology file or generator descriptor replay loads
+	 * @param backend the name of the backend
+	 * @param faults the schedule the runs use, or null for the failures of the topology
+	 */
+	public void setTraces(File dir, String topology, String backend, FaultSchedule faults) {
+		traces = dir;
+		traceTopology = topology;
+		traceBackend = backend;
+		traceFaults = faults != null ? faults.toString() : "";
+	}
+
+	/**
+	 * Runs the repetitions. Run i uses i as its seed.
+	 *
+	 * @param runs the number of repetitions
+	 * @param topology the system architecture
+	 * @param maxTime of the simulation in seconds
+	 * @param failTime of the failing controller in seconds
+	 * @param load the percent load
+	 * @return the result of each run in run order
+	 */
+	public List<RunResult> run(int runs, final Topology topology, final long maxTime, final long failTime,
+			final int load) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<RunResult>> futures = new ArrayList<Future<RunResult>>();
+
+		for (int i = 1; i <= runs; i++) {
+			final int run = i;
+			futures.add(pool.submit(new Callable<RunResult>() {
+				@Override
+				public RunResult call() {
+					SimContext ctx = new SimContext(run, run);
+					ctx.setFaults(faults);
+					if (strategy != null) {
+						strategy.apply(ctx);
+					}
+					if (traces != null) {
+						Trace t = new Trace(run, run, traceTopology, traceBackend, maxTime, failTime, load);
+						t.setFaults(traceFaults);
+						t.setStrategy(strategy != null ? strategy.toString() : "");
+						ctx.setTrace(t);
+					}
+					topology.build(ctx, maxTime, failTime, load);
+					backend.execute(ctx);
+					ctx.getResult().setMetrics(ctx.getMetrics().snapshot());
+					if (ctx.getLinks() != null) {
+						ctx.getResult().addLinks(ctx.getLinks());
+					}
+					if (log != null) {
+						try {
+							log.append(ctx, load, topologyName);
+						} catch (IOException e) {
+							throw new IllegalStateException("Cannot write the results log", e);
+						}
+					}
+					if (traces != null) {
+						try {
+							ctx.getTrace().write(new File(traces, "run-" + run + ".trace"));
+						} catch (IOException e) {
+							throw new IllegalStateException("Cannot write the trace of run " + run, e);
+						}
+					}
+					if (output) {
+						ctx.getResult().setOutput(ctx.getOutput());
+					}
+					return ctx.getResult();
+				}
+			}));
+		}
+
+		List<RunResult> results = new ArrayList<RunResult>();
+		try {
+			for (Future<RunResult> f : futures) {
+				results.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for runs", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Run failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+}
@@ -0,0 +1,621 @@
+package failover;
+
+/**
+ * The results of one run of a simulation: when eNodeBs became orphans and
+ * which controller adopted them.
+ *
+ * Results are added by the threads of the run and read once the run is over.
+ * The shards of a sharded run send their results to the launcher, which
+ * merges them into the result of the whole run.
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RunResult implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private int run;
+	private List<Orphan> orphans;
+	private List<Adoption> adoptions;
+	private long broadcasts;
+	private long suppressed;
+	private long heartbeats;
+	private long deferred;
+	private long rejected;
+	private long adoptionMessages;
+	private long responses;
+	private List<Orphan> failures;
+	private long mailboxPeak; // most messages waiting in one mailbox
+	private long mailboxDropped;
+	private long mailboxRejected;
+	private long mailboxBlocked;
+	private long linkMessages; // sent over links, a batch counts once
+	private long linkBytes;
+	private long linkDropped; // by full transmit queues
+	private long syncBatches; // east-west, one per controller it reached
+	private long syncBytes;
+	private long takeovers; // eNodeBs that joined a survivor without a request
+	private Metrics.Snapshot metrics;
+	private String output; // printed during the run, or null if not kept
+
+	public RunResult(int run) {
+		this.run = run;
+		orphans = new ArrayList<Orphan>();
+		adoptions = new ArrayList<Adoption>();
+		failures = new ArrayList<Orphan>();
+	}
+
+	/**
+	 * Gets the run number
+	 *
+	 * @return run
+	 */
+	public int getRun() {
+		return run;
+	}
+
+	/**
+	 * Records an eNodeB becoming an orphan
+	 *
+	 * @param eNodeB the name of the orphan
+	 * @param time elapsed in seconds
+	 */
+	public synchronized void addOrphan(String eNodeB, double time) {
+		orphans.add(new Orphan(eNodeB, time));
+	}
+
+	/**
+	 * Records an adoption
+	 *
+	 * @param eNodeB the name of the orphan
+	 * @param controller the name of the controller adopting it
+	 * @param hops to the controller
+	 * @param time elapsed in seconds
+	 */
+	public synchronized void addAdoption(String eNodeB, String controller, int hops, double time) {
+		adoptions.add(new Adoption(eNodeB, controller, hops, time));
+	}
+
+	/**
+	 * Adds the message counts of an Entity
+	 *
+	 * @param broadcasts orphan messages sent
+	 * @param suppressed duplicate orphan messages dropped
+	 */
+	public synchronized void addMessageCounts(long broadcasts, long suppressed) {
+		this.broadcasts += broadcasts;
+		this.suppressed += suppressed;
+	}
+
+	/**
+	 * Adds the heartbeats sent or passed on by an Entity
+	 *
+	 * @param heartbeats sent
+	 */
+	public synchronized void addHeartbeats(long heartbeats) {
+		this.heartbeats += heartbeats;
+	}
+
+	/**
+	 * Records a controller failure
+	 *
+	 * @param controller the name of the controller
+	 * @param time elapsed in seconds
+	 */
+	public synchronized void addFailure(String controller, double time) {
+		failures.add(new Orphan(controller, time));
+	}
+
+	/**
+	 * Adds the DEFER and REJECT responses of a controller
+	 *
+	 * @param deferred requests deferred
+	 * @param rejected requests rejected
+	 */
+	public synchronized void addResponses(long deferred, long rejected) {
+		this.deferred += deferred;
+		this.rejected += rejected;
+	}
+
+	/**
+	 * Adds the messages an Entity sent towards orphans
+	 *
+	 * @param messages sent, a batch counts once
+	 * @param responses sent, the messages without batching
+	 */
+	public synchronized void addAdoptionMessages(long messages, long responses) {
+		adoptionMessages += messages;
+		this.responses += responses;
+	}
+
+	/**
+	 * Adds the occupancy of a mailbox at the end of the run
+	 *
+	 * @param m the mailbox
+	 */
+	public synchronized void addMailbox(Mailbox m) {
+		mailboxPeak = Math.max(mailboxPeak, m.getPeak());
+		mailboxDropped += m.getDropped();
+		mailboxRejected += m.getRejected();
+		mailboxBlocked += m.getBlocked();
+	}
+
+	/**
+	 * Adds the traffic of the links of the run at the end of the run
+	 *
+	 * @param l the links
+	 */
+	public synchronized void addLinks(Links l) {
+		linkMessages += l.getSent();
+		linkBytes += l.getBytes();
+		linkDropped += l.getDropped();
+	}
+
+	/**
+	 * Adds the east-west traffic of a controller at the end of the run
+	 *
+	 * @param s the sync of the controller
+	 */
+	public synchronized void addSync(ControllerSync s) {
+		syncBatches += s.getBatches();
+		syncBytes += s.getBytes();
+		takeovers += s.getTakeovers();
+	}
+
+	/**
+	 * Gets the east-west batches sent between controllers
+	 *
+	 * @return batches, one per controller it reached
+	 */
+	public synchronized long getSyncBatches() {
+		return syncBatches;
+	}
+
+	/**
+	 * Gets the east-west bytes sent between controllers
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getSyncBytes() {
+		return syncBytes;
+	}
+
+	/**
+	 * Gets the eNodeBs taken over from failed controllers
+	 *
+	 * @return takeovers the eNodeBs took
+	 */
+	public synchronized long getTakeovers() {
+		return takeovers;
+	}
+
+	/**
+	 * Gets the messages sent over links
+	 *
+	 * @return messages, a batch counts once
+	 */
+	public synchronized long getLinkMessages() {
+		return linkMessages;
+	}
+
+	/**
+	 * Gets the bytes sent over links
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getLinkBytes() {
+		return linkBytes;
+	}
+
+	/**
+	 * Gets the messages full transmit queues dropped
+	 *
+	 * @return dropped
+	 */
+	public synchronized long getLinkDropped() {
+		return linkDropped;
+	}
+
+	/**
+	 * Gets the most messages that waited in one mailbox
+	 *
+	 * @return peak occupancy
+	 */
+	public synchronized long getMailboxPeak() {
+		return mailboxPeak;
+	}
+
+	/**
+	 * Gets the messages full mailboxes dropped for newer ones
+	 *
+	 * @return dropped
+	 */
+	public synchronized long getMailboxDropped() {
+		return mailboxDropped;
+	}
+
+	/**
+	 * Gets the messages full mailboxes turned away
+	 *
+	 * @return rejected
+	 */
+	public synchronized long getMailboxRejected() {
+		return mailboxRejected;
+	}
+
+	/**
+	 * Gets the times a sender waited for room in a mailbox
+	 *
+	 * @return blocked
+	 */
+	public synchronized long getMailboxBlocked() {
+		return mailboxBlocked;
+	}
+
+	/**
+	 * Gets the messages sent towards orphans
+	 *
+	 * @return adoptionMessages, a batch counts once
+	 */
+	public synchronized long getAdoptionMessages() {
+		return adoptionMessages;
+	}
+
+	/**
+	 * Gets the responses sent towards orphans
+	 *
+	 * @return responses, the messages without batching
+	 */
+	public synchronized long getResponses() {
+		return responses;
+	}
+
+	/**
+	 * Gets the requests deferred by controllers
+	 *
+	 * @return deferred
+	 */
+	public synchronized long getDeferred() {
+		return deferred;
+	}
+
+	/**
+	 * Gets the requests rejected by controllers
+	 *
+	 * @return rejected
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Gets the controllers that failed
+	 *
+	 * @return the failures, with the controller in the eNodeB field
+	 */
+	public synchronized List<Orphan> getFailures() {
+		return new ArrayList<Orphan>(failures);
+	}
+
+	/**
+	 * Sets the metrics of the run once it is over
+	 *
+	 * @param metrics snapshot
+	 */
+	public synchronized void setMetrics(Metrics.Snapshot metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the metrics of the run
+	 *
+	 * @return metrics or null if no snapshot was taken
+	 */
+	public synchronized Metrics.Snapshot getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the number of heartbeats sent
+	 *
+	 * @return heartbeats
+	 */
+	public synchronized long getHeartbeats() {
+		return heartbeats;
+	}
+
+	/**
+	 * Gets the time from the last controller failure before each orphan
+	 * was detected to its detection
+	 *
+	 * @return detection latencies in seconds
+	 */
+	public synchronized List<Double> getDetectionLatencies() {
+		List<Double> latencies = new ArrayList<Double>();
+		for (Orphan o : orphans) {
+			double failure = -1;
+			for (Orphan f : failures) {
+				if (f.time <= o.time) {
+					failure = Math.max(failure, f.time);
+				}
+			}
+			if (failure >= 0) {
+				latencies.add(o.time - failure);
+			}
+		}
+		return latencies;
+	}
+
+	/**
+	 * Gets the number of orphan messages sent
+	 *
+	 * @return broadcasts
+	 */
+	public synchronized long getBroadcasts() {
+		return broadcasts;
+	}
+
+	/**
+	 * Gets the number of duplicate orphan messages dropped
+	 *
+	 * @return suppressed
+	 */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * Gets the orphans of the run
+	 *
+	 * @return orphans in the order they were detected
+	 */
+	public synchronized List<Orphan> getOrphans() {
+		return new ArrayList<Orphan>(orphans);
+	}
+
+	/**
+	 * Gets the adoptions of the run
+	 *
+	 * @return adoptions in the order they happened
+	 */
+	public synchronized List<Adoption> getAdoptions() {
+		return new ArrayList<Adoption>(adoptions);
+	}
+
+	/**
+	 * Gets the time the last orphan was adopted
+	 *
+	 * @return time in seconds or -1 if nothing was adopted
+	 */
+	public synchronized double getRecoveryTime() {
+		double t = -1;
+		for (Adoption a : adoptions) {
+			t = Math.max(t, a.time);
+		}
+		return t;
+	}
+
+	/**
+	 * Keeps what was printed during the run
+	 *
+	 * @param output the output of the run
+	 */
+	public synchronized void setOutput(String output) {
+		this.output = output;
+	}
+
+	/**
+	 * Gets what was printed during the run
+	 *
+	 * @return the output or null if it was not kept
+	 */
+	public synchronized String getOutput() {
+		return output;
+	}
+
+	/**
+	 * Adds the results of another part of the same run, e.g. of another
+	 * shard. Only the histograms of its metrics are added.
+	 *
+	 * @param r the results of the part
+	 */
+	public synchronized void merge(RunResult r) {
+		synchronized (r) {
+			orphans.addAll(r.orphans);
+			adoptions.addAll(r.adoptions);
+			failures.addAll(r.failures);
+			broadcasts += r.broadcasts;
+			suppressed += r.suppressed;
+			heartbeats += r.heartbeats;
+			deferred += r.deferred;
+			rejected += r.rejected;
+			adoptionMessages += r.adoptionMessages;
+			responses += r.responses;
+			mailboxPeak = Math.max(mailboxPeak, r.mailboxPeak);
+			mailboxDropped += r.mailboxDropped;
+			mailboxRejected += r.mailboxRejected;
+			mailboxBlocked += r.mailboxBlocked;
+			linkMessages += r.linkMessages;
+			linkBytes += r.linkBytes;
+			linkDropped += r.linkDropped;
+			syncBatches += r.syncBatches;
+			syncBytes += r.syncBytes;
+			takeovers += r.takeovers;
+			if (r.metrics != null) {
+				if (metrics == null) {
+					metrics = new Metrics.Snapshot();
+				}
+				metrics.addHistograms(r.metrics);
+			}
+		}
+	}
+
+	/**
+	 * Merges the results of many runs into a summary
+	 *
+	 * @param results of each run
+	 * @return a summary to print
+	 */
+	public static String summarize(List<RunResult> results) {
+		int runs = 0;
+		int recovered = 0;
+		int orphanCount = 0;
+		int adoptionCount = 0;
+		long broadcastCount = 0;
+		long suppressedCount = 0;
+		long heartbeatCount = 0;
+		long deferredCount = 0;
+		long rejectedCount = 0;
+		long adoptionMessageCount = 0;
+		long responseCount = 0;
+		long mailboxPeak = 0;
+		long droppedCount = 0;
+		long turnedAway = 0;
+		long blockedCount = 0;
+		long linkMessageCount = 0;
+		long linkByteCount = 0;
+		long linkDropCount = 0;
+		long syncBatchCount = 0;
+		long syncByteCount = 0;
+		long takeoverCount = 0;
+		int detected = 0;
+		double detection = 0;
+		long hops = 0;
+		double recovery = 0;
+		double minRecovery = Double.MAX_VALUE;
+		double maxRecovery = 0;
+		Metrics.Snapshot metrics = new Metrics.Snapshot();
+
+		for (RunResult r : results) {
+			runs++;
+			if (r.getMetrics() != null) {
+				metrics.addHistograms(r.getMetrics());
+			}
+			orphanCount += r.getOrphans().size();
+			broadcastCount += r.getBroadcasts();
+			suppressedCount += r.getSuppressed();
+			heartbeatCount += r.getHeartbeats();
+			deferredCount += r.getDeferred();
+			rejectedCount += r.getRejected();
+			adoptionMessageCount += r.getAdoptionMessages();
+			responseCount += r.getResponses();
+			mailboxPeak = Math.max(mailboxPeak, r.getMailboxPeak());
+			droppedCount += r.getMailboxDropped();
+			turnedAway += r.getMailboxRejected();
+			blockedCount += r.getMailboxBlocked();
+			linkMessageCount += r.getLinkMessages();
+			linkByteCount += r.getLinkBytes();
+			linkDropCount += r.getLinkDropped();
+			syncBatchCount += r.getSyncBatches();
+			syncByteCount += r.getSyncBytes();
+			takeoverCount += r.getTakeovers();
+			for (double latency : r.getDetectionLatencies()) {
+				detected++;
+				detection += latency;
+			}
+			for (Adoption a : r.getAdoptions()) {
+				adoptionCount++;
+				hops += a.hops;
+			}
+			double t = r.getRecoveryTime();
+			if (t >= 0) {
+				recovered++;
+				recovery += t;
+				minRecovery = Math.min(minRecovery, t);
+				maxRecovery = Math.max(maxRecovery, t);
+			}
+		}
+
+		StringBuilder s = new StringBuilder();
+		s.append("Runs: ").append(runs).append("\n");
+		s.append("Orphans: ").append(orphanCount).append("\n");
+		s.append("Adoptions: ").append(adoptionCount).append("\n");
+		s.append("Orphan messages: ").append(broadcastCount).append(" sent, ").append(suppressedCount)
+				.append(" duplicates suppressed\n");
+		s.append("Adoption messages: ").append(adoptionMessageCount).append(" sent for ").append(responseCount)
+				.append(" responses\n");
+		s.append("Heartbeats: ").append(heartbeatCount).append("\n");
+		if (deferredCount > 0 || rejectedCount > 0) {
+			s.append("Controller responses: ").append(deferredCount).append(" deferred, ").append(rejectedCount)
+					.append(" rejected\n");
+		}
+		long overflows = droppedCount + turnedAway + blockedCount;
+		if (overflows > 0) {
+			s.append("Full mailboxes: ").append(droppedCount).append(" dropped, ").append(turnedAway)
+					.append(" rejected, ").append(blockedCount).append(" blocked senders (peak ").append(mailboxPeak)
+					.append(" messages)\n");
+		}
+		if (detected > 0) {
+			s.append("Detection latency: average ").append(String.format("%.3f", detection / detected))
+					.append(" s\n");
+		}
+		if (adoptionCount > 0) {
+			s.append("Average hops: ").append(String.format("%.3f", (double) hops / adoptionCount)).append("\n");
+		}
+		if (recovered > 0) {
+			s.append("Recovery time (last adoption): average ")
+					.append(String.format("%.3f", recovery / recovered)).append(" s, min ")
+					.append(String.format("%.3f", minRecovery)).append(" s, max ")
+					.append(String.format("%.3f", maxRecovery)).append(" s\n");
+		}
+		Histogram outage = metrics.getHistogram(Metrics.OUTAGE);
+		if (outage.getCount() > 0) {
+			s.append("Outage per orphan: p50 ").append(outage.getPercentile(50)).append(" ms, p90 ")
+					.append(outage.getPercentile(90)).append(" ms, p99 ").append(outage.getPercentile(99))
+					.append(" ms, max ").append(outage.getMax()).append(" ms\n");
+		}
+		Histogram delay = metrics.getHistogram(Metrics.QUEUE_DELAY);
+		if (delay.getCount() > 0) {
+			s.append("Controller queueing delay: p50 ").append(delay.getPercentile(50)).append(" ms, p99 ")
+					.append(delay.getPercentile(99)).append(" ms, max ").append(delay.getMax()).append(" ms\n");
+		}
+		Histogram link = metrics.getHistogram(Metrics.LINK_DELAY);
+		if (linkMessageCount > 0 || linkDropCount > 0) {
+			s.append("Links: ").append(linkMessageCount).append(" messages, ").append(linkByteCount / 1024)
+					.append(" KB, ").append(linkDropCount).append(" dropped, delay p50 ").append(link.getPercentile(50))
+					.append(" ms, p99 ").append(link.getPercentile(99)).append(" ms, max ").append(link.getMax())
+					.append(" ms\n");
+		}
+		Histogram staleness = metrics.getHistogram(Metrics.SYNC_STALENESS);
+		if (syncBatchCount > 0) {
+			s.append("East-west sync: ").append(syncBatchCount).append(" batches, ").append(syncByteCount / 1024)
+					.append(" KB, ").append(takeoverCount).append(" takeovers, staleness p50 ")
+					.append(staleness.getPercentile(50)).append(" ms, p99 ").append(staleness.getPercentile(99))
+					.append(" ms, max ").append(staleness.getMax()).append(" ms\n");
+		}
+		return s.toString();
+	}
+
+	/**
+	 * An eNodeB that lost its controller
+	 */
+	public static class Orphan implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final String eNodeB;
+		public final double time;
+
+		public Orphan(String eNodeB, double time) {
+			this.eNodeB = eNodeB;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * An orphan that was adopted by a controller
+	 */
+	public static class Adoption implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final String eNodeB;
+		public final String controller;
+		public final int hops;
+		public final double time;
+
+		public Adoption(String eNodeB, String controller, int hops, double time) {
+			this.eNodeB = eNodeB;
+			this.controller = controller;
+			this.hops = hops;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package failover;
+
+/**
+ * Remembers the latest orphan request an Entity has passed on for each
+ * orphan, so repeated copies of the same request can be dropped.
+ *
+ * The cache is a fixed-size open-addressing table keyed by the id of the
+ * orphan. Entries expire after a while, and when the probe window of a key
+ * is full the oldest entry in it is replaced, so the cache never grows.
+ * Senders call it from their own threads, so it is synchronized.
+ */
+
+import java.util.Arrays;
+
+public class SeenCache {
+	private static final int PROBES = 8;
+
+	private int mask;
+	private long expiry;
+	private int[] orphans;
+	private int[] sequences;
+	private long[] times;
+	private long suppressed;
+
+	/**
+	 * @param capacity the number of orphans remembered, rounded up to a power of two
+	 * @param expiry in milliseconds, after which an entry is forgotten
+	 */
+	public SeenCache(int capacity, long expiry) {
+		int size = Integer.highestOneBit(Math.max(PROBES, capacity) - 1) << 1;
+		mask = size - 1;
+		this.expiry = expiry;
+		orphans = new int[size];
+		sequences = new int[size];
+		times = new long[size];
+		Arrays.fill(orphans, -1);
+		suppressed = 0;
+	}
+
+	/**
+	 * Records a request unless it is a duplicate. A request is a duplicate
+	 * when a request from the same orphan with the same or a later sequence
+	 * number was seen and has not expired.
+	 *
+	 * @param orphan the id of the orphan
+	 * @param sequence the broadcast sequence number of the orphan
+	 * @param now the current time in milliseconds
+	 * @return true if the request is new and should be passed on
+	 */
+	public synchronized boolean firstSeen(int orphan, int sequence, long now) {
+		int home = mix(orphan) & mask;
+		int victim = home;
+
+		for (int i = 0; i < PROBES; i++) {
+			int slot = (home + i) & mask;
+			if (orphans[slot] == orphan) {
+				if (sequence <= sequences[slot] && now - times[slot] < expiry) {
+					suppressed++;
+					return false;
+				}
+				sequences[slot] = sequence;
+				times[slot] = now;
+				return true;
+			}
+			if (orphans[slot] == -1) {
+				victim = slot;
+				break;
+			}
+			if (times[slot] < times[victim]) {
+				victim = slot;
+			}
+		}
+
+		orphans[victim] = orphan;
+		sequences[victim] = sequence;
+		times[victim] = now;
+		return true;
+	}
+
+	/**
+	 * Gets the number of duplicates that were dropped
+	 *
+	 * @return suppressed
+	 */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * Spreads the bits of an id over the table
+	 */
+	private static int mix(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,733 @@
+package failover;
+
+/**
+ * One process of a run split across several processes on one machine, for
+ * topologies too large for one JVM.
+ *
+ * The eNodeBs are cut into bands of neighbours, one band per shard, and each
+ * controller goes with the band of its gateway. A shard builds the eNodeBs
+ * and controllers it runs, their neighbours and every controller (see
+ * TopologySpec.build()). A neighbour another shard runs is a stand-in: calls
+ * on it are written to the socket of that shard, which makes the same call
+ * on its own Entity. Only ids travel, so a Message is written as its fields.
+ * A message a full mailbox rejects there is dropped, as its sender is in
+ * another process.
+ *
+ * The shards keep their virtual clocks in step with null messages: a shard
+ * only runs the events up to the time before which no other shard can send
+ * it anything, and tells the other shards how far that is for itself. Every
+ * X2 connection between two shards delays its messages by the lookahead, so
+ * a shard that runs up to time t can promise to send nothing before t plus
+ * the lookahead. Connections within a shard keep the delay of the other
+ * backends. A larger lookahead means fewer rounds of null messages and
+ * slower links across the bands.
+ *
+ * Shards are started by ShardLauncher, which gives each the ports of the
+ * others and merges their results.
+ *
+ * usage: Shard <launcher port> <index> <shards> <lookahead ms> <file|descriptor> <run> <strategy|-> <faults|->
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class Shard implements ExecutionBackend {
+	// calls between shards
+	private static final int NULL = 0; // only the time
+	private static final int MESSAGE = 1; // messageController()
+	private static final int ADOPTION = 2; // sendAdoptionMessage()
+	private static final int HEARTBEAT = 3; // receiveHeartbeat()
+	private static final int ACCEPT = 4; // acceptAdoption()
+	private static final int ADD_CHILD = 5;
+	private static final int REMOVE_CHILD = 6;
+	private static final int FAIL = 7; // a controller failed
+	private static final int JOINED = 8; // Controller.joined()
+	private static final int LEFT = 9; // Controller.left()
+
+	private SimContext ctx;
+	private int index;
+	private int count;
+	private int eNodeBCount;
+	private int[] owner; // shard of every Entity by id
+	private long lookahead; // milliseconds
+	private Socket[] sockets; // to the other shards by index
+	private DataOutputStream[] outs;
+	private Thread[] readers;
+	private LinkedBlockingQueue<Frame> inbox;
+	private boolean running;
+	private long messages; // calls sent to other shards
+	private long nulls;
+	private long rounds;
+
+	/**
+	 * @param ctx the run
+	 * @param index of this shard, from 0
+	 * @param owner the shard of every Entity by id, see partition()
+	 * @param eNodeBCount the eNodeBs of the topology
+	 * @param lookahead delay of the connections between shards in milliseconds
+	 */
+	public Shard(SimContext ctx, int index, int[] owner, int eNodeBCount, long lookahead) {
+		this.ctx = ctx;
+		this.index = index;
+		this.owner = owner;
+		this.eNodeBCount = eNodeBCount;
+		this.lookahead = Math.max(1, lookahead);
+		count = 0;
+		for (int s : owner) {
+			count = Math.max(count, s + 1);
+		}
+		sockets = new Socket[count];
+		outs = new DataOutputStream[count];
+		readers = new Thread[count];
+		inbox = new LinkedBlockingQueue<Frame>();
+		running = false;
+		messages = 0;
+		nulls = 0;
+		rounds = 0;
+	}
+
+	/**
+	 * Cuts a topology into bands of neighbouring eNodeBs of the same size,
+	 * in breadth-first order from eNodeB 0, so few connections cross from
+	 * one band to another. A controller goes with its first eNodeB.
+	 *
+	 * @param spec the topology
+	 * @param shards the number of bands
+	 * @return the shard of every Entity by id: eNodeB i is i, controller j
+	 *         is the number of eNodeBs + j
+	 */
+	public static int[] partition(TopologySpec spec, int shards) {
+		int n = spec.getENodeBCount();
+		int[] start = new int[n + 1];
+		for (int i = 0; i < spec.getLinkCount(); i++) {
+			int a = spec.getLinkA(i);
+			int b = spec.getLinkB(i);
+			if (a >= 0 && b >= 0) {
+				start[a + 1]++;
+				start[b + 1]++;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			start[i + 1] += start[i];
+		}
+		int[] fill = Arrays.copyOf(start, n);
+		int[] neighbours = new int[start[n]];
+		for (int i = 0; i < spec.getLinkCount(); i++) {
+			int a = spec.getLinkA(i);
+			int b = spec.getLinkB(i);
+			if (a >= 0 && b >= 0) {
+				neighbours[fill[a]++] = b;
+				neighbours[fill[b]++] = a;
+			}
+		}
+
+		int[] owner = new int[n + spec.getControllerCount()];
+		Arrays.fill(owner, -1);
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for (int root = 0; root < n; root++) {
+			if (owner[root] >= 0) {
+				continue;
+			}
+			owner[root] = (int) ((long) tail * shards / n);
+			queue[tail++] = root;
+			while (head < tail) {
+				int v = queue[head++];
+				for (int k = start[v]; k < start[v + 1]; k++) {
+					int w = neighbours[k];
+					if (owner[w] < 0) {
+						owner[w] = (int) ((long) tail * shards / n);
+						queue[tail++] = w;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < spec.getLinkCount(); i++) {
+			int a = spec.getLinkA(i);
+			int b = spec.getLinkB(i);
+			if (a < 0 && b >= 0 && owner[n + TopologySpec.controller(a)] < 0) {
+				owner[n + TopologySpec.controller(a)] = owner[b];
+			} else if (b < 0 && a >= 0 && owner[n + TopologySpec.controller(b)] < 0) {
+				owner[n + TopologySpec.controller(b)] = owner[a];
+			}
+		}
+		for (int j = n; j < owner.length; j++) {
+			owner[j] = Math.max(0, owner[j]);
+		}
+		return owner;
+	}
+
+	/**
+	 * Gets the index of the shard
+	 *
+	 * @return index from 0
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Tells whether this shard runs an Entity
+	 *
+	 * @param id of the Entity
+	 * @return true if the Entity is run here
+	 */
+	public boolean owns(int id) {
+		return owner[id] == index;
+	}
+
+	/**
+	 * Gets the id of an endpoint of the topology. Every shard registers the
+	 * eNodeBs and then the controllers, as an unsharded build does.
+	 *
+	 * @param p the endpoint, see TopologySpec.controller()
+	 * @return the id
+	 */
+	public int vertex(int p) {
+		return p >= 0 ? p : eNodeBCount + TopologySpec.controller(p);
+	}
+
+	/**
+	 * Connects to the other shards: to those before this one, and from
+	 * those after it. The shard is running from then on.
+	 *
+	 * @param ports the port of every shard
+	 * @param server the socket the shards after this one connect to
+	 * @throws IOException if a shard cannot be reached
+	 */
+	public void connect(int[] ports, ServerSocket server) throws IOException {
+		for (int j = 0; j < index; j++) {
+			Socket s = new Socket(InetAddress.getLoopbackAddress(), ports[j]);
+			new DataOutputStream(s.getOutputStream()).writeInt(index);
+			open(j, s);
+		}
+		for (int k = index + 1; k < count; k++) {
+			Socket s = server.accept();
+			open(new DataInputStream(s.getInputStream()).readInt(), s);
+		}
+		running = true;
+	}
+
+	/**
+	 * Sets up the connection to another shard and starts reading from it
+	 */
+	private void open(final int peer, Socket s) throws IOException {
+		s.setTcpNoDelay(true);
+		sockets[peer] = s;
+		outs[peer] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+		readers[peer] = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						long time;
+						try {
+							time = in.readLong();
+						} catch (EOFException e) {
+							break; // the shard is done
+						}
+						inbox.put(new Frame(peer, time, read(in.readByte(), in)));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				inbox.add(new Frame(peer, Long.MAX_VALUE, null));
+			}
+		}, "shard-" + index + "-from-" + peer);
+		readers[peer].setDaemon(true);
+		readers[peer].start();
+	}
+
+	/**
+	 * Reads a call of another shard
+	 *
+	 * @return the call, made when the engine reaches its time, or null for
+	 *         a null message
+	 */
+	private Runnable read(int kind, DataInputStream in) throws IOException {
+		if (kind == NULL) {
+			return null;
+		}
+		final int to = in.readInt();
+		if (kind == MESSAGE) {
+			final Message m = ctx.getMessagePool().read(in);
+			return new Runnable() {
+				@Override
+				public void run() {
+					if (!ctx.getEntity(to).messageController(m)) {
+						m.release(); // the sender is in another process
+					}
+				}
+			};
+		} else if (kind == ADOPTION) {
+			int n = in.readInt();
+			final Message batch = ctx.getMessagePool().read(in);
+			Message last = batch;
+			for (int i = 1; i < n; i++) {
+				Message m = ctx.getMessagePool().read(in);
+				last.setNext(m);
+				last = m;
+			}
+			return new Runnable() {
+				@Override
+				public void run() {
+					if (!((ENodeB) ctx.getEntity(to)).sendAdoptionMessage(batch)) {
+						Mailbox.release(batch); // the sender is in another process
+					}
+				}
+			};
+		} else if (kind == HEARTBEAT) {
+			final int from = in.readInt();
+			final int c = in.readInt();
+			final long number = in.readLong();
+			return new Runnable() {
+				@Override
+				public void run() {
+					((ENodeB) ctx.getEntity(to)).receiveHeartbeat(ctx.getEntity(from), (Controller) ctx.getEntity(c),
+							number);
+				}
+			};
+		} else if (kind == ACCEPT) {
+			final int from = in.readInt();
+			final Message m = ctx.getMessagePool().read(in);
+			return new Runnable() {
+				@Override
+				public void run() {
+					((ENodeB) ctx.getEntity(to)).acceptAdoption(m, ctx.getEntity(from));
+				}
+			};
+		} else if (kind == ADD_CHILD || kind == REMOVE_CHILD) {
+			final boolean add = kind == ADD_CHILD;
+			final int child = in.readInt();
+			return new Runnable() {
+				@Override
+				public void run() {
+					if (add) {
+						ctx.getEntity(to).addChild((ENodeB) ctx.getEntity(child));
+					} else {
+						ctx.getEntity(to).removeChild((ENodeB) ctx.getEntity(child));
+					}
+				}
+			};
+		} else if (kind == JOINED || kind == LEFT) {
+			final boolean joined = kind == JOINED;
+			final int e = in.readInt();
+			final int version = joined ? in.readInt() : 0;
+			final boolean takeover = joined && in.readBoolean();
+			return new Runnable() {
+				@Override
+				public void run() {
+					if (joined) {
+						((Controller) ctx.getEntity(to)).joined(e, version, takeover);
+					} else {
+						((Controller) ctx.getEntity(to)).left(e);
+					}
+				}
+			};
+		} else if (kind == FAIL) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					((Controller) ctx.getEntity(to)).fail();
+				}
+			};
+		}
+		throw new IOException("Unknown call " + kind + " from another shard");
+	}
+
+	/**
+	 * Starts a call to the shard that runs an Entity. The call arrives
+	 * the lookahead after the current time.
+	 *
+	 * @param kind of the call
+	 * @param to id of the Entity
+	 * @return where to write the rest of the call
+	 */
+	private DataOutputStream call(int kind, int to) throws IOException {
+		DataOutputStream out = outs[owner[to]];
+		out.writeLong(ctx.currentTimeMillis() + lookahead);
+		out.writeByte(kind);
+		out.writeInt(to);
+		messages++;
+		return out;
+	}
+
+	/**
+	 * Hands Entity.messageController() to the shard that runs the Entity
+	 *
+	 * @param to id of the Entity
+	 * @param m the message, given back to the pool once it is written
+	 */
+	void messageController(int to, Message m) {
+		try {
+			m.write(call(MESSAGE, to));
+		} catch (IOException e) {
+			throw lost(to, e);
+		}
+		m.release();
+	}
+
+	/**
+	 * Hands ENodeB.sendAdoptionMessage() to the shard that runs the eNodeB
+	 *
+	 * @param to id of the eNodeB
+	 * @param batch the responses, given back to the pool once they are written
+	 */
+	void sendAdoptionMessage(int to, Message batch) {
+		int n = 0;
+		for (Message m = batch; m != null; m = m.getNext()) {
+			n++;
+		}
+		try {
+			DataOutputStream out = call(ADOPTION, to);
+			out.writeInt(n);
+			for (Message m = batch; m != null; m = m.getNext()) {
+				m.write(out);
+			}
+		} catch (IOException e) {
+			throw lost(to, e);
+		}
+		while (batch != null) {
+			Message m = batch;
+			batch = m.getNext();
+			m.setNext(null);
+			m.release();
+		}
+	}
+
+	/**
+	 * Hands ENodeB.receiveHeartbeat() to the shard that runs the eNodeB
+	 */
+	void receiveHeartbeat(int to, int from, int controller, long number) {
+		try {
+			DataOutputStream out = call(HEARTBEAT, to);
+			out.writeInt(from);
+			out.writeInt(controller);
+			out.writeLong(number);
+		} catch (IOException e) {
+			throw lost(to, e);
+		}
+	}
+
+	/**
+	 * Hands ENodeB.acceptAdoption() to the shard that runs the orphan
+	 *
+	 * @param to id of the orphan
+	 * @param m the response, given back to the pool once it is written
+	 * @param from id of the Entity the response came from
+	 */
+	void acceptAdoption(int to, Message m, int from) {
+		try {
+			DataOutputStream out = call(ACCEPT, to);
+			out.writeInt(from);
+			m.write(out);
+		} catch (IOException e) {
+			throw lost(to, e);
+		}
+		m.release();
+	}
+
+	/**
+	 * Hands Entity.addChild() to the shard that runs the Entity. While the
+	 * topology is built nothing is sent: every shard sets up the children
+	 * of its own entities.
+	 */
+	void addChild(int to, int child) {
+		child(ADD_CHILD, to, child);
+	}
+
+	/**
+	 * Hands Entity.removeChild() to the shard that runs the Entity
+	 */
+	void removeChild(int to, int child) {
+		child(REMOVE_CHILD, to, child);
+	}
+
+	private void child(int kind, int to, int child) {
+		if (!running) {
+			return;
+		}
+		try {
+			call(kind, to).writeInt(child);
+		} catch (IOException e) {
+			throw lost(to, e);
+		}
+	}
+
+	/**
+	 * Hands Controller.joined() to the shard that runs the controller.
+	 * While the topology is built nothing is sent: that shard counts
+	 * the eNodeBs of its controllers itself.
+	 *
+	 * @param to id of the controller
+	 * @param e id of the eNodeB
+	 * @param version of the assignment
+	 * @param takeover true if the eNodeB took a takeover
+	 */
+	void joined(int to, int e, int version, boolean takeover) {
+		if (!running) {
+			return;
+		}
+		try {
+			DataOutputStream out = call(JOINED, to);
+			out.writeInt(e);
+			out.writeInt(version);
+			out.writeBoolean(takeover);
+		} catch (IOException x) {
+			throw lost(to, x);
+		}
+	}
+
+	/**
+	 * Hands Controller.left() to the shard that runs the controller
+	 *
+	 * @param to id of the controller
+	 * @param e id of the eNodeB
+	 */
+	void left(int to, int e) {
+		try {
+			call(LEFT, to).writeInt(e);
+		} catch (IOException x) {
+			throw lost(to, x);
+		}
+	}
+
+	/**
+	 * Tells the other shards a controller this shard runs failed, e.g. in
+	 * a cascade only this shard sees
+	 *
+	 * @param controller id of the controller
+	 */
+	void fail(int controller) {
+		for (int j = 0; j < count; j++) {
+			if (j == index) {
+				continue;
+			}
+			try {
+				DataOutputStream out = outs[j];
+				out.writeLong(ctx.currentTimeMillis() + lookahead);
+				out.writeByte(FAIL);
+				out.writeInt(controller);
+				messages++;
+			} catch (IOException e) {
+				throw lost(j, e);
+			}
+		}
+	}
+
+	private IllegalStateException lost(int to, IOException e) {
+		return new IllegalStateException("Lost the shard of entity " + to, e);
+	}
+
+	/**
+	 * Runs the entities of this shard on an EventEngine, in step with the
+	 * other shards, until the maximum time of the run
+	 */
+	@Override
+	public void execute(SimContext ctx) {
+		EventEngine engine = new EventEngine();
+		ctx.setClock(engine);
+		ctx.setTimers(engine);
+		ctx.setStartTime(0);
+		ctx.getFaults().install(ctx);
+
+		long end = 0;
+		for (Controller c : ctx.getControllers()) {
+			if (owns(c.getId())) {
+				engine.add(c);
+				end = Math.max(end, c.getMaxTime() * 1000);
+			}
+		}
+		for (ENodeB b : ctx.getENodeBs()) {
+			if (owns(b.getId())) {
+				engine.add(b);
+				end = Math.max(end, b.getMaxTime() * 1000);
+			}
+		}
+		try {
+			synchronize(engine, end);
+			close();
+		} catch (IOException e) {
+			throw new IllegalStateException("Lost a shard", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the shards", e);
+		}
+	}
+
+	/**
+	 * Runs the events that are safe: those before the earliest time another
+	 * shard can still send something for. After every round the shard
+	 * promises the others the earliest time it can send anything for.
+	 */
+	private void synchronize(EventEngine engine, long end) throws IOException, InterruptedException {
+		long[] clocks = new long[count]; // the promise of every shard
+		clocks[index] = Long.MAX_VALUE;
+		long promised = Long.MIN_VALUE;
+		while (true) {
+			long safe = Long.MAX_VALUE;
+			for (long c : clocks) {
+				safe = Math.min(safe, c);
+			}
+			engine.runUntil(Math.min(safe, end));
+			// later events are at the next event or a call that arrives after safe
+			long horizon = Math.min(engine.nextEventTime(), safe);
+			long promise = horizon > end ? Long.MAX_VALUE : horizon + lookahead;
+			if (promise > promised) {
+				promised = promise;
+				for (int j = 0; j < count; j++) {
+					if (j != index) {
+						outs[j].writeLong(promise);
+						outs[j].writeByte(NULL);
+						nulls++;
+					}
+				}
+			}
+			for (int j = 0; j < count; j++) {
+				if (j != index) {
+					outs[j].flush();
+				}
+			}
+			if (horizon > end) {
+				return;
+			}
+			rounds++;
+			Frame f = inbox.take();
+			do {
+				clocks[f.peer] = Math.max(clocks[f.peer], f.time);
+				if (f.action != null) {
+					engine.scheduleAt(f.time, f.action);
+				}
+				f = inbox.poll();
+			} while (f != null);
+		}
+	}
+
+	/**
+	 * Closes the connections once every shard has passed the end of the run
+	 */
+	private void close() throws IOException, InterruptedException {
+		for (int j = 0; j < count; j++) {
+			if (j != index) {
+				sockets[j].shutdownOutput();
+			}
+		}
+		for (int j = 0; j < count; j++) {
+			if (j != index) {
+				readers[j].join(); // until the other shard is done writing
+				sockets[j].close();
+			}
+		}
+	}
+
+	/**
+	 * Describes the work of the shard
+	 *
+	 * @return e.g. "shard 0: 5000 eNodeBs, 2 controllers, 1204 calls and 9000 null messages in 8999 rounds"
+	 */
+	@Override
+	public String toString() {
+		int eNodeBs = 0;
+		int controllers = 0;
+		for (int id = 0; id < owner.length; id++) {
+			if (owner[id] == index) {
+				if (id < eNodeBCount) {
+					eNodeBs++;
+				} else {
+					controllers++;
+				}
+			}
+		}
+		return "shard " + index + ": " + eNodeBs + " eNodeBs, " + controllers + " controllers, " + messages
+				+ " calls and " + nulls + " null messages in " + rounds + " rounds";
+	}
+
+	/**
+	 * Runs one shard of a run, started by ShardLauncher
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 8) {
+			System.out.println(
+					"usage: Shard <launcher port> <index> <shards> <lookahead ms> <file|descriptor> <run> <strategy|-> <faults|->");
+			return;
+		}
+		int index = Integer.parseInt(args[1]);
+		int shards = Integer.parseInt(args[2]);
+		int run = Integer.parseInt(args[5]);
+		long maxTime = TopologySimulation.maxTime;
+		Socket launcher = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+		DataInputStream control = new DataInputStream(launcher.getInputStream());
+		DataOutputStream reply = new DataOutputStream(launcher.getOutputStream());
+
+		long start = System.currentTimeMillis();
+		TopologySpec topology = TopologySimulation.load(args[4]);
+		SimContext ctx = new SimContext(run, run);
+		Shard shard = new Shard(ctx, index, partition(topology, shards), topology.getENodeBCount(),
+				Long.parseLong(args[3]));
+		ctx.setShard(shard);
+		if (!args[6].equals("-")) {
+			Strategy.parse(args[6]).apply(ctx);
+		}
+		if (!args[7].equals("-")) {
+			ctx.setFaults(FaultSchedule.load(args[7], topology, maxTime).get(0));
+		}
+		topology.build(ctx, maxTime, TopologySimulation.failTime, TopologySimulation.load);
+		long built = System.currentTimeMillis() - start;
+
+		ServerSocket server = new ServerSocket(0, shards, InetAddress.getLoopbackAddress());
+		reply.writeInt(index);
+		reply.writeInt(server.getLocalPort());
+		reply.flush();
+		int[] ports = new int[shards];
+		for (int j = 0; j < shards; j++) {
+			ports[j] = control.readInt();
+		}
+		shard.connect(ports, server);
+		server.close();
+
+		start = System.currentTimeMillis();
+		shard.execute(ctx);
+		long wall = System.currentTimeMillis() - start;
+
+		// only the histograms, the counters of a large topology are too many to send
+		Metrics.Snapshot histograms = new Metrics.Snapshot();
+		histograms.addHistograms(ctx.getMetrics().snapshot());
+		ctx.getResult().setMetrics(histograms);
+		if (ctx.getLinks() != null) {
+			ctx.getResult().addLinks(ctx.getLinks());
+		}
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(launcher.getOutputStream()));
+		out.writeObject(ctx.getResult());
+		out.writeUTF(shard + ", built in " + built + " ms, ran in " + wall + " ms");
+		out.close();
+	}
+
+	/**
+	 * A call or null message of another shard
+	 */
+	private static class Frame {
+		private final int peer;
+		private final long time;
+		private final Runnable action; // null for a null message
+
+		private Frame(int peer, long time, Runnable action) {
+			this.peer = peer;
+			this.time = time;
+			this.action = action;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package failover;
+
+/**
+ * Runs one run of a topology split across several processes on this
+ * machine, see Shard.
+ *
+ * The launcher starts every shard as a JVM with the classpath of the
+ * launcher, tells each the ports of the others, and merges the results the
+ * shards send back at the end. JVM options for the shards, e.g. a heap
+ * size, are given with -Dfailover.shard.jvm="-Xmx8g".
+ *
+ * usage: ShardLauncher <file|descriptor> <shards> [lookahead ms] [strategy|-] [faults|-]
+ *
+ * The faults are a FaultSchedule file or generator descriptor; its first
+ * scenario is run. Without them the topology's own failures are used.
+ *
+ * e.g. ShardLauncher grid:1000x1000:64 4
+ *      ShardLauncher grid:100x100:4 2 10 backups:3 random:1:2
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ShardLauncher {
+	private static final long LOOKAHEAD = 5; // milliseconds
+
+	public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
+		if (args.length < 2) {
+			System.out.println("usage: ShardLauncher <file|descriptor> <shards> [lookahead ms] [strategy|-] [faults|-]");
+			return;
+		}
+		int shards = Integer.parseInt(args[1]);
+		long lookahead = args.length > 2 ? Long.parseLong(args[2]) : LOOKAHEAD;
+		String strategy = args.length > 3 ? args[3] : "-";
+		String faults = args.length > 4 ? args[4] : "-";
+
+		long start = System.currentTimeMillis();
+		TopologySpec topology = TopologySimulation.load(args[0]);
+		if (shards < 1 || shards > topology.getENodeBCount()) {
+			throw new IllegalArgumentException("Cannot split " + topology.getENodeBCount() + " eNodeBs into "
+					+ shards + " shards");
+		}
+		System.out.println("Simulation of failover for Distributed SDN Controllers");
+		System.out.println(topology.getName() + ": " + topology.getControllerCount() + " controllers, "
+				+ topology.getENodeBCount() + " eNodeBs, " + topology.getLinkCount() + " connections, "
+				+ crossing(topology, Shard.partition(topology, shards)) + " between " + shards + " shards ("
+				+ lookahead + " ms lookahead)");
+
+		ServerSocket server = new ServerSocket(0, shards, InetAddress.getLoopbackAddress());
+		List<Process> processes = new ArrayList<Process>();
+		for (int i = 0; i < shards; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			String options = System.getProperty("failover.shard.jvm", "").trim();
+			if (!options.isEmpty()) {
+				Collections.addAll(command, options.split("\\s+"));
+			}
+			Collections.addAll(command, "-cp", System.getProperty("java.class.path"), Shard.class.getName(),
+					Integer.toString(server.getLocalPort()), Integer.toString(i), Integer.toString(shards),
+					Long.toString(lookahead), args[0], "1", strategy, faults);
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+			processes.add(builder.start());
+		}
+
+		// every shard tells its port, then hears the ports of all
+		Socket[] sockets = new Socket[shards];
+		int[] ports = new int[shards];
+		for (int k = 0; k < shards; k++) {
+			Socket s = server.accept();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			int i = in.readInt();
+			ports[i] = in.readInt();
+			sockets[i] = s;
+		}
+		server.close();
+		for (Socket s : sockets) {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			for (int port : ports) {
+				out.writeInt(port);
+			}
+			out.flush();
+		}
+
+		RunResult result = new RunResult(1);
+		for (int i = 0; i < shards; i++) {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+			result.merge((RunResult) in.readObject());
+			System.out.println(in.readUTF());
+			sockets[i].close();
+		}
+		for (Process p : processes) {
+			if (p.waitFor() != 0) {
+				throw new IllegalStateException("A shard exited with " + p.exitValue());
+			}
+		}
+		System.out.print(RunResult.summarize(Collections.singletonList(result)));
+		System.out.println("Wall time: " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Counts the connections between entities of different shards
+	 */
+	private static int crossing(TopologySpec topology, int[] owner) {
+		int n = topology.getENodeBCount();
+		int crossing = 0;
+		for (int i = 0; i < topology.getLinkCount(); i++) {
+			int a = topology.getLinkA(i);
+			int b = topology.getLinkB(i);
+			if (owner[a >= 0 ? a : n + TopologySpec.controller(a)] != owner[b >= 0 ? b : n
+					+ TopologySpec.controller(b)]) {
+				crossing++;
+			}
+		}
+		return crossing;
+	}
+}
@@ -0,0 +1,404 @@
+package failover;
+
+/**
+ * The nearest controller of every eNodeB, kept up to date while links and
+ * controllers come and go.
+ *
+ * The paths form a forest: every eNodeB has a distance, a parent (the next
+ * hop towards its controller) and a root (the controller). When a tree edge
+ * is removed only the subtree below it is invalidated and repaired: each
+ * vertex of the subtree takes the best distance offered by a neighbour
+ * outside it, and the new distances are spread through the subtree in
+ * increasing order. When an edge is added only the vertices it brings
+ * closer to a controller are visited. Removing a controller invalidates its
+ * whole tree at once. Equal paths keep the old parent, so a change only
+ * reports eNodeBs whose controller or next hop really changed.
+ *
+ * Paths never pass through a controller. Updates lock the graph before
+ * the paths, the order in which Graph calls its listeners, and each update
+ * walks the Graph.Snapshot published by the change it repairs.
+ */
+
+import java.util.Arrays;
+
+public class ShortestPaths {
+	private static final int INF = Integer.MAX_VALUE;
+	private static final int[] NONE = new int[0];
+
+	private Graph g;
+	private Graph.Snapshot topology; // the topology of the current update
+	private boolean[] controller; // the vertex is a controller
+	private boolean[] alive; // the controller is a root
+	private int[] dist;
+	private int[] parent;
+	private int[] root;
+
+	// scratch of one update
+	private int[] mark; // epoch of the update that invalidated the vertex
+	private int epoch;
+	private int[] prevParent;
+	private int[] prevRoot;
+	private int[] queue;
+
+	/**
+	 * Computes the paths of a run and follows the changes of its graph. The
+	 * number of eNodeBs changed by each update goes to the ROUTE_CHANGES
+	 * histogram of the run.
+	 *
+	 * @param ctx the run
+	 * @return the paths
+	 */
+	public static ShortestPaths of(final SimContext ctx) {
+		int[] controllers = new int[ctx.getControllers().size()];
+		for (int i = 0; i < controllers.length; i++) {
+			controllers[i] = ctx.getControllers().get(i).getId();
+		}
+		final ShortestPaths p = new ShortestPaths(ctx.getGraph(), controllers);
+		ctx.getGraph().addListener(new Graph.Listener() {
+			@Override
+			public void edgeAdded(int edge) {
+				ctx.getMetrics().record(Metrics.ROUTE_CHANGES, p.addEdge(edge).length);
+			}
+
+			@Override
+			public void edgeRemoved(int edge) {
+				ctx.getMetrics().record(Metrics.ROUTE_CHANGES, p.removeEdge(edge).length);
+			}
+		});
+		return p;
+	}
+
+	/**
+	 * Computes the paths with a breadth-first search from all controllers
+	 *
+	 * @param g the graph
+	 * @param controllers the vertices of the controllers
+	 */
+	public ShortestPaths(Graph g, int[] controllers) {
+		this.g = g;
+		topology = g.snapshot();
+		int n = topology.getVertexCount();
+		controller = new boolean[n];
+		alive = new boolean[n];
+		dist = new int[n];
+		parent = new int[n];
+		root = new int[n];
+		mark = new int[n];
+		prevParent = new int[n];
+		prevRoot = new int[n];
+		queue = new int[n];
+		epoch = 0;
+		Arrays.fill(dist, INF);
+		Arrays.fill(parent, -1);
+		Arrays.fill(root, -1);
+
+		int tail = 0;
+		for (int c : controllers) {
+			controller[c] = true;
+			alive[c] = true;
+			dist[c] = 0;
+			root[c] = c;
+			queue[tail++] = c;
+		}
+		for (int head = 0; head < tail; head++) {
+			int v = queue[head];
+			for (int s = topology.begin(v); s < topology.end(v); s++) {
+				int w = topology.neighbour(s);
+				if (!controller[w] && dist[w] == INF && !topology.isRemoved(topology.edge(s))) {
+					dist[w] = dist[v] + 1;
+					parent[w] = v;
+					root[w] = root[v];
+					queue[tail++] = w;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the nearest controller of an eNodeB
+	 *
+	 * @param v the eNodeB
+	 * @return the controller or -1 if none is reachable
+	 */
+	public synchronized int getController(int v) {
+		return controller[v] ? -1 : root[v];
+	}
+
+	/**
+	 * Gets the next hop of an eNodeB towards its nearest controller
+	 *
+	 * @param v the eNodeB
+	 * @return the neighbour or -1 if no controller is reachable
+	 */
+	public synchronized int getNextHop(int v) {
+		return parent[v];
+	}
+
+	/**
+	 * Gets the hops from an eNodeB to its nearest controller
+	 *
+	 * @param v the eNodeB
+	 * @return hops or -1 if no controller is reachable
+	 */
+	public synchronized int getDistance(int v) {
+		return dist[v] == INF ? -1 : dist[v];
+	}
+
+	/**
+	 * Repairs the paths after an edge was removed
+	 *
+	 * @param edge the removed edge
+	 * @return the eNodeBs whose controller or next hop changed
+	 */
+	public int[] removeEdge(int edge) {
+		synchronized (g) {
+			synchronized (this) {
+				topology = g.snapshot();
+				return removeEdgeLocked(edge);
+			}
+		}
+	}
+
+	private int[] removeEdgeLocked(int edge) {
+		int a = topology.getA(edge);
+		int b = topology.getB(edge);
+		int child = parent[b] == a ? b : parent[a] == b ? a : -1;
+		if (child < 0 || topology.findEdge(child, parent[child]) >= 0) {
+			return NONE; // not a tree edge, or another edge joins the same vertices
+		}
+		epoch++;
+		int size = subtree(child, 0);
+		return repair(size);
+	}
+
+	/**
+	 * Repairs the paths after a controller went away
+	 *
+	 * @param c the controller
+	 * @return the eNodeBs whose controller or next hop changed
+	 */
+	public int[] removeController(int c) {
+		synchronized (g) {
+			synchronized (this) {
+				topology = g.snapshot();
+				return removeControllerLocked(c);
+			}
+		}
+	}
+
+	private int[] removeControllerLocked(int c) {
+		if (!alive[c]) {
+			return NONE;
+		}
+		alive[c] = false;
+		dist[c] = INF;
+		root[c] = -1;
+		epoch++;
+		int size = 0;
+		for (int s = topology.begin(c); s < topology.end(c); s++) {
+			int w = topology.neighbour(s);
+			if (parent[w] == c && mark[w] != epoch) {
+				size = subtree(w, size);
+			}
+		}
+		return repair(size);
+	}
+
+	/**
+	 * Updates the paths after an edge was added
+	 *
+	 * @param edge the added edge
+	 * @return the eNodeBs whose controller or next hop changed
+	 */
+	public int[] addEdge(int edge) {
+		synchronized (g) {
+			synchronized (this) {
+				topology = g.snapshot();
+				return addEdgeLocked(edge);
+			}
+		}
+	}
+
+	private int[] addEdgeLocked(int edge) {
+		grow(topology.getVertexCount());
+		int a = topology.getA(edge);
+		int b = topology.getB(edge);
+		int tail = 0;
+		epoch++;
+		if (improve(a, b)) {
+			queue[tail++] = b;
+		} else if (improve(b, a)) {
+			queue[tail++] = a;
+		}
+		for (int head = 0; head < tail; head++) {
+			int v = queue[head];
+			for (int s = topology.begin(v); s < topology.end(v); s++) {
+				int w = topology.neighbour(s);
+				if (!topology.isRemoved(topology.edge(s)) && improve(v, w)) {
+					queue[tail++] = w;
+				}
+			}
+		}
+		return changed(tail);
+	}
+
+	/**
+	 * Makes v the parent of w if that brings w closer to a controller
+	 *
+	 * @return true if w was improved
+	 */
+	private boolean improve(int v, int w) {
+		if (controller[w] || dist[v] == INF || dist[v] + 1 >= dist[w]) {
+			return false;
+		}
+		if (mark[w] != epoch) {
+			mark[w] = epoch;
+			prevParent[w] = parent[w];
+			prevRoot[w] = root[w];
+		}
+		dist[w] = dist[v] + 1;
+		parent[w] = v;
+		root[w] = root[v];
+		return true;
+	}
+
+	/**
+	 * Collects and invalidates the subtree below a vertex
+	 *
+	 * @param top the vertex
+	 * @param size the vertices already in the queue
+	 * @return the vertices in the queue
+	 */
+	private int subtree(int top, int size) {
+		int first = size;
+		int head = size;
+		mark[top] = epoch;
+		queue[size++] = top;
+		while (head < size) {
+			int v = queue[head++];
+			for (int s = topology.begin(v); s < topology.end(v); s++) {
+				int w = topology.neighbour(s);
+				if (parent[w] == v && mark[w] != epoch) {
+					mark[w] = epoch;
+					queue[size++] = w;
+				}
+			}
+		}
+		for (int i = first; i < size; i++) {
+			int v = queue[i];
+			prevParent[v] = parent[v];
+			prevRoot[v] = root[v];
+			dist[v] = INF;
+			parent[v] = -1;
+			root[v] = -1;
+		}
+		return size;
+	}
+
+	/**
+	 * Gives the invalidated vertices in the queue their best path. Each
+	 * takes the best neighbour outside the invalidated set, then the
+	 * distances are spread inside the set in increasing order.
+	 *
+	 * @param size the invalidated vertices in the queue
+	 * @return the eNodeBs whose controller or next hop changed
+	 */
+	private int[] repair(int size) {
+		int[] s = Arrays.copyOf(queue, size);
+		long[] seeds = new long[size];
+		int seeded = 0;
+		for (int v : s) {
+			for (int k = topology.begin(v); k < topology.end(v); k++) {
+				int w = topology.neighbour(k);
+				if (mark[w] == epoch || dist[w] == INF || topology.isRemoved(topology.edge(k))) {
+					continue;
+				}
+				if (dist[w] + 1 < dist[v] || (dist[w] + 1 == dist[v] && w == prevParent[v])) {
+					dist[v] = dist[w] + 1;
+					parent[v] = w;
+					root[v] = root[w];
+				}
+			}
+			if (dist[v] != INF) {
+				seeds[seeded++] = ((long) dist[v] << 32) | v;
+			}
+		}
+		Arrays.sort(seeds, 0, seeded);
+
+		// merge the sorted seeds with a FIFO of relaxed vertices
+		int head = 0;
+		int tail = 0;
+		int next = 0;
+		while (next < seeded || head < tail) {
+			int v;
+			if (head == tail || (next < seeded && (int) (seeds[next] >>> 32) <= dist[queue[head]])) {
+				v = (int) seeds[next++];
+				if ((int) (seeds[next - 1] >>> 32) != dist[v]) {
+					continue; // improved since it was seeded
+				}
+			} else {
+				v = queue[head++];
+			}
+			for (int k = topology.begin(v); k < topology.end(v); k++) {
+				int w = topology.neighbour(k);
+				if (mark[w] != epoch || controller[w] || topology.isRemoved(topology.edge(k))) {
+					continue;
+				}
+				if (dist[v] + 1 < dist[w]) {
+					dist[w] = dist[v] + 1;
+					parent[w] = v;
+					root[w] = root[v];
+					queue[tail++] = w;
+				} else if (dist[v] + 1 == dist[w] && v == prevParent[w]) {
+					parent[w] = v; // keep the old next hop on a tie
+					root[w] = root[v];
+				}
+			}
+		}
+
+		int n = 0;
+		for (int v : s) {
+			if (parent[v] != prevParent[v] || root[v] != prevRoot[v]) {
+				queue[n++] = v;
+			}
+		}
+		return Arrays.copyOf(queue, n);
+	}
+
+	/**
+	 * Gets the vertices in the queue whose controller or next hop changed
+	 */
+	private int[] changed(int size) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			int v = queue[i];
+			if (mark[v] == epoch && (parent[v] != prevParent[v] || root[v] != prevRoot[v])) {
+				mark[v] = -1; // report once
+				queue[n++] = v;
+			}
+		}
+		return Arrays.copyOf(queue, n);
+	}
+
+	/**
+	 * Makes room for vertices added after the paths were computed
+	 */
+	private void grow(int n) {
+		if (n <= dist.length) {
+			return;
+		}
+		int old = dist.length;
+		controller = Arrays.copyOf(controller, n);
+		alive = Arrays.copyOf(alive, n);
+		dist = Arrays.copyOf(dist, n);
+		parent = Arrays.copyOf(parent, n);
+		root = Arrays.copyOf(root, n);
+		mark = Arrays.copyOf(mark, n);
+		prevParent = Arrays.copyOf(prevParent, n);
+		prevRoot = Arrays.copyOf(prevRoot, n);
+		queue = Arrays.copyOf(queue, n);
+		Arrays.fill(dist, old, n, INF);
+		Arrays.fill(parent, old, n, -1);
+		Arrays.fill(root, old, n, -1);
+	}
+}
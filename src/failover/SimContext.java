@@ -0,0 +1,620 @@
+package failover;
+
+/**
+ * Everything that belongs to one run of a simulation: the clock, the random
+ * number generator, the topology and the output.
+ *
+ * Nothing in a context is shared with another run, so runs can be executed
+ * in parallel.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+public class SimContext implements Clock {
+	private static final int MISSED_HEARTBEATS = 3; // of the default failure detector
+
+	private int run;
+	private long seed;
+	private Clock clock;
+	private TimerService timers;
+	private long startTime;
+	private Random random;
+	private SplittableRandom streams; // split into one stream per Entity
+	private DecimalFormat decFor;
+	private ByteArrayOutputStream buffer;
+	private PrintStream out;
+	private ArrayList<Controller> controllers;
+	private ArrayList<ENodeB> eNodeBs;
+	private ArrayList<Entity> entities; // by id
+	private Graph graph;
+	private MessagePool messagePool;
+	private long heartbeatInterval;
+	private long rebroadcastInterval;
+	private FailureDetector.Factory detectorFactory;
+	private double serviceRate; // adoptions per second of a controller, 0 for no limit
+	private int queueLimit; // orphan requests a controller admits
+	private int maxENodeBs; // eNodeBs a controller takes
+	private boolean batching; // responses sharing a next hop travel together
+	private int mailboxCapacity; // messages an eNodeB queues of each kind
+	private int mailboxPolicy; // what a full mailbox does, see Mailbox
+	private Links links; // delays of the connections, or null if messages cross them at once
+	private long syncInterval; // milliseconds between east-west batches of a controller, 0 for none
+	private long syncDelay; // milliseconds an east-west batch takes
+	private int backups; // backup controllers planned per eNodeB, 0 to only flood
+	private BackupPlanner backupPlan;
+	private boolean tracking; // keep shortest paths to the controllers up to date
+	private ShortestPaths paths;
+	private RunResult result;
+	private Metrics metrics;
+	private Trace trace;
+	private FaultSchedule faults; // replaces the failures of the topology
+	private FaultSchedule topologyFaults;
+	private Shard shard; // the part of the run this process runs, or null
+
+	public SimContext(int run, long seed) {
+		this.run = run;
+		this.seed = seed;
+		clock = Clock.SYSTEM;
+		startTime = 0;
+		random = new Random(seed);
+		streams = new SplittableRandom(seed);
+		decFor = new DecimalFormat("#0.000");
+		decFor.setRoundingMode(RoundingMode.CEILING);
+		buffer = new ByteArrayOutputStream();
+		out = new PrintStream(buffer, true);
+		controllers = new ArrayList<Controller>();
+		eNodeBs = new ArrayList<ENodeB>();
+		entities = new ArrayList<Entity>();
+		graph = new Graph();
+		messagePool = new MessagePool(this, 4096);
+		setHeartbeats(1000, null);
+		rebroadcastInterval = 500;
+		serviceRate = 0;
+		queueLimit = Integer.MAX_VALUE;
+		maxENodeBs = Integer.MAX_VALUE;
+		batching = true;
+		mailboxCapacity = 256;
+		mailboxPolicy = Mailbox.REJECT;
+		links = null;
+		syncInterval = 0;
+		syncDelay = 0;
+		backups = 0;
+		backupPlan = null;
+		tracking = false;
+		paths = null;
+		result = new RunResult(run);
+		metrics = new Metrics(this);
+		trace = null;
+		faults = null;
+		topologyFaults = new FaultSchedule("topology");
+		shard = null;
+	}
+
+	/**
+	 * Gets the run number
+	 *
+	 * @return run
+	 */
+	public int getRun() {
+		return run;
+	}
+
+	/**
+	 * Gets the seed of the run
+	 *
+	 * @return seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Sets the clock of the run
+	 *
+	 * @param clock the wall clock or the virtual clock of an EventEngine
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Sets the timers of the run
+	 *
+	 * @param timers the EventEngine or a TimingWheel
+	 */
+	public void setTimers(TimerService timers) {
+		this.timers = timers;
+	}
+
+	/**
+	 * Gets the timers of the run. Set by the backend running it.
+	 *
+	 * @return timers
+	 */
+	public TimerService getTimers() {
+		return timers;
+	}
+
+	/**
+	 * Gets the current time from the clock of the run
+	 */
+	@Override
+	public long currentTimeMillis() {
+		return clock.currentTimeMillis();
+	}
+
+	/**
+	 * Sets the start time of the run
+	 *
+	 * @param startTime in milliseconds
+	 */
+	public void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Gets the start time of the run
+	 *
+	 * @return startTime in milliseconds
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Gets the random number generator of the run
+	 *
+	 * @return random
+	 */
+	public Random getRandom() {
+		return random;
+	}
+
+	/**
+	 * Splits a random number generator off the seed of the run. Entities
+	 * are created in the same order in every run of a topology, so each gets
+	 * the same stream whatever order the threads later draw from them in.
+	 *
+	 * @return a generator for one Entity
+	 */
+	public synchronized SplittableRandom newRandom() {
+		return streams.split();
+	}
+
+	/**
+	 * Formats elapsed time
+	 *
+	 * @param seconds elapsed
+	 * @return String of time formatted to 3 decimal points rounded to the
+	 *         ceiling
+	 */
+	public synchronized String format(double seconds) {
+		return decFor.format(seconds);
+	}
+
+	/**
+	 * Gets the output of the run
+	 *
+	 * @return out
+	 */
+	public PrintStream getOut() {
+		return out;
+	}
+
+	/**
+	 * Gets everything printed during the run
+	 *
+	 * @return the output as a String
+	 */
+	public String getOutput() {
+		out.flush();
+		return buffer.toString();
+	}
+
+	/**
+	 * Gets the controllers of the run
+	 *
+	 * @return controllers
+	 */
+	public ArrayList<Controller> getControllers() {
+		return controllers;
+	}
+
+	/**
+	 * Gets the eNodeBs of the run
+	 *
+	 * @return eNodeBs
+	 */
+	public ArrayList<ENodeB> getENodeBs() {
+		return eNodeBs;
+	}
+
+	/**
+	 * Registers an Entity of the run
+	 *
+	 * @param e the Entity
+	 * @return the id of the Entity
+	 */
+	public synchronized int register(Entity e) {
+		int id = graph.addVertex();
+		entities.add(e);
+		return id;
+	}
+
+	/**
+	 * Registers an Entity that a shard in another process runs, so that
+	 * the ids and random streams of the entities this process creates are
+	 * those of the whole run
+	 */
+	public synchronized void reserve() {
+		graph.addVertex();
+		entities.add(null);
+		streams.split();
+	}
+
+	/**
+	 * Gets an Entity by id
+	 *
+	 * @param id of the Entity
+	 * @return the Entity, or null if another process of a sharded run has it
+	 */
+	public Entity getEntity(int id) {
+		return entities.get(id);
+	}
+
+	/**
+	 * Gets the connections of the run
+	 *
+	 * @return the graph
+	 */
+	public Graph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Gets the messages of the run
+	 *
+	 * @return the message pool
+	 */
+	public MessagePool getMessagePool() {
+		return messagePool;
+	}
+
+	/**
+	 * Sets the heartbeats of the run
+	 *
+	 * @param interval between heartbeats of a controller in milliseconds
+	 * @param factory creates the failure detector of each eNodeB, or null
+	 *            for a fixed timeout of MISSED_HEARTBEATS heartbeats
+	 */
+	public void setHeartbeats(long interval, FailureDetector.Factory factory) {
+		heartbeatInterval = interval;
+		detectorFactory = factory != null ? factory : FailureDetector.fixed(MISSED_HEARTBEATS * interval);
+	}
+
+	/**
+	 * Gets the time between heartbeats of a controller
+	 *
+	 * @return interval in milliseconds
+	 */
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Sets the shortest time between two broadcasts of an orphan. Called
+	 * before the eNodeBs are created.
+	 *
+	 * @param interval in milliseconds, 500 by default
+	 */
+	public void setRebroadcastInterval(long interval) {
+		rebroadcastInterval = interval;
+	}
+
+	/**
+	 * Gets the shortest time between two broadcasts of an orphan
+	 *
+	 * @return interval in milliseconds
+	 */
+	public long getRebroadcastInterval() {
+		return rebroadcastInterval;
+	}
+
+	/**
+	 * Gets the factory of failure detectors
+	 *
+	 * @return the factory
+	 */
+	public FailureDetector.Factory getDetectorFactory() {
+		return detectorFactory;
+	}
+
+	/**
+	 * Sets the capacity of the controllers created after this call. By
+	 * default controllers have no limits.
+	 *
+	 * @param serviceRate adoptions per second, 0 for no limit
+	 * @param queueLimit orphan requests a controller admits; more are deferred
+	 * @param maxENodeBs eNodeBs a controller takes; more are rejected
+	 */
+	public void setControllerCapacity(double serviceRate, int queueLimit, int maxENodeBs) {
+		this.serviceRate = serviceRate;
+		this.queueLimit = queueLimit;
+		this.maxENodeBs = maxENodeBs;
+	}
+
+	/**
+	 * Gets the adoptions per second of a controller
+	 *
+	 * @return serviceRate, 0 for no limit
+	 */
+	public double getServiceRate() {
+		return serviceRate;
+	}
+
+	/**
+	 * Gets the orphan requests a controller admits
+	 *
+	 * @return queueLimit
+	 */
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+
+	/**
+	 * Gets the eNodeBs a controller takes
+	 *
+	 * @return maxENodeBs
+	 */
+	public int getMaxENodeBs() {
+		return maxENodeBs;
+	}
+
+	/**
+	 * Sets whether responses to orphans that share a next hop are sent as
+	 * one batch. Applies to entities created after this call.
+	 *
+	 * @param batching true by default
+	 */
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+	/**
+	 * Tells whether responses to orphans are batched
+	 *
+	 * @return batching
+	 */
+	public boolean isBatching() {
+		return batching;
+	}
+
+	/**
+	 * Sets the size of the mailboxes of the entities created after this
+	 * call. A controller takes the requests of many eNodeBs, so its mailbox
+	 * is four times as large.
+	 *
+	 * @param capacity messages of each kind an eNodeB queues, 256 by default
+	 * @param policy Mailbox.BLOCK, DROP_OLDEST or REJECT (the default)
+	 */
+	public void setMailboxes(int capacity, int policy) {
+		mailboxCapacity = capacity;
+		mailboxPolicy = policy;
+	}
+
+	/**
+	 * Creates a mailbox for an Entity
+	 *
+	 * @param scale of the capacity, e.g. 4 for a controller
+	 * @param dropped told about messages dropped by DROP_OLDEST, or null
+	 * @return the mailbox
+	 */
+	public Mailbox newMailbox(int scale, Mailbox.Dropped dropped) {
+		return new Mailbox(mailboxCapacity * scale, mailboxPolicy, dropped);
+	}
+
+	/**
+	 * Makes messages take time to cross the connections of the run
+	 *
+	 * @param delay propagation delay of a connection in milliseconds
+	 * @param mbps capacity of a connection in Mbit/s, 0 for unlimited
+	 * @param queueKB most kilobytes waiting to be sent, 0 for unlimited
+	 * @param shapeMbps rate of the token bucket of a connection, 0 for no shaping
+	 * @param burstKB size of the token bucket
+	 */
+	public void setLinks(double delay, double mbps, double queueKB, double shapeMbps, double burstKB) {
+		links = new Links(this, delay, mbps, queueKB, shapeMbps, burstKB);
+	}
+
+	/**
+	 * Gives a connection its own propagation delay and capacity. A run
+	 * without links gets links that take no time, so only this connection
+	 * does.
+	 *
+	 * @param edge the id of the connection
+	 * @param delay in milliseconds
+	 * @param mbps capacity in Mbit/s, 0 for unlimited
+	 */
+	public void setLink(int edge, double delay, double mbps) {
+		if (links == null) {
+			setLinks(0, 0, 0, 0, 0);
+		}
+		links.configure(edge, delay, mbps);
+	}
+
+	/**
+	 * Gets the links of the run
+	 *
+	 * @return the links, or null if messages cross connections at once
+	 */
+	public Links getLinks() {
+		return links;
+	}
+
+	/**
+	 * Makes the controllers created after this call keep each other up to
+	 * date over an east-west channel, see ControllerSync
+	 *
+	 * @param interval milliseconds between batches, 0 (the default) for none
+	 * @param delay milliseconds a batch takes to arrive
+	 */
+	public void setSync(long interval, long delay) {
+		syncInterval = interval;
+		syncDelay = delay;
+	}
+
+	/**
+	 * Gets the time between the east-west batches of a controller
+	 *
+	 * @return milliseconds, 0 if controllers do not sync
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Gets the time an east-west batch takes to arrive
+	 *
+	 * @return milliseconds
+	 */
+	public long getSyncDelay() {
+		return syncDelay;
+	}
+
+	/**
+	 * Sets the number of backup controllers planned for every eNodeB. With
+	 * backups an orphan first asks its best backup controller directly and
+	 * only floods when that fails.
+	 *
+	 * @param backups per eNodeB, 0 (the default) to only flood
+	 */
+	public void setBackups(int backups) {
+		this.backups = backups;
+	}
+
+	/**
+	 * Gets the backup plan of the run, planning it on the first call
+	 *
+	 * @return the plan or null without backups
+	 */
+	public synchronized BackupPlanner getBackupPlan() {
+		if (backups > 0 && backupPlan == null) {
+			backupPlan = BackupPlanner.plan(this, backups);
+		}
+		return backupPlan;
+	}
+
+	/**
+	 * Sets whether the shortest paths from every eNodeB to its nearest
+	 * controller are kept up to date during the run
+	 *
+	 * @param tracking false by default
+	 */
+	public void setShortestPaths(boolean tracking) {
+		this.tracking = tracking;
+	}
+
+	/**
+	 * Gets the shortest paths of the run, computing them on the first call
+	 *
+	 * @return the paths or null if they are not tracked
+	 */
+	public synchronized ShortestPaths getShortestPaths() {
+		if (tracking && paths == null) {
+			paths = ShortestPaths.of(this);
+		}
+		return paths;
+	}
+
+	/**
+	 * Gets the results of the run
+	 *
+	 * @return result
+	 */
+	public RunResult getResult() {
+		return result;
+	}
+
+	/**
+	 * Gets the metrics of the run
+	 *
+	 * @return metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the failures of the run. The failures the topology was built with
+	 * are then ignored.
+	 *
+	 * @param faults the schedule, or null (the default) for the failures of
+	 *            the topology
+	 */
+	public void setFaults(FaultSchedule faults) {
+		this.faults = faults;
+	}
+
+	/**
+	 * Gets the failures the topology was built with, e.g. Controller1
+	 * failing at failTime. Topologies add to it in build().
+	 *
+	 * @return the schedule
+	 */
+	public FaultSchedule getTopologyFaults() {
+		return topologyFaults;
+	}
+
+	/**
+	 * Gets the failures of the run
+	 *
+	 * @return the schedule that was set, or the failures of the topology
+	 */
+	public FaultSchedule getFaults() {
+		return faults != null ? faults : topologyFaults;
+	}
+
+	/**
+	 * Records the queueing and adoption events of the run
+	 *
+	 * @param trace the trace, or null (the default) to record nothing
+	 */
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Gets the trace of the run
+	 *
+	 * @return the trace or null
+	 */
+	public Trace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Splits the run across processes. Set before the topology is built,
+	 * which then only creates the entities the shard needs.
+	 *
+	 * @param shard the part of the run this process runs, or null (the
+	 *            default) to run all of it
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Gets the part of the run this process runs
+	 *
+	 * @return the shard or null
+	 */
+	public Shard getShard() {
+		return shard;
+	}
+}
@@ -29,16 +29,21 @@ package failover;
  * @since Jan 2017
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
-public class Simulation2 {
-	private static ArrayList<Controller> controllers;
-	private static ArrayList<ENodeB> eNodeBs;
+public class Simulation2 implements Topology {
 	public static long maxTime;
 	public static int load;
+	public static ExecutionBackend backend = new EventBackend();
 	public static long failTime;
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			backend = ExecutionBackend.forName(args[0]); // events, threads, virtual-threads or actors
+		}
 		maxTime = 45;
 		failTime = 5;
 		// create different loads for different simulations
@@ -58,77 +63,79 @@ public class Simulation2 {
 		System.out.println("Simulation of failover for Distributed SDN Controllers");
 		System.out.println("Greedy Reactive");
 		
-		for (int i = 1; i<=25;i++){
+		RunExecutor executor = new RunExecutor(backend);
+		ResultsLog log = args.length > 1 && !args[1].equals("-") ? new ResultsLog(new File(args[1])) : null; // appends the results
+		if (log != null) {
+			executor.setResultsLog(log, "Simulation2");
+		}
+		if (args.length > 2) {
+			File traces = new File(args[2]); // a trace of every run, for Replay
+			traces.mkdirs();
+			executor.setTraces(traces, "Simulation2", args[0], null);
+		}
+		executor.setOutput(true);
+		List<RunResult> runs = executor.run(25, new Simulation2(), maxTime, failTime, load);
+		if (log != null) {
+			log.close();
+		}
+		for (RunResult r : runs){
 			printNewSection();
-			System.out.println("RUN "+i);
-			start();			
+			System.out.println("RUN "+r.getRun());
+			System.out.println("SIMULATION BEGINS");
+			System.out.print(r.getOutput());
+			System.out.println("\nSIMULATION COMPLETES");
 		}
-	}
-	
-	private static void start(){
-		// setup
-		setup();
-
-		// system architecture
-		system();
-
-		// run simulation
-		run();
-
-		//printNewSection();
-		System.out.println("\nSIMULATION COMPLETES");
-	}
-
-	/**
-	 * Initialization of the program.
-	 */
-	private static void setup() {
-		controllers = new ArrayList<Controller>();
-		eNodeBs = new ArrayList<ENodeB>();
+		printNewSection();
+		System.out.print(RunResult.summarize(runs));
 	}
 
 	/**
 	 * Initialization of the system architecture. Creates system components:
 	 * Controllers eNodeBs X2 connections
 	 */
-	private static void system() {
+	@Override
+	public void build(SimContext ctx, long maxTime, long failTime, int load) {
+		ArrayList<Controller> controllers = ctx.getControllers();
+		ArrayList<ENodeB> eNodeBs = ctx.getENodeBs();
+
 		//printNewSection();
 		//System.out.println("INITIALIZE SYSTEM\n");
 		
 		/* Create eNodeBs */
 		//System.out.println("\nCreate eNodeBs");
 
-		ENodeB B0 = new ENodeB(0, maxTime, load);
+		ENodeB B0 = new ENodeB(0, maxTime, load, ctx);
 		eNodeBs.add(B0);
-		ENodeB B1 = new ENodeB(1, maxTime, load);
+		ENodeB B1 = new ENodeB(1, maxTime, load, ctx);
 		eNodeBs.add(B1);
-		ENodeB B2 = new ENodeB(2, maxTime, load);
+		ENodeB B2 = new ENodeB(2, maxTime, load, ctx);
 		eNodeBs.add(B2);
-		ENodeB B3 = new ENodeB(3, maxTime, load);
+		ENodeB B3 = new ENodeB(3, maxTime, load, ctx);
 		eNodeBs.add(B3);
-		ENodeB B4 = new ENodeB(4, maxTime, load);
+		ENodeB B4 = new ENodeB(4, maxTime, load, ctx);
 		eNodeBs.add(B4);
-		ENodeB B5 = new ENodeB(5, maxTime, load);
+		ENodeB B5 = new ENodeB(5, maxTime, load, ctx);
 		eNodeBs.add(B5);
-		ENodeB B6 = new ENodeB(6, maxTime, load);
+		ENodeB B6 = new ENodeB(6, maxTime, load, ctx);
 		eNodeBs.add(B6);
-		ENodeB B7 = new ENodeB(7, maxTime, load);
+		ENodeB B7 = new ENodeB(7, maxTime, load, ctx);
 		eNodeBs.add(B7);
-		ENodeB B8 = new ENodeB(8, maxTime, load);
+		ENodeB B8 = new ENodeB(8, maxTime, load, ctx);
 		eNodeBs.add(B8);
-		ENodeB B9 = new ENodeB(9, maxTime, load);
+		ENodeB B9 = new ENodeB(9, maxTime, load, ctx);
 		eNodeBs.add(B9);
-		ENodeB B10 = new ENodeB(10, maxTime, load);
+		ENodeB B10 = new ENodeB(10, maxTime, load, ctx);
 		eNodeBs.add(B10);
 
 		/* Create Controllers */
 		//System.out.println("\nCreate Controllers");
 		
-		Controller c0 = new Controller(0, maxTime, load);
+		Controller c0 = new Controller(0, maxTime, load, ctx);
 		controllers.add(c0);
 		c0.addENodeB(B0,c0);
-		Controller c1 = new Controller(1, failTime, load);
+		Controller c1 = new Controller(1, maxTime, load, ctx);
 		controllers.add(c1);
+		ctx.getTopologyFaults().fail(failTime, 1);
 		c1.addENodeB(B1, B4);
 		c1.addENodeB(B2, B1);
 		c1.addENodeB(B3, B2);
@@ -138,7 +145,7 @@ public class Simulation2 {
 		c1.addENodeB(B7, B4);
 		c1.addENodeB(B8, B7);
 		c1.addENodeB(B9, B8);
-		Controller c2 = new Controller(2, maxTime, load);
+		Controller c2 = new Controller(2, maxTime, load, ctx);
 		controllers.add(c2);
 		c2.addENodeB(B10, c2);
 		
@@ -165,51 +172,6 @@ public class Simulation2 {
 		
 	}
 
-	/**
-	 * Runs the simulation
-	 */
-	private static void run() {
-		ArrayList<Thread> threads = new ArrayList<Thread>();
-		long startTime = System.currentTimeMillis();
-
-		//printNewSection();
-		System.out.println("SIMULATION BEGINS");
-
-		// create threads components
-		for (Controller c : controllers) {
-			c.setStartTime(startTime);
-			Thread t = new Thread(c);
-			threads.add(t);
-			t.start();
-		}
-		
-		try {
-			Thread.sleep(500);
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
-		}
-		
-		for (ENodeB b : eNodeBs) {
-			b.setStartTime(startTime);
-			Thread t = new Thread(b);
-			threads.add(t);
-			t.start();
-		}
-
-		// joins all the threads and ensures the Main program doesn't continue
-		// until the simulation is completed.
-		for (Thread t : threads) {
-			try {
-				t.join();
-			} catch (InterruptedException e) {
-				System.out.println("Cannot join threads");
-				e.printStackTrace();
-			}
-		}
-
-		// System.out.println("finished main");
-	}
-
 	/**
 	 * Creates a new section in the console
 	 */
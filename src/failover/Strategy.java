@@ -0,0 +1,204 @@
+package failover;
+
+/**
+ * How orphans find a new controller and how controllers take them, as the
+ * settings of a SimContext under one name so runs and sweeps can compare
+ * strategies.
+ *
+ * A strategy is named with a descriptor, parts joined with +:
+ *
+ * flood                      orphans flood their requests (the default)
+ * backups:K                  orphans first ask their best of K planned backups
+ * unbatched                  responses are not batched by next hop
+ * paths                      shortest paths to the controllers are tracked
+ * capacity:RATE:QUEUE:MAX    controllers adopt RATE per second, admit QUEUE
+ *                            requests and take MAX eNodeBs
+ * mailbox:SIZE:POLICY        eNodeBs queue SIZE messages of each kind, and
+ *                            full mailboxes block, drop-oldest or reject
+ * link:DELAY:MBPS:QUEUE      messages take DELAY ms to cross a connection of
+ *                            MBPS Mbit/s, and wait for at most QUEUE KB
+ *                            ahead of them (0 is unlimited), see Links
+ * shaping:MBPS:BURST         connections are shaped by a token bucket of
+ *                            MBPS Mbit/s holding BURST KB
+ * heartbeat:MS               controllers send a heartbeat every MS ms (1000)
+ * detector:fixed:TIMEOUT     eNodeBs suspect their controller after TIMEOUT ms
+ *                            without a heartbeat (3 heartbeats, the default)
+ * detector:phi:THRESHOLD     eNodeBs suspect their controller when phi of the
+ *                            time since the last heartbeat reaches THRESHOLD,
+ *                            see PhiAccrualDetector
+ * rebroadcast:MS             orphans broadcast again after MS ms at the
+ *                            soonest (500)
+ * sync:INTERVAL:DELAY        controllers send each other their changes every
+ *                            INTERVAL ms, arriving after DELAY ms, and take
+ *                            over the eNodeBs of a silent one, see
+ *                            ControllerSync
+ *
+ * e.g. backups:3+capacity:50:20:100
+ *      link:2:10:64+shaping:5:16
+ *      backups:3+sync:200:5
+ *      heartbeat:250+detector:phi:8
+ *      backups:3+rebroadcast:250
+ */
+public class Strategy {
+	private String name;
+	private int backups; // -1 if not named
+	private boolean unbatched;
+	private boolean paths;
+	private boolean capacity;
+	private double serviceRate;
+	private int queueLimit;
+	private int maxENodeBs;
+	private int mailboxCapacity; // 0 if not named
+	private int mailboxPolicy;
+	private boolean links;
+	private double linkDelay;
+	private double linkRate;
+	private double linkQueue;
+	private double shapeRate;
+	private double burst;
+	private boolean sync;
+	private long syncInterval;
+	private long syncDelay;
+	private long heartbeatInterval; // 0 if not named
+	private long detectorTimeout; // of a fixed detector, 0 if not named
+	private double phiThreshold; // 0 for a fixed detector
+	private long rebroadcastInterval; // 0 if not named
+
+	/**
+	 * A strategy only holds the settings its descriptor names; the others
+	 * keep the defaults of SimContext.
+	 */
+	private Strategy(String name) {
+		this.name = name;
+		backups = -1;
+		unbatched = false;
+		paths = false;
+		capacity = false;
+		serviceRate = 0;
+		queueLimit = 0;
+		maxENodeBs = 0;
+		mailboxCapacity = 0;
+		mailboxPolicy = 0;
+		links = false;
+		linkDelay = 0;
+		linkRate = 0;
+		linkQueue = 0;
+		shapeRate = 0;
+		burst = 0;
+		sync = false;
+		syncInterval = 0;
+		syncDelay = 0;
+		heartbeatInterval = 0;
+		detectorTimeout = 0;
+		phiThreshold = 0;
+		rebroadcastInterval = 0;
+	}
+
+	/**
+	 * Parses a strategy descriptor
+	 *
+	 * @param descriptor e.g. backups:3+unbatched
+	 * @return the strategy
+	 */
+	public static Strategy parse(String descriptor) {
+		Strategy s = new Strategy(descriptor);
+		for (String part : descriptor.split("\\+")) {
+			String[] words = part.split(":");
+			if (words[0].equals("flood") && words.length == 1) {
+				continue;
+			} else if (words[0].equals("backups") && words.length == 2) {
+				s.backups = Integer.parseInt(words[1]);
+			} else if (words[0].equals("unbatched") && words.length == 1) {
+				s.unbatched = true;
+			} else if (words[0].equals("paths") && words.length == 1) {
+				s.paths = true;
+			} else if (words[0].equals("capacity") && words.length == 4) {
+				s.capacity = true;
+				s.serviceRate = Double.parseDouble(words[1]);
+				s.queueLimit = Integer.parseInt(words[2]);
+				s.maxENodeBs = Integer.parseInt(words[3]);
+			} else if (words[0].equals("mailbox") && words.length == 3) {
+				s.mailboxCapacity = Integer.parseInt(words[1]);
+				s.mailboxPolicy = Mailbox.policy(words[2]);
+			} else if (words[0].equals("link") && words.length == 4) {
+				s.links = true;
+				s.linkDelay = Double.parseDouble(words[1]);
+				s.linkRate = Double.parseDouble(words[2]);
+				s.linkQueue = Double.parseDouble(words[3]);
+			} else if (words[0].equals("shaping") && words.length == 3) {
+				s.links = true;
+				s.shapeRate = Double.parseDouble(words[1]);
+				s.burst = Double.parseDouble(words[2]);
+			} else if (words[0].equals("heartbeat") && words.length == 2) {
+				s.heartbeatInterval = Long.parseLong(words[1]);
+			} else if (words[0].equals("detector") && words.length == 3 && words[1].equals("fixed")) {
+				s.detectorTimeout = Long.parseLong(words[2]);
+				s.phiThreshold = 0;
+			} else if (words[0].equals("detector") && words.length == 3 && words[1].equals("phi")) {
+				s.phiThreshold = Double.parseDouble(words[2]);
+				s.detectorTimeout = 0;
+			} else if (words[0].equals("rebroadcast") && words.length == 2) {
+				s.rebroadcastInterval = Long.parseLong(words[1]);
+			} else if (words[0].equals("sync") && words.length == 3) {
+				s.sync = true;
+				s.syncInterval = Long.parseLong(words[1]);
+				s.syncDelay = Long.parseLong(words[2]);
+			} else {
+				throw new IllegalArgumentException("Unknown strategy " + part);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Sets up a run for the strategy. Called before the topology is built,
+	 * since controllers and eNodeBs take the settings when they are created.
+	 * Only the settings the descriptor names are set.
+	 *
+	 * @param ctx the run
+	 */
+	public void apply(SimContext ctx) {
+		if (backups >= 0) {
+			ctx.setBackups(backups);
+		}
+		if (unbatched) {
+			ctx.setBatching(false);
+		}
+		if (paths) {
+			ctx.setShortestPaths(true);
+		}
+		if (capacity) {
+			ctx.setControllerCapacity(serviceRate, queueLimit, maxENodeBs);
+		}
+		if (mailboxCapacity > 0) {
+			ctx.setMailboxes(mailboxCapacity, mailboxPolicy);
+		}
+		if (sync) {
+			ctx.setSync(syncInterval, syncDelay);
+		}
+		if (rebroadcastInterval > 0) {
+			ctx.setRebroadcastInterval(rebroadcastInterval);
+		}
+		if (heartbeatInterval > 0 || detectorTimeout > 0 || phiThreshold > 0) {
+			long interval = heartbeatInterval > 0 ? heartbeatInterval : ctx.getHeartbeatInterval();
+			FailureDetector.Factory detector = null; // the default detector of SimContext
+			if (phiThreshold > 0) {
+				detector = FailureDetector.phiAccrual(phiThreshold, interval);
+			} else if (detectorTimeout > 0) {
+				detector = FailureDetector.fixed(detectorTimeout);
+			}
+			ctx.setHeartbeats(interval, detector);
+		}
+		if (links) {
+			ctx.setLinks(linkDelay, linkRate, linkQueue, shapeRate, burst);
+		}
+	}
+
+	/**
+	 * Gets the descriptor of the strategy
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+}
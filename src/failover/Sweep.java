@@ -0,0 +1,623 @@
+package failover;
+
+/**
+ * Runs a grid of simulations over ranges of load, failTime, topology,
+ * strategy and fault scenarios, without editing or recompiling anything.
+ *
+ * Every point of the grid is a job of several runs. Jobs run in parallel,
+ * one per core, and the aggregated results of a job are cached in a file
+ * named by the SHA-256 of its full configuration: the topology (and the
+ * contents of its file), backend, runs, times, load, strategy and fault
+ * schedule, and the SHA-256 of the class files of the simulator itself.
+ * Running a sweep again only computes the points that are new or whose
+ * configuration changed, and a rebuilt simulator computes them all again.
+ *
+ * usage: Sweep <sweep file> [cache dir] [csv file]
+ *
+ * Sweep file format, one setting per line, # starts a comment. Every
+ * setting but runs, maxtime and backend takes a list of values:
+ *
+ * topology topologies/simulation2.top grid:10x10:4
+ * load 17 25..95/10          17, then 25 to 95 in steps of 10
+ * failtime 5 10              of the topology's own failure only
+ * strategy flood backups:3 backups:3+capacity:50:20:100
+ * faults topology single:5   FaultSchedule files or descriptors, each adds
+ *                            its scenarios, and topology for the topology's
+ *                            own failure; without it the topology's own
+ * runs 25
+ * maxtime 45
+ * backend events
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Sweep {
+	private static String code; // SHA-256 of the classes of the simulator, see code()
+
+	private List<String> topologies;
+	private List<Integer> loads;
+	private List<Long> failTimes;
+	private List<String> strategies;
+	private List<String> faults;
+	private int runs;
+	private long maxTime;
+	private String backend;
+
+	public Sweep() {
+		topologies = new ArrayList<String>();
+		loads = new ArrayList<Integer>();
+		failTimes = new ArrayList<Long>();
+		strategies = new ArrayList<String>();
+		faults = new ArrayList<String>();
+		runs = 25;
+		maxTime = 45;
+		backend = "events";
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: Sweep <sweep file> [cache dir] [csv file]");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Sweep sweep = read(new File(args[0]));
+		File cache = new File(args.length > 1 ? args[1] : "sweep-cache");
+		cache.mkdirs();
+
+		List<Job> jobs = sweep.jobs();
+		List<Point> points = sweep.run(jobs, cache);
+		int cached = 0;
+		System.out.println(Point.HEADER);
+		for (Point p : points) {
+			System.out.println(p);
+			cached += p.cached ? 1 : 0;
+		}
+		if (args.length > 2) {
+			PrintWriter csv = new PrintWriter(args[2]);
+			try {
+				csv.println(Point.CSV_HEADER);
+				for (Point p : points) {
+					csv.println(p.toCsv());
+				}
+			} finally {
+				csv.close();
+			}
+		}
+		System.out.println(jobs.size() + " points, " + cached + " from the cache, wall time "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Expands the settings into the grid of jobs
+	 *
+	 * @return the jobs, topology first and faults last
+	 * @throws IOException if a topology or fault file cannot be read
+	 */
+	public List<Job> jobs() throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		for (String t : topologies) {
+			TopologySpec topology = TopologySimulation.load(t);
+			String contents = contents(t);
+			List<FaultSchedule> scenarios = new ArrayList<FaultSchedule>();
+			for (String f : faults) {
+				if (f.equals("topology")) {
+					scenarios.add(null);
+				} else {
+					scenarios.addAll(FaultSchedule.load(f, topology, maxTime));
+				}
+			}
+			if (faults.isEmpty()) {
+				scenarios.add(null);
+			}
+			for (int load : loads) {
+				for (String s : strategies) {
+					for (FaultSchedule f : scenarios) {
+						if (f != null) {
+							// the schedule times its failures, failTime has no effect
+							jobs.add(new Job(t, contents, topology, load, -1, Strategy.parse(s), f));
+							continue;
+						}
+						for (long failTime : failTimes) {
+							jobs.add(new Job(t, contents, topology, load, failTime, Strategy.parse(s), f));
+						}
+					}
+				}
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Runs the jobs that are not in the cache, in parallel
+	 *
+	 * @param jobs the grid
+	 * @param cache the directory of the cached results
+	 * @return the result of every job, in the order of the jobs
+	 */
+	public List<Point> run(List<Job> jobs, final File cache) {
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<Point>> futures = new ArrayList<Future<Point>>();
+		for (final Job job : jobs) {
+			futures.add(pool.submit(new Callable<Point>() {
+				@Override
+				public Point call() throws IOException {
+					String config = config(job);
+					File file = new File(cache, sha256(config) + ".result");
+					if (file.isFile()) {
+						return Point.read(job, file);
+					}
+					Point p = compute(job);
+					p.write(config, file);
+					return p;
+				}
+			}));
+		}
+
+		List<Point> points = new ArrayList<Point>();
+		try {
+			for (Future<Point> f : futures) {
+				points.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the sweep", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sweep job failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return points;
+	}
+
+	/**
+	 * Runs the runs of one job, one after the other
+	 */
+	private Point compute(Job job) {
+		long start = System.currentTimeMillis();
+		RunExecutor executor = new RunExecutor(1, ExecutionBackend.forName(backend));
+		executor.setStrategy(job.strategy);
+		executor.setFaults(job.faults);
+		long failTime = job.failTime >= 0 ? job.failTime : TopologySimulation.failTime;
+		List<RunResult> results = executor.run(runs, job.spec, maxTime, failTime, job.load);
+		return new Point(job, results, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Describes everything a job's results depend on, one setting per line
+	 *
+	 * @param job the job
+	 * @return the configuration
+	 */
+	public String config(Job job) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("code ").append(code()).append('\n');
+		sb.append("topology ").append(job.topology).append('\n');
+		sb.append("contents ").append(job.contents).append('\n');
+		sb.append("backend ").append(backend).append('\n');
+		sb.append("runs ").append(runs).append('\n');
+		sb.append("maxtime ").append(maxTime).append('\n');
+		if (job.failTime >= 0) {
+			sb.append("failtime ").append(job.failTime).append('\n');
+		}
+		sb.append("load ").append(job.load).append('\n');
+		sb.append("strategy ").append(job.strategy).append('\n');
+		sb.append(job.faults != null ? job.faults.toString() : "scenario topology\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the SHA-256 of a topology file, or nothing for a generator
+	 */
+	private static String contents(String topology) throws IOException {
+		File file = new File(topology);
+		if (!file.isFile()) {
+			return "generated";
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			digest(md, file);
+			return hex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256", e);
+		}
+	}
+
+	/**
+	 * Gets the SHA-256 of the code that computes the results: the jar the
+	 * simulator was loaded from, or the class files of its package. Any
+	 * rebuild that changes the code changes the configuration of every job,
+	 * so the cache never serves results of other code.
+	 *
+	 * @return 64 hex digits
+	 */
+	static synchronized String code() {
+		if (code != null) {
+			return code;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			File location = new File(Sweep.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (location.isFile()) {
+				digest(md, location);
+			} else {
+				File[] classes = new File(location, Sweep.class.getPackage().getName()).listFiles();
+				Arrays.sort(classes);
+				for (File c : classes) {
+					if (c.getName().endsWith(".class")) {
+						md.update(c.getName().getBytes(StandardCharsets.UTF_8));
+						digest(md, c);
+					}
+				}
+			}
+			code = hex(md.digest());
+			return code;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256", e);
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException("Cannot find the classes of the simulator", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read the classes of the simulator", e);
+		}
+	}
+
+	/**
+	 * Adds the contents of a file to a digest
+	 */
+	private static void digest(MessageDigest md, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				md.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the SHA-256 of a String as hex
+	 *
+	 * @param s the String
+	 * @return 64 hex digits
+	 */
+	public static String sha256(String s) {
+		try {
+			return hex(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256", e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a sweep file
+	 *
+	 * @param file the sweep file
+	 * @return the sweep
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static Sweep read(File file) throws IOException {
+		Sweep sweep = new Sweep();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0) {
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				String[] words = line.split("\\s+");
+				try {
+					sweep.set(words);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file.getName() + ":" + lineNumber + ": " + e.getMessage() + ": " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (sweep.topologies.isEmpty()) {
+			throw new IOException(file.getName() + ": no topology");
+		}
+		if (sweep.loads.isEmpty()) {
+			sweep.loads.add(TopologySimulation.load);
+		}
+		if (sweep.failTimes.isEmpty()) {
+			sweep.failTimes.add(TopologySimulation.failTime);
+		}
+		if (sweep.strategies.isEmpty()) {
+			sweep.strategies.add("flood");
+		}
+		return sweep;
+	}
+
+	/**
+	 * Takes one line of a sweep file
+	 */
+	private void set(String[] words) {
+		if (words.length < 2) {
+			throw new IllegalArgumentException("No value");
+		}
+		if (words[0].equals("topology")) {
+			for (int i = 1; i < words.length; i++) {
+				topologies.add(words[i]);
+			}
+		} else if (words[0].equals("load")) {
+			for (int i = 1; i < words.length; i++) {
+				for (long v : range(words[i])) {
+					loads.add((int) v);
+				}
+			}
+		} else if (words[0].equals("failtime")) {
+			for (int i = 1; i < words.length; i++) {
+				failTimes.addAll(range(words[i]));
+			}
+		} else if (words[0].equals("strategy")) {
+			for (int i = 1; i < words.length; i++) {
+				Strategy.parse(words[i]); // fail on a bad strategy before anything runs
+				strategies.add(words[i]);
+			}
+		} else if (words[0].equals("faults")) {
+			for (int i = 1; i < words.length; i++) {
+				faults.add(words[i]);
+			}
+		} else if (words[0].equals("runs") && words.length == 2) {
+			runs = Integer.parseInt(words[1]);
+		} else if (words[0].equals("maxtime") && words.length == 2) {
+			maxTime = Long.parseLong(words[1]);
+		} else if (words[0].equals("backend") && words.length == 2) {
+			ExecutionBackend.forName(words[1]);
+			backend = words[1];
+		} else {
+			throw new IllegalArgumentException("Unknown setting");
+		}
+	}
+
+	/**
+	 * Expands a value or a range from..to/step
+	 */
+	private static List<Long> range(String s) {
+		List<Long> values = new ArrayList<Long>();
+		int dots = s.indexOf("..");
+		if (dots < 0) {
+			values.add(Long.parseLong(s));
+			return values;
+		}
+		int slash = s.indexOf('/');
+		long from = Long.parseLong(s.substring(0, dots));
+		long to = Long.parseLong(s.substring(dots + 2, slash < 0 ? s.length() : slash));
+		long step = slash < 0 ? 1 : Long.parseLong(s.substring(slash + 1));
+		if (step <= 0) {
+			throw new IllegalArgumentException("Bad step " + step);
+		}
+		for (long v = from; v <= to; v += step) {
+			values.add(v);
+		}
+		return values;
+	}
+
+	/**
+	 * One point of the grid
+	 */
+	public static class Job {
+		private String topology;
+		private String contents; // SHA-256 of the topology file
+		private TopologySpec spec;
+		private int load;
+		private long failTime; // or -1 when the faults time the failures
+		private Strategy strategy;
+		private FaultSchedule faults; // or null for the failures of the topology
+
+		Job(String topology, String contents, TopologySpec spec, int load, long failTime, Strategy strategy,
+				FaultSchedule faults) {
+			this.topology = topology;
+			this.contents = contents;
+			this.spec = spec;
+			this.load = load;
+			this.failTime = failTime;
+			this.strategy = strategy;
+			this.faults = faults;
+		}
+	}
+
+	/**
+	 * The aggregated results of a job
+	 */
+	public static class Point {
+		static final String HEADER = String.format("%-28s %4s %4s %-24s %-14s %8s %8s %9s %9s %8s %s",
+				"topology", "load", "fail", "strategy", "faults", "orphans", "adopted", "recovery", "outage99",
+				"messages", "ms");
+		static final String CSV_HEADER = "topology,load,failtime,strategy,faults,runs,orphans,adopted,recovered,"
+				+ "recovery_mean_s,recovery_min_s,recovery_max_s,detection_mean_s,outage_p50_ms,outage_p99_ms,"
+				+ "broadcasts,adoption_messages,deferred,rejected,wall_ms";
+
+		private Job job;
+		private boolean cached;
+		private Map<String, String> values;
+
+		private Point(Job job) {
+			this.job = job;
+			values = new HashMap<String, String>();
+		}
+
+		/**
+		 * Aggregates the results of the runs of a job
+		 */
+		Point(Job job, List<RunResult> results, long wall) {
+			this(job);
+			int runs = results.size();
+			double orphans = 0;
+			double adoptions = 0;
+			int recovered = 0;
+			double recovery = 0;
+			double minRecovery = 0;
+			double maxRecovery = 0;
+			double detection = 0;
+			int detections = 0;
+			double broadcasts = 0;
+			double messages = 0;
+			long deferred = 0;
+			long rejected = 0;
+			Metrics.Snapshot metrics = new Metrics.Snapshot();
+			for (RunResult r : results) {
+				orphans += r.getOrphans().size();
+				adoptions += r.getAdoptions().size();
+				double t = r.getRecoveryTime();
+				if (t >= 0) {
+					minRecovery = recovered == 0 ? t : Math.min(minRecovery, t);
+					maxRecovery = Math.max(maxRecovery, t);
+					recovered++;
+					recovery += t;
+				}
+				for (double d : r.getDetectionLatencies()) {
+					detection += d;
+					detections++;
+				}
+				broadcasts += r.getBroadcasts();
+				messages += r.getAdoptionMessages();
+				deferred += r.getDeferred();
+				rejected += r.getRejected();
+				if (r.getMetrics() != null) {
+					metrics.addHistograms(r.getMetrics());
+				}
+			}
+			Histogram outage = metrics.getHistogram(Metrics.OUTAGE);
+			put("runs", runs);
+			put("orphans", orphans / runs);
+			put("adopted", adoptions / runs);
+			put("recovered", recovered);
+			put("recovery_mean_s", recovered > 0 ? recovery / recovered : -1);
+			put("recovery_min_s", recovered > 0 ? minRecovery : -1);
+			put("recovery_max_s", recovered > 0 ? maxRecovery : -1);
+			put("detection_mean_s", detections > 0 ? detection / detections : -1);
+			put("outage_p50_ms", outage.getCount() > 0 ? outage.getPercentile(50) : -1);
+			put("outage_p99_ms", outage.getCount() > 0 ? outage.getPercentile(99) : -1);
+			put("broadcasts", broadcasts / runs);
+			put("adoption_messages", messages / runs);
+			put("deferred", deferred);
+			put("rejected", rejected);
+			put("wall_ms", wall);
+		}
+
+		private void put(String key, double value) {
+			values.put(key, value == Math.rint(value) ? Long.toString((long) value)
+					: String.format(Locale.ROOT, "%.3f", value));
+		}
+
+		private double get(String key) {
+			String v = values.get(key);
+			return v != null ? Double.parseDouble(v) : -1;
+		}
+
+		/**
+		 * Reads a cached point
+		 */
+		static Point read(Job job, File file) throws IOException {
+			Properties p = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			Point point = new Point(job);
+			point.cached = true;
+			for (String key : p.stringPropertyNames()) {
+				point.values.put(key, p.getProperty(key));
+			}
+			return point;
+		}
+
+		/**
+		 * Writes the point to the cache. The file appears at once or not at
+		 * all, so a sweep running at the same time never reads half of it.
+		 */
+		void write(String config, File file) throws IOException {
+			Properties p = new Properties();
+			p.putAll(values);
+			File tmp = File.createTempFile("point", ".tmp", file.getParentFile());
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				p.store(out, config);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		private String faults() {
+			return job.faults != null ? job.faults.getName() : "topology";
+		}
+
+		private String failTime() {
+			return job.failTime >= 0 ? Long.toString(job.failTime) : "-";
+		}
+
+		/**
+		 * Gets a row of the table
+		 */
+		@Override
+		public String toString() {
+			return String.format("%-28s %4d %4s %-24s %-14s %8.1f %8.1f %8.3fs %7.0fms %8.1f %s", job.topology,
+					job.load, failTime(), job.strategy, faults(), get("orphans"), get("adopted"),
+					get("recovery_mean_s"), get("outage_p99_ms"), get("broadcasts"),
+					cached ? "cached" : values.get("wall_ms"));
+		}
+
+		/**
+		 * Gets a row of the CSV file
+		 */
+		String toCsv() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(job.topology).append(',').append(job.load).append(',').append(failTime()).append(',');
+			sb.append(job.strategy).append(',').append(faults());
+			String[] keys = CSV_HEADER.split(",");
+			for (int i = 5; i < keys.length; i++) {
+				sb.append(',').append(values.get(keys[i]) != null ? values.get(keys[i]) : "");
+			}
+			return sb.toString();
+		}
+	}
+}
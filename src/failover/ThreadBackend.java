@@ -0,0 +1,175 @@
+package failover;
+
+/**
+ * Runs a simulation with one thread per Entity on the wall clock.
+ *
+ * The threads are either platform threads or virtual threads. Virtual
+ * threads need Java 21, so they are created through reflection to keep the
+ * project building on older JDKs.
+ *
+ * All threads wait at a barrier until every one of them is ready, and the
+ * run starts when the last arrives. A thread steps its Entity and is then
+ * busy for the delay the step returned, which models the processing of the
+ * Entity; messages arriving meanwhile wait for the next step. An idle
+ * Entity parks its thread until it is signalled, by a message or one of its
+ * timers, so idle threads take no CPU and a message is handled as soon as
+ * it arrives.
+ */
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+public class ThreadBackend implements ExecutionBackend {
+	private boolean virtual;
+	private TimingWheel timers;
+
+	public ThreadBackend(boolean virtual) {
+		this.virtual = virtual;
+		timers = new TimingWheel();
+	}
+
+	@Override
+	public void execute(final SimContext ctx) {
+		ArrayList<Entity> entities = new ArrayList<Entity>();
+		entities.addAll(ctx.getControllers());
+		entities.addAll(ctx.getENodeBs());
+		ctx.setClock(Clock.SYSTEM);
+		ctx.setTimers(timers);
+
+		// the last thread to arrive starts the run
+		Phaser start = new Phaser(entities.size()) {
+			@Override
+			protected boolean onAdvance(int phase, int parties) {
+				ctx.setStartTime(System.currentTimeMillis());
+				ctx.getFaults().install(ctx);
+				return true;
+			}
+		};
+
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (Entity e : entities) {
+			Worker w = new Worker(e, start);
+			Thread t = newThread(w);
+			w.setThread(t);
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+
+		// joins all the threads and ensures the run doesn't finish
+		// until the simulation is completed.
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				ctx.getOut().println("Cannot join threads");
+				e.printStackTrace();
+			}
+		}
+		for (Entity e : entities) {
+			e.setWaker(null);
+		}
+	}
+
+	/**
+	 * Creates an unstarted thread
+	 *
+	 * @param r the Entity to run
+	 * @return a platform or virtual thread
+	 */
+	private Thread newThread(Runnable r) {
+		if (!virtual) {
+			return new Thread(r);
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			return (Thread) unstarted.invoke(builder, r);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+		}
+	}
+
+	/**
+	 * Steps one Entity on its own thread until its maximum time.
+	 */
+	private static class Worker implements Runnable {
+		private Entity entity;
+		private Phaser start;
+		private AtomicBoolean signalled;
+		private volatile Thread thread;
+
+		Worker(Entity entity, Phaser start) {
+			this.entity = entity;
+			this.start = start;
+			signalled = new AtomicBoolean(false);
+		}
+
+		/**
+		 * Sets the thread of the worker, which the Entity wakes when it is
+		 * signalled
+		 *
+		 * @param t the unstarted thread
+		 */
+		void setThread(Thread t) {
+			thread = t;
+			entity.setWaker(new Runnable() {
+				@Override
+				public void run() {
+					if (signalled.compareAndSet(false, true)) {
+						LockSupport.unpark(thread);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			start.arriveAndAwaitAdvance();
+			SimContext ctx = entity.getContext();
+			long stop = ctx.getStartTime() + entity.getMaxTime() * 1000;
+			long next = ctx.getStartTime() + entity.startDelay() + entity.random();
+			while (true) {
+				busyUntil(Math.min(next, stop));
+				if (entity.now() >= stop) {
+					break;
+				}
+				signalled.set(false); // signals from here on are for the next step
+				long delay = entity.step();
+				if (entity.isIdle()) {
+					awaitSignal(stop);
+					next = entity.now();
+				} else {
+					next = entity.now() + delay;
+				}
+			}
+			entity.shutdown();
+		}
+
+		/**
+		 * Parks until a time, whether signalled or not
+		 *
+		 * @param time in milliseconds on the wall clock
+		 */
+		private void busyUntil(long time) {
+			while (System.currentTimeMillis() < time) {
+				LockSupport.parkUntil(time);
+			}
+		}
+
+		/**
+		 * Parks until the Entity is signalled or a time
+		 *
+		 * @param time in milliseconds on the wall clock
+		 */
+		private void awaitSignal(long time) {
+			while (!signalled.get() && System.currentTimeMillis() < time) {
+				LockSupport.parkUntil(time);
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package failover;
+
+/**
+ * Runs tasks after a delay. Entities register their timers (heartbeats,
+ * failure detection) with the timer service of their run: the virtual clock
+ * of the EventEngine or a TimingWheel on the wall clock.
+ */
+public interface TimerService {
+
+	/**
+	 * Schedules a task
+	 *
+	 * @param delay in milliseconds
+	 * @param task to run
+	 * @return a handle to cancel the task
+	 */
+	public Timeout schedule(long delay, Runnable task);
+
+	/**
+	 * A scheduled task
+	 */
+	public interface Timeout {
+
+		/**
+		 * Stops the task from running. Has no effect once it ran.
+		 */
+		public void cancel();
+	}
+}
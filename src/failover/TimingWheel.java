@@ -0,0 +1,251 @@
+package failover;
+
+/**
+ * A hierarchical hashed timing wheel on the wall clock (Varghese and Lauck).
+ *
+ * Time is cut into ticks of one millisecond. Each level of the wheel has 64
+ * slots and a slot of level i spans 64^i ticks, so five levels cover about
+ * twelve days. A task is put in the slot of the lowest level whose range
+ * covers its delay and moves down a level whenever that level wraps around.
+ * Slots are intrusive doubly-linked lists, so scheduling and cancelling are
+ * O(1).
+ *
+ * A single ticker thread advances the wheel and runs the expired tasks, so
+ * tasks should be short, e.g. waking an actor. Between ticks that have
+ * work it sleeps until the earliest occupied slot comes around, or until
+ * a task is scheduled. The ticker starts with the first task and is a
+ * daemon thread.
+ */
+
+import java.util.concurrent.locks.LockSupport;
+
+public class TimingWheel implements TimerService {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 5;
+
+	private Task[][] wheel; // sentinels of the slots
+	private long origin; // wall time of tick 0
+	private long tick; // the last tick that was processed
+	private int size;
+	private Thread ticker;
+
+	public TimingWheel() {
+		wheel = new Task[LEVELS][SLOTS];
+		for (int level = 0; level < LEVELS; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				Task sentinel = new Task(0, null);
+				sentinel.next = sentinel;
+				sentinel.prev = sentinel;
+				wheel[level][slot] = sentinel;
+			}
+		}
+		origin = System.currentTimeMillis();
+		tick = 0;
+		size = 0;
+	}
+
+	/**
+	 * Schedules a task on the ticker thread
+	 */
+	@Override
+	public Timeout schedule(long delay, Runnable task) {
+		long due = System.currentTimeMillis() - origin + Math.max(0, delay);
+		Task t = new Task(due, task);
+		synchronized (this) {
+			t.due = Math.max(due, tick + 1);
+			insert(t);
+			size++;
+			if (ticker == null) {
+				ticker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						tick();
+					}
+				}, "timing-wheel");
+				ticker.setDaemon(true);
+				ticker.start();
+			}
+		}
+		LockSupport.unpark(ticker);
+		return t;
+	}
+
+	/**
+	 * Gets the number of tasks waiting
+	 *
+	 * @return size
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Puts a task in the slot of the lowest level that covers its due tick
+	 *
+	 * @param t the task
+	 */
+	private void insert(Task t) {
+		long delta = t.due - tick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+			level++;
+		}
+		int slot = (int) ((t.due >>> (BITS * level)) & MASK);
+		Task sentinel = wheel[level][slot];
+		t.prev = sentinel.prev;
+		t.next = sentinel;
+		sentinel.prev.next = t;
+		sentinel.prev = t;
+	}
+
+	/**
+	 * Takes a task out of its slot
+	 *
+	 * @param t the task
+	 */
+	private void unlink(Task t) {
+		t.prev.next = t.next;
+		t.next.prev = t.prev;
+		t.next = null;
+		t.prev = null;
+	}
+
+	/**
+	 * Advances the wheel by one tick and collects the expired tasks
+	 *
+	 * @param expired the list to add expired tasks to
+	 * @return the head of the expired list
+	 */
+	private Task advance(Task expired) {
+		tick++;
+		// cascade the higher levels that wrapped around
+		for (int level = 1; level < LEVELS; level++) {
+			if ((tick & ((1L << (BITS * level)) - 1)) != 0) {
+				break;
+			}
+			Task sentinel = wheel[level][(int) ((tick >>> (BITS * level)) & MASK)];
+			Task t = sentinel.next;
+			sentinel.next = sentinel;
+			sentinel.prev = sentinel;
+			while (t != sentinel) {
+				Task next = t.next;
+				insert(t);
+				t = next;
+			}
+		}
+
+		Task sentinel = wheel[0][(int) (tick & MASK)];
+		Task t = sentinel.next;
+		while (t != sentinel) {
+			Task next = t.next;
+			if (t.due <= tick) {
+				unlink(t);
+				size--;
+				t.next = expired;
+				expired = t;
+			}
+			t = next;
+		}
+		return expired;
+	}
+
+	/**
+	 * The ticker thread: advances the wheel to the wall clock and runs the
+	 * expired tasks outside the lock.
+	 */
+	private void tick() {
+		while (true) {
+			Task expired = null;
+			long until; // the next tick with work
+			synchronized (this) {
+				long now = System.currentTimeMillis() - origin;
+				while (tick < now) {
+					expired = advance(expired);
+				}
+				until = size == 0 ? Long.MAX_VALUE : next();
+			}
+
+			// the expired list is in reverse order
+			Task ordered = null;
+			while (expired != null) {
+				Task next = expired.next;
+				expired.next = ordered;
+				ordered = expired;
+				expired = next;
+			}
+			while (ordered != null) {
+				Task next = ordered.next;
+				ordered.next = null;
+				try {
+					ordered.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				ordered = next;
+			}
+
+			if (until == Long.MAX_VALUE) {
+				LockSupport.park(this); // until a task is scheduled
+			} else {
+				// the tasks above may have taken a while
+				long wait = until - (System.currentTimeMillis() - origin);
+				if (wait > 0) {
+					LockSupport.parkNanos(this, wait * 1000000L);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the next tick with work: the earliest occupied slot ahead at
+	 * level 0, or the earliest wrap-around of a higher level that cascades
+	 * an occupied slot
+	 *
+	 * @return the tick, or Long.MAX_VALUE if the wheel is empty
+	 */
+	private long next() {
+		long next = Long.MAX_VALUE;
+		for (int level = 0; level < LEVELS; level++) {
+			long round = tick >>> (BITS * level);
+			for (int k = 1; k <= SLOTS; k++) {
+				long at = (round + k) << (BITS * level);
+				if (at >= next) {
+					break; // a lower level has work sooner
+				}
+				Task sentinel = wheel[level][(int) ((round + k) & MASK)];
+				if (sentinel.next != sentinel) {
+					next = at;
+					break;
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * A task in a slot of the wheel
+	 */
+	private class Task implements Timeout {
+		private long due; // tick
+		private Runnable task;
+		private Task next;
+		private Task prev;
+
+		Task(long due, Runnable task) {
+			this.due = due;
+			this.task = task;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (TimingWheel.this) {
+				if (prev != null) {
+					unlink(this);
+					size--;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package failover;
+
+/**
+ * Builds the system architecture of a simulation: Controllers, eNodeBs and
+ * the connections between them.
+ */
+public interface Topology {
+
+	/**
+	 * Creates the system components of one run
+	 *
+	 * @param ctx the run to add the components to
+	 * @param maxTime of the simulation in seconds
+	 * @param failTime of the failing controller in seconds
+	 * @param load the percent load
+	 */
+	public void build(SimContext ctx, long maxTime, long failTime, int load);
+}
@@ -0,0 +1,276 @@
+package failover;
+
+/**
+ * Generates large synthetic topologies: grid, ring, hexagonal-cell and
+ * random-geometric layouts of eNodeBs.
+ *
+ * The controllers are connected to gateway eNodeBs spread evenly over the
+ * layout, and every eNodeB is assigned to its nearest controller (by hops)
+ * with a multi-source breadth-first search, so its next hop is the eNodeB it
+ * was reached from. eNodeBs that cannot reach any controller are left
+ * without one. Controller1 fails, as in the simulations.
+ *
+ * A generator is named with a descriptor:
+ *
+ * grid:ROWSxCOLS[:controllers]
+ * ring:N[:controllers]
+ * hex:ROWSxCOLS[:controllers]
+ * rgg:N[:controllers[:seed]]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TopologyGenerator {
+	private static final int CONTROLLERS = 3;
+	private static final double RGG_DEGREE = 6.0; // average X2 connections per eNodeB
+
+	/**
+	 * Writes a generated topology to a file, e.g.
+	 * java failover.TopologyGenerator grid:300x300:8 grid.top
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("usage: TopologyGenerator <descriptor> <file>");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		TopologySpec spec = generate(args[0]);
+		spec.write(new File(args[1]));
+		System.out.println(spec.getName() + ": " + spec.getENodeBCount() + " eNodeBs, " + spec.getLinkCount()
+				+ " connections in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Generates a topology from a descriptor
+	 *
+	 * @param descriptor e.g. grid:100x100:4
+	 * @return the topology
+	 */
+	public static TopologySpec generate(String descriptor) {
+		String[] parts = descriptor.split(":");
+		int controllers = parts.length > 2 ? Integer.parseInt(parts[2]) : CONTROLLERS;
+
+		if (parts[0].equals("grid") || parts[0].equals("hex")) {
+			String[] size = parts[1].split("x");
+			int rows = Integer.parseInt(size[0]);
+			int cols = Integer.parseInt(size[1]);
+			return parts[0].equals("grid") ? grid(rows, cols, controllers) : hex(rows, cols, controllers);
+		} else if (parts[0].equals("ring")) {
+			return ring(Integer.parseInt(parts[1]), controllers);
+		} else if (parts[0].equals("rgg")) {
+			long seed = parts.length > 3 ? Long.parseLong(parts[3]) : 1;
+			return randomGeometric(Integer.parseInt(parts[1]), controllers, seed);
+		}
+		throw new IllegalArgumentException("Unknown topology " + descriptor);
+	}
+
+	/**
+	 * eNodeBs in rows and columns, connected to the eNodeBs left, right,
+	 * above and below.
+	 *
+	 * @param rows of eNodeBs
+	 * @param cols of eNodeBs
+	 * @param controllers the number of controllers
+	 * @return the topology
+	 */
+	public static TopologySpec grid(int rows, int cols, int controllers) {
+		TopologySpec spec = new TopologySpec("grid:" + rows + "x" + cols + ":" + controllers);
+		spec.setENodeBCount(rows * cols);
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				int e = r * cols + c;
+				if (c + 1 < cols) {
+					spec.addLink(e, e + 1);
+				}
+				if (r + 1 < rows) {
+					spec.addLink(e, e + cols);
+				}
+			}
+		}
+		return finish(spec, controllers);
+	}
+
+	/**
+	 * eNodeBs in a ring, each connected to the next.
+	 *
+	 * @param n eNodeBs
+	 * @param controllers the number of controllers
+	 * @return the topology
+	 */
+	public static TopologySpec ring(int n, int controllers) {
+		TopologySpec spec = new TopologySpec("ring:" + n + ":" + controllers);
+		spec.setENodeBCount(n);
+		for (int e = 0; e < n; e++) {
+			if (n > 1 && (e + 1 < n || n > 2)) {
+				spec.addLink(e, (e + 1) % n);
+			}
+		}
+		return finish(spec, controllers);
+	}
+
+	/**
+	 * Hexagonal cells in offset rows: every cell is connected to its six
+	 * neighbours. Odd rows are shifted half a cell to the right.
+	 *
+	 * @param rows of cells
+	 * @param cols of cells
+	 * @param controllers the number of controllers
+	 * @return the topology
+	 */
+	public static TopologySpec hex(int rows, int cols, int controllers) {
+		TopologySpec spec = new TopologySpec("hex:" + rows + "x" + cols + ":" + controllers);
+		spec.setENodeBCount(rows * cols);
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				int e = r * cols + c;
+				if (c + 1 < cols) {
+					spec.addLink(e, e + 1);
+				}
+				if (r + 1 < rows) {
+					// the two cells below: odd rows lean right, even rows lean left
+					int left = (r % 2 == 0) ? c - 1 : c;
+					for (int below = left; below <= left + 1; below++) {
+						if (below >= 0 && below < cols) {
+							spec.addLink(e, (r + 1) * cols + below);
+						}
+					}
+				}
+			}
+		}
+		return finish(spec, controllers);
+	}
+
+	/**
+	 * eNodeBs at random points in a unit square, connected to every eNodeB
+	 * within a radius. The radius gives about six connections per eNodeB.
+	 * Points are bucketed in cells of the radius so only neighbouring cells
+	 * are compared.
+	 *
+	 * @param n eNodeBs
+	 * @param controllers the number of controllers
+	 * @param seed for the positions
+	 * @return the topology
+	 */
+	public static TopologySpec randomGeometric(int n, int controllers, long seed) {
+		TopologySpec spec = new TopologySpec("rgg:" + n + ":" + controllers + ":" + seed);
+		spec.setENodeBCount(n);
+
+		Random random = new Random(seed);
+		double radius = Math.sqrt(RGG_DEGREE / (Math.PI * Math.max(1, n)));
+		double[] x = new double[n];
+		double[] y = new double[n];
+		int cells = Math.max(1, (int) (1 / radius));
+		int[] cellStart = new int[cells * cells + 1];
+		int[] cellOf = new int[n];
+
+		for (int e = 0; e < n; e++) {
+			x[e] = random.nextDouble();
+			y[e] = random.nextDouble();
+			cellOf[e] = cell(x[e], cells) * cells + cell(y[e], cells);
+			cellStart[cellOf[e] + 1]++;
+		}
+		for (int i = 0; i < cells * cells; i++) {
+			cellStart[i + 1] += cellStart[i];
+		}
+		int[] fill = cellStart.clone();
+		int[] members = new int[n];
+		for (int e = 0; e < n; e++) {
+			members[fill[cellOf[e]]++] = e;
+		}
+
+		double r2 = radius * radius;
+		for (int e = 0; e < n; e++) {
+			int cx = cellOf[e] / cells;
+			int cy = cellOf[e] % cells;
+			for (int i = Math.max(0, cx - 1); i <= Math.min(cells - 1, cx + 1); i++) {
+				for (int j = Math.max(0, cy - 1); j <= Math.min(cells - 1, cy + 1); j++) {
+					int cell = i * cells + j;
+					for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+						int f = members[k];
+						double dx = x[e] - x[f];
+						double dy = y[e] - y[f];
+						if (f > e && dx * dx + dy * dy <= r2) {
+							spec.addLink(e, f);
+						}
+					}
+				}
+			}
+		}
+		return finish(spec, controllers);
+	}
+
+	/**
+	 * Gets the cell of a coordinate
+	 */
+	private static int cell(double v, int cells) {
+		return Math.min(cells - 1, (int) (v * cells));
+	}
+
+	/**
+	 * Connects the controllers to evenly spread gateway eNodeBs and assigns
+	 * every reachable eNodeB to its nearest controller.
+	 *
+	 * @param spec the eNodeBs and X2 connections
+	 * @param controllers the number of controllers
+	 * @return the finished topology
+	 */
+	private static TopologySpec finish(TopologySpec spec, int controllers) {
+		int n = spec.getENodeBCount();
+		controllers = Math.max(1, Math.min(controllers, n));
+		spec.setControllerCount(controllers);
+
+		// adjacency of the eNodeBs in compressed rows
+		int links = spec.getLinkCount();
+		int[] start = new int[n + 1];
+		for (int i = 0; i < links; i++) {
+			start[spec.getLinkA(i) + 1]++;
+			start[spec.getLinkB(i) + 1]++;
+		}
+		for (int e = 0; e < n; e++) {
+			start[e + 1] += start[e];
+		}
+		int[] fill = start.clone();
+		int[] adjacent = new int[2 * links];
+		for (int i = 0; i < links; i++) {
+			int a = spec.getLinkA(i);
+			int b = spec.getLinkB(i);
+			adjacent[fill[a]++] = b;
+			adjacent[fill[b]++] = a;
+		}
+
+		// multi-source breadth-first search from the gateways
+		int[] owner = new int[n];
+		Arrays.fill(owner, -1);
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for (int j = 0; j < controllers; j++) {
+			int gateway = (int) ((2L * j + 1) * n / (2L * controllers));
+			spec.addLink(TopologySpec.controller(j), gateway);
+			if (owner[gateway] < 0) {
+				owner[gateway] = j;
+				spec.assign(j, gateway, TopologySpec.controller(j));
+				queue[tail++] = gateway;
+			}
+		}
+		while (head < tail) {
+			int e = queue[head++];
+			for (int k = start[e]; k < start[e + 1]; k++) {
+				int f = adjacent[k];
+				if (owner[f] < 0) {
+					owner[f] = owner[e];
+					spec.assign(owner[e], f, e);
+					queue[tail++] = f;
+				}
+			}
+		}
+
+		if (controllers > 1) {
+			spec.setFails(1);
+		}
+		return spec;
+	}
+}
@@ -0,0 +1,119 @@
+package failover;
+
+/**
+ * A simulation of failover on a topology from a file or a generator, so
+ * layouts can be tried without writing Java.
+ *
+ * usage: TopologySimulation <file|descriptor> [runs] [backend] [results log|-] [trace dir|-] [faults]
+ *
+ * The faults are a FaultSchedule file or generator descriptor; every
+ * scenario in it is run the given number of times and summarized on one
+ * line. Without them the topology's own failures are used.
+ *
+ * e.g. TopologySimulation topologies/simulation2.top 25
+ *      TopologySimulation hex:300x300:8 1 events
+ *      TopologySimulation grid:10x10:4 1000 events results.log
+ *      TopologySimulation grid:10x10:4 100 threads - traces
+ *      TopologySimulation grid:10x10:4 10 events - - random:1000:2:3
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class TopologySimulation {
+	public static long maxTime = 45;
+	public static long failTime = 5;
+	public static int load = 17;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println(
+					"usage: TopologySimulation <file|descriptor> [runs] [backend] [results log|-] [trace dir|-] [faults]");
+			return;
+		}
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		String backendName = args.length > 2 ? args[2] : "events";
+		ExecutionBackend backend = ExecutionBackend.forName(backendName);
+
+		long start = System.currentTimeMillis();
+		TopologySpec topology = load(args[0]);
+		System.out.println("Simulation of failover for Distributed SDN Controllers");
+		System.out.println(topology.getName() + ": " + topology.getControllerCount() + " controllers, "
+				+ topology.getENodeBCount() + " eNodeBs, " + topology.getLinkCount() + " connections ("
+				+ (System.currentTimeMillis() - start) + " ms)");
+
+		RunExecutor executor = new RunExecutor(backend);
+		ResultsLog log = args.length > 3 && !args[3].equals("-") ? new ResultsLog(new File(args[3])) : null;
+		if (log != null) {
+			executor.setResultsLog(log, topology.getName());
+		}
+		File traces = args.length > 4 && !args[4].equals("-") ? new File(args[4]) : null;
+		if (args.length <= 5) {
+			if (traces != null) {
+				traces.mkdirs();
+				executor.setTraces(traces, args[0], backendName, null);
+			}
+			List<RunResult> results = executor.run(runs, topology, maxTime, failTime, load);
+			System.out.print(RunResult.summarize(results));
+		} else {
+			List<FaultSchedule> scenarios = FaultSchedule.load(args[5], topology, maxTime);
+			System.out.println(scenarios.size() + " fault scenarios from " + args[5]);
+			for (FaultSchedule faults : scenarios) {
+				executor.setFaults(faults);
+				if (traces != null) {
+					File dir = new File(traces, faults.getName());
+					dir.mkdirs();
+					executor.setTraces(dir, args[0], backendName, faults);
+				}
+				List<RunResult> results = executor.run(runs, topology, maxTime, failTime, load);
+				System.out.println(line(faults.getName(), results));
+			}
+		}
+		if (log != null) {
+			log.close();
+		}
+		System.out.println("Wall time: " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Summarizes the runs of one fault scenario on one line
+	 *
+	 * @param name of the scenario
+	 * @param results of its runs
+	 * @return e.g. "C1: 9.0 orphans, 9.0 adopted, recovery 8.353 s (25 of 25 runs)"
+	 */
+	private static String line(String name, List<RunResult> results) {
+		long orphans = 0;
+		long adoptions = 0;
+		int recovered = 0;
+		double recovery = 0;
+		for (RunResult r : results) {
+			orphans += r.getOrphans().size();
+			adoptions += r.getAdoptions().size();
+			if (r.getRecoveryTime() >= 0) {
+				recovered++;
+				recovery += r.getRecoveryTime();
+			}
+		}
+		int runs = results.size();
+		return String.format("%s: %.1f orphans, %.1f adopted, recovery %.3f s (%d of %d runs)", name,
+				(double) orphans / runs, (double) adoptions / runs, recovered > 0 ? recovery / recovered : 0,
+				recovered, runs);
+	}
+
+	/**
+	 * Reads a topology file, or generates a topology if there is no such file
+	 *
+	 * @param name a file or a generator descriptor
+	 * @return the topology
+	 * @throws IOException if the file cannot be read
+	 */
+	public static TopologySpec load(String name) throws IOException {
+		File file = new File(name);
+		if (file.isFile()) {
+			return TopologySpec.read(file);
+		}
+		return TopologyGenerator.generate(name);
+	}
+}
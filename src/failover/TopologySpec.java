@@ -0,0 +1,542 @@
+package failover;
+
+/**
+ * A description of a system architecture that can be read from a file,
+ * written to a file or generated.
+ *
+ * The description is kept in primitive arrays so topologies with hundreds
+ * of thousands of eNodeBs are cheap to hold, and it is turned into
+ * Controllers, eNodeBs and Connections once per run by build().
+ *
+ * File format, one statement per line, # starts a comment:
+ *
+ * enodebs 11          number of eNodeBs, named E0 .. E10
+ * controllers 3       number of controllers, named C0 .. C2
+ * link E0 E2          an X2 connection (or a controller connection C0 E0)
+ * link E0 E2 5 100    a connection with a delay of 5 ms and 100 Mbit/s, see Links
+ * assign C1 E2 E1     C1 controls E2, and E2 reaches C1 through E1
+ * fail C1             C1 fails at failTime, unless the run has a FaultSchedule
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class TopologySpec implements Topology {
+	private String name;
+	private int eNodeBCount;
+	private int controllerCount;
+	private int linkCount;
+	private int[] linkA;
+	private int[] linkB;
+	private double[] linkDelay; // milliseconds, -1 for the delay of the run; null if no link has its own
+	private double[] linkRate; // Mbit/s, 0 for unlimited
+	private int[] assignController; // controller of each eNodeB or -1
+	private int[] nextHop; // endpoint towards the controller of each eNodeB
+	private boolean[] fails;
+	private int assignmentCount;
+	private int[] assignmentOrder; // eNodeBs in the order they were assigned
+
+	public TopologySpec(String name) {
+		this.name = name;
+		eNodeBCount = 0;
+		controllerCount = 0;
+		linkCount = 0;
+		linkA = new int[16];
+		linkB = new int[16];
+		linkDelay = null;
+		linkRate = null;
+		assignController = new int[0];
+		nextHop = new int[0];
+		fails = new boolean[0];
+		assignmentCount = 0;
+		assignmentOrder = new int[0];
+	}
+
+	/**
+	 * Endpoints are encoded as ints: eNodeB i is i and controller j is -(j + 1)
+	 *
+	 * @param j the controller number
+	 * @return the endpoint of the controller
+	 */
+	public static int controller(int j) {
+		return -(j + 1);
+	}
+
+	/**
+	 * Gets the name of the topology
+	 *
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the number of eNodeBs
+	 *
+	 * @return eNodeBs
+	 */
+	public int getENodeBCount() {
+		return eNodeBCount;
+	}
+
+	/**
+	 * Gets the number of controllers
+	 *
+	 * @return controllers
+	 */
+	public int getControllerCount() {
+		return controllerCount;
+	}
+
+	/**
+	 * Gets the number of connections
+	 *
+	 * @return connections
+	 */
+	public int getLinkCount() {
+		return linkCount;
+	}
+
+	/**
+	 * Sets the number of eNodeBs
+	 *
+	 * @param n eNodeBs
+	 */
+	public void setENodeBCount(int n) {
+		eNodeBCount = n;
+		int old = assignController.length;
+		assignController = Arrays.copyOf(assignController, n);
+		nextHop = Arrays.copyOf(nextHop, n);
+		assignmentOrder = Arrays.copyOf(assignmentOrder, n);
+		for (int i = old; i < n; i++) {
+			assignController[i] = -1;
+		}
+	}
+
+	/**
+	 * Sets the number of controllers
+	 *
+	 * @param n controllers
+	 */
+	public void setControllerCount(int n) {
+		controllerCount = n;
+		fails = Arrays.copyOf(fails, n);
+	}
+
+	/**
+	 * Adds a connection between two endpoints
+	 *
+	 * @param a an endpoint
+	 * @param b an endpoint
+	 */
+	public void addLink(int a, int b) {
+		check(a);
+		check(b);
+		if (linkCount == linkA.length) {
+			linkA = Arrays.copyOf(linkA, linkCount * 2);
+			linkB = Arrays.copyOf(linkB, linkCount * 2);
+		}
+		if (linkDelay != null && linkCount == linkDelay.length) {
+			linkDelay = Arrays.copyOf(linkDelay, linkCount * 2);
+			linkRate = Arrays.copyOf(linkRate, linkCount * 2);
+			Arrays.fill(linkDelay, linkCount, linkDelay.length, -1);
+		}
+		linkA[linkCount] = a;
+		linkB[linkCount] = b;
+		linkCount++;
+	}
+
+	/**
+	 * Gives a connection its own propagation delay and capacity
+	 *
+	 * @param i the number of the connection
+	 * @param delay in milliseconds
+	 * @param mbps capacity in Mbit/s, 0 for unlimited
+	 */
+	public void setLink(int i, double delay, double mbps) {
+		if (linkDelay == null) {
+			linkDelay = new double[linkA.length];
+			linkRate = new double[linkA.length];
+			Arrays.fill(linkDelay, -1);
+		}
+		linkDelay[i] = delay;
+		linkRate[i] = mbps;
+	}
+
+	/**
+	 * Gives the edge of a connection in a run the delay and capacity of
+	 * the connection, if it has its own
+	 *
+	 * @param ctx the run
+	 * @param i the number of the connection
+	 * @param edge the id of its edge
+	 */
+	private void configure(SimContext ctx, int i, int edge) {
+		if (linkDelay != null && linkDelay[i] >= 0) {
+			ctx.setLink(edge, linkDelay[i], linkRate[i]);
+		}
+	}
+
+	/**
+	 * Assigns an eNodeB to a controller
+	 *
+	 * @param c the controller number
+	 * @param e the eNodeB number
+	 * @param next the endpoint the eNodeB sends to, to reach the controller
+	 */
+	public void assign(int c, int e, int next) {
+		check(controller(c));
+		check(e);
+		check(next);
+		if (assignController[e] < 0) {
+			assignmentOrder[assignmentCount++] = e;
+		}
+		assignController[e] = c;
+		nextHop[e] = next;
+	}
+
+	/**
+	 * Makes a controller fail at failTime, unless the run has a FaultSchedule
+	 *
+	 * @param c the controller number
+	 */
+	public void setFails(int c) {
+		check(controller(c));
+		fails[c] = true;
+	}
+
+	/**
+	 * Gets the controller of an eNodeB
+	 *
+	 * @param e the eNodeB number
+	 * @return the controller number or -1
+	 */
+	public int getController(int e) {
+		return assignController[e];
+	}
+
+	/**
+	 * Gets the next hop of an eNodeB towards its controller
+	 *
+	 * @param e the eNodeB number
+	 * @return the endpoint
+	 */
+	public int getNextHop(int e) {
+		return nextHop[e];
+	}
+
+	/**
+	 * Gets the first endpoint of a connection
+	 *
+	 * @param i the connection number
+	 * @return the endpoint
+	 */
+	public int getLinkA(int i) {
+		return linkA[i];
+	}
+
+	/**
+	 * Gets the second endpoint of a connection
+	 *
+	 * @param i the connection number
+	 * @return the endpoint
+	 */
+	public int getLinkB(int i) {
+		return linkB[i];
+	}
+
+	/**
+	 * Checks an endpoint exists
+	 *
+	 * @param p the endpoint
+	 */
+	private void check(int p) {
+		if (p >= eNodeBCount || controller(p) >= controllerCount) {
+			throw new IllegalArgumentException("Unknown endpoint " + endpointName(p) + " in " + name);
+		}
+	}
+
+	/**
+	 * Gets the short name of an endpoint, e.g. E5 or C1
+	 *
+	 * @param p the endpoint
+	 * @return the name
+	 */
+	public static String endpointName(int p) {
+		return p >= 0 ? "E" + p : "C" + controller(p);
+	}
+
+	/**
+	 * Creates the Controllers, eNodeBs and Connections of a run
+	 */
+	@Override
+	public void build(SimContext ctx, long maxTime, long failTime, int load) {
+		if (ctx.getShard() != null) {
+			buildShard(ctx, ctx.getShard(), maxTime, failTime, load);
+			return;
+		}
+		ArrayList<Controller> controllers = ctx.getControllers();
+		ArrayList<ENodeB> eNodeBs = ctx.getENodeBs();
+		eNodeBs.ensureCapacity(eNodeBCount);
+
+		for (int i = 0; i < eNodeBCount; i++) {
+			eNodeBs.add(new ENodeB(i, maxTime, load, ctx));
+		}
+		for (int j = 0; j < controllerCount; j++) {
+			controllers.add(new Controller(j, maxTime, load, ctx));
+			if (fails[j]) {
+				ctx.getTopologyFaults().fail(failTime, j);
+			}
+		}
+		for (int k = 0; k < assignmentCount; k++) {
+			int e = assignmentOrder[k];
+			controllers.get(assignController[e]).addENodeB(eNodeBs.get(e), entity(ctx, nextHop[e]));
+		}
+		// connections go straight into the graph, without Connection objects
+		Graph g = ctx.getGraph();
+		for (int i = 0; i < linkCount; i++) {
+			configure(ctx, i, g.addEdge(entity(ctx, linkA[i]).getId(), entity(ctx, linkB[i]).getId()));
+		}
+		g.compile();
+	}
+
+	/**
+	 * Creates the part of a run that one shard runs: its own eNodeBs, their
+	 * neighbours, which stand in for the shards that run them, and every
+	 * controller, since any controller can adopt any orphan. The other
+	 * eNodeBs are reserved, so ids and random streams are those of the
+	 * whole run, and the graph is the graph of the whole run.
+	 *
+	 * Every shard sets up the children of the eNodeBs and controllers it
+	 * runs, so eNodeBs join their next hop in the shard of the next hop.
+	 */
+	private void buildShard(SimContext ctx, Shard shard, long maxTime, long failTime, int load) {
+		ArrayList<Controller> controllers = ctx.getControllers();
+		ArrayList<ENodeB> eNodeBs = ctx.getENodeBs();
+		Entity[] entities = new Entity[eNodeBCount + controllerCount];
+		boolean[] local = new boolean[entities.length];
+		for (int i = 0; i < linkCount; i++) {
+			near(shard, local, shard.vertex(linkA[i]), shard.vertex(linkB[i]));
+		}
+		for (int k = 0; k < assignmentCount; k++) {
+			int e = assignmentOrder[k];
+			near(shard, local, e, shard.vertex(nextHop[e]));
+		}
+
+		for (int i = 0; i < eNodeBCount; i++) {
+			if (local[i] || shard.owns(i)) {
+				ENodeB b = new ENodeB(i, maxTime, load, ctx);
+				eNodeBs.add(b);
+				entities[i] = b;
+			} else {
+				ctx.reserve();
+			}
+		}
+		for (int j = 0; j < controllerCount; j++) {
+			Controller c = new Controller(j, maxTime, load, ctx);
+			controllers.add(c);
+			entities[eNodeBCount + j] = c;
+			if (fails[j]) {
+				ctx.getTopologyFaults().fail(failTime, j);
+			}
+		}
+		for (int k = 0; k < assignmentCount; k++) {
+			int e = assignmentOrder[k];
+			Controller c = controllers.get(assignController[e]);
+			int next = shard.vertex(nextHop[e]);
+			if (shard.owns(e)) {
+				c.addENodeB((ENodeB) entities[e], entities[next]);
+			} else {
+				if (shard.owns(next)) {
+					entities[next].addChild((ENodeB) entities[e]);
+				}
+				if (shard.owns(c.getId())) {
+					c.addRemoteENodeB();
+				}
+			}
+		}
+		Graph g = ctx.getGraph();
+		for (int i = 0; i < linkCount; i++) {
+			configure(ctx, i, g.addEdge(shard.vertex(linkA[i]), shard.vertex(linkB[i])));
+		}
+		g.compile();
+	}
+
+	/**
+	 * Marks the entities a shard needs for a connection: the other end of
+	 * every Entity it runs
+	 */
+	private static void near(Shard shard, boolean[] local, int a, int b) {
+		if (shard.owns(a)) {
+			local[b] = true;
+		}
+		if (shard.owns(b)) {
+			local[a] = true;
+		}
+	}
+
+	/**
+	 * Gets the Entity of an endpoint
+	 *
+	 * @param ctx the run
+	 * @param p the endpoint
+	 * @return the Controller or eNodeB
+	 */
+	private static Entity entity(SimContext ctx, int p) {
+		if (p >= 0) {
+			return ctx.getENodeBs().get(p);
+		}
+		return ctx.getControllers().get(controller(p));
+	}
+
+	/**
+	 * Reads a topology file
+	 *
+	 * @param file the topology file
+	 * @return the topology
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static TopologySpec read(File file) throws IOException {
+		Reader r = new FileReader(file);
+		try {
+			return read(file.getName(), r);
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Reads a topology
+	 *
+	 * @param name of the topology
+	 * @param reader the topology in the file format
+	 * @return the topology
+	 * @throws IOException if the topology cannot be read or is malformed
+	 */
+	public static TopologySpec read(String name, Reader reader) throws IOException {
+		TopologySpec spec = new TopologySpec(name);
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			String[] words = line.split("\\s+");
+			try {
+				if (words[0].equals("enodebs") && words.length == 2) {
+					spec.setENodeBCount(Integer.parseInt(words[1]));
+				} else if (words[0].equals("controllers") && words.length == 2) {
+					spec.setControllerCount(Integer.parseInt(words[1]));
+				} else if (words[0].equals("link") && words.length >= 3 && words.length <= 5) {
+					spec.addLink(parseEndpoint(words[1]), parseEndpoint(words[2]));
+					if (words.length > 3) {
+						spec.setLink(spec.getLinkCount() - 1, Double.parseDouble(words[3]),
+								words.length > 4 ? Double.parseDouble(words[4]) : 0);
+					}
+				} else if (words[0].equals("assign") && words.length == 4) {
+					spec.assign(parseController(words[1]), parseEndpoint(words[2]), parseEndpoint(words[3]));
+				} else if (words[0].equals("fail") && words.length == 2) {
+					spec.setFails(parseController(words[1]));
+				} else {
+					throw new IllegalArgumentException("Unknown statement");
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IOException(name + ":" + lineNumber + ": " + e.getMessage() + ": " + line);
+			}
+		}
+		return spec;
+	}
+
+	/**
+	 * Parses an endpoint name, e.g. E5 or C1. Numbers are not negative,
+	 * since negative endpoints are controllers.
+	 *
+	 * @param s the name
+	 * @return the endpoint
+	 */
+	static int parseEndpoint(String s) {
+		int n = s.length() > 1 ? Integer.parseInt(s.substring(1)) : -1;
+		if (n >= 0 && s.charAt(0) == 'E') {
+			return n;
+		} else if (n >= 0 && s.charAt(0) == 'C') {
+			return controller(n);
+		}
+		throw new IllegalArgumentException("Bad endpoint " + s);
+	}
+
+	/**
+	 * Parses a controller name, e.g. C1
+	 *
+	 * @param s the name
+	 * @return the controller number
+	 */
+	static int parseController(String s) {
+		int p = parseEndpoint(s);
+		if (p >= 0) {
+			throw new IllegalArgumentException("Not a controller " + s);
+		}
+		return controller(p);
+	}
+
+	/**
+	 * Writes the topology in the file format
+	 *
+	 * @param file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		Writer w = new FileWriter(file);
+		try {
+			write(w);
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Writes the topology in the file format
+	 *
+	 * @param writer to write to
+	 */
+	public void write(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("# " + name);
+		out.println("enodebs " + eNodeBCount);
+		out.println("controllers " + controllerCount);
+		for (int j = 0; j < controllerCount; j++) {
+			if (fails[j]) {
+				out.println("fail C" + j);
+			}
+		}
+		for (int k = 0; k < assignmentCount; k++) {
+			int e = assignmentOrder[k];
+			out.println("assign C" + assignController[e] + " E" + e + " " + endpointName(nextHop[e]));
+		}
+		for (int i = 0; i < linkCount; i++) {
+			String link = "link " + endpointName(linkA[i]) + " " + endpointName(linkB[i]);
+			if (linkDelay != null && linkDelay[i] >= 0) {
+				link += " " + linkDelay[i] + " " + linkRate[i];
+			}
+			out.println(link);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,460 @@
+package failover;
+
+/**
+ * A compact record of the order in which the messages of a run were queued
+ * and taken, and of the adoption decisions of the orphans.
+ *
+ * Every event is a kind byte followed by varints: the time since the last
+ * event (zigzag, threads may record out of order), the entity, the peer + 1
+ * and the sequence number of the request. Most events take 5 to 8 bytes.
+ * The header holds what is needed to run the same run again: the seed, the
+ * topology, the backend, the times and load, the strategy and the fault
+ * schedule.
+ *
+ * Events per kind
+ *   ENQUEUE, DEQUEUE  entity: the queue, peer: the orphan
+ *   ADOPT, DEFER, REJECT  entity: the orphan, peer: the controller
+ *   REJECT  also entity: a controller, peer: the orphan, when its full
+ *           queue turns a request away
+ *   ORPHAN  entity: the orphan, peer: the lost controller
+ *   FAILURE  entity: the controller
+ *
+ * e.g.
+ * Trace t = new Trace(run, seed, "grid:10x10:4", "events", 45, 5, 17);
+ * ctx.setTrace(t);
+ * ...
+ * t.write(new File("run-1.trace"));
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class Trace {
+	public static final int ENQUEUE = 0;
+	public static final int DEQUEUE = 1;
+	public static final int ADOPT = 2;
+	public static final int DEFER = 3;
+	public static final int REJECT = 4;
+	public static final int ORPHAN = 5;
+	public static final int FAILURE = 6;
+	private static final String[] KINDS = { "enqueue", "dequeue", "adopt", "defer", "reject", "orphan",
+			"failure" };
+
+	private static final int MAGIC = 0x464F5452;
+	private static final int VERSION = 3; // 2 had no strategy
+
+	private int run;
+	private long seed;
+	private String topology;
+	private String backend;
+	private long maxTime;
+	private long failTime;
+	private int load;
+	private String faults; // the FaultSchedule in its file format, or empty
+	private String strategy; // the Strategy descriptor, or empty
+
+	private byte[] data;
+	private int length;
+	private int count;
+	private long last; // time of the last event
+
+	/**
+	 * @param run the run number
+	 * @param seed the seed of the run
+	 * @param topology a topology file or generator descriptor
+	 * @param backend the name of the backend
+	 * @param maxTime of the simulation in seconds
+	 * @param failTime of the failing controller in seconds
+	 * @param load the percent load
+	 */
+	public Trace(int run, long seed, String topology, String backend, long maxTime, long failTime, int load) {
+		this.run = run;
+		this.seed = seed;
+		this.topology = topology;
+		this.backend = backend;
+		this.maxTime = maxTime;
+		this.failTime = failTime;
+		this.load = load;
+		faults = "";
+		strategy = "";
+		data = new byte[4096];
+		length = 0;
+		count = 0;
+		last = 0;
+	}
+
+	/**
+	 * Records an event
+	 *
+	 * @param kind ENQUEUE .. FAILURE
+	 * @param time since the start of the run in milliseconds
+	 * @param entity the id of the entity
+	 * @param peer the id of the other entity or -1
+	 * @param sequence the sequence number of the request or 0
+	 */
+	public synchronized void record(int kind, long time, int entity, int peer, int sequence) {
+		if (length + 40 > data.length) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		data[length++] = (byte) kind;
+		long delta = time - last;
+		last = time;
+		put((delta << 1) ^ (delta >> 63));
+		put(entity);
+		put(peer + 1);
+		put(sequence);
+		count++;
+	}
+
+	private void put(long v) {
+		while ((v & ~0x7FL) != 0) {
+			data[length++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		data[length++] = (byte) v;
+	}
+
+	/**
+	 * Gets the number of events
+	 *
+	 * @return events
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the size of the events
+	 *
+	 * @return bytes
+	 */
+	public synchronized int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the run number
+	 *
+	 * @return run
+	 */
+	public int getRun() {
+		return run;
+	}
+
+	/**
+	 * Gets the seed of the run
+	 *
+	 * @return seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Gets the topology of the run
+	 *
+	 * @return a topology file or generator descriptor
+	 */
+	public String getTopology() {
+		return topology;
+	}
+
+	/**
+	 * Gets the backend of the run
+	 *
+	 * @return the name of the backend
+	 */
+	public String getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Gets the maximum time of the run
+	 *
+	 * @return maxTime in seconds
+	 */
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	/**
+	 * Gets the time the controller fails
+	 *
+	 * @return failTime in seconds
+	 */
+	public long getFailTime() {
+		return failTime;
+	}
+
+	/**
+	 * Gets the load of the run
+	 *
+	 * @return the percent load
+	 */
+	public int getLoad() {
+		return load;
+	}
+
+	/**
+	 * Sets the failures of the run
+	 *
+	 * @param faults the FaultSchedule in its file format, or empty for the
+	 *            failures of the topology
+	 */
+	public void setFaults(String faults) {
+		this.faults = faults;
+	}
+
+	/**
+	 * Gets the failures of the run
+	 *
+	 * @return the FaultSchedule in its file format, or empty
+	 */
+	public String getFaults() {
+		return faults;
+	}
+
+	/**
+	 * Sets the strategy of the run
+	 *
+	 * @param strategy the Strategy descriptor, or empty for the defaults of
+	 *            SimContext
+	 */
+	public void setStrategy(String strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Gets the strategy of the run
+	 *
+	 * @return the Strategy descriptor, or empty
+	 */
+	public String getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Gets a cursor over the events, starting before the first
+	 *
+	 * @return the cursor
+	 */
+	public synchronized Cursor cursor() {
+		return new Cursor(data, length);
+	}
+
+	/**
+	 * Finds the first event in which two traces differ. Times are not
+	 * compared: wall-clock backends never take a step at the same
+	 * millisecond twice, but they can take them in the same order.
+	 *
+	 * @param other a trace
+	 * @return the index of the event or -1 if the traces are the same
+	 */
+	public int diverges(Trace other) {
+		Cursor a = cursor();
+		Cursor b = other.cursor();
+		int i = 0;
+		while (true) {
+			boolean moreA = a.next();
+			boolean moreB = b.next();
+			if (!moreA && !moreB) {
+				return -1;
+			}
+			if (moreA != moreB || !a.same(b)) {
+				return i;
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Gets the name of a kind of event
+	 *
+	 * @param kind ENQUEUE .. FAILURE
+	 * @return the name
+	 */
+	public static String kindName(int kind) {
+		return kind >= 0 && kind < KINDS.length ? KINDS[kind] : "kind " + kind;
+	}
+
+	/**
+	 * Writes the trace to a file
+	 *
+	 * @param file the trace file
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(run);
+			out.writeLong(seed);
+			out.writeUTF(topology);
+			out.writeUTF(backend);
+			out.writeLong(maxTime);
+			out.writeLong(failTime);
+			out.writeInt(load);
+			out.writeUTF(faults);
+			out.writeUTF(strategy);
+			out.writeInt(count);
+			out.writeInt(length);
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a trace from a file
+	 *
+	 * @param file the trace file
+	 * @return the trace
+	 * @throws IOException if the file cannot be read or is not a trace
+	 */
+	public static Trace read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a trace");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unknown version " + version);
+			}
+			Trace t = new Trace(in.readInt(), in.readLong(), in.readUTF(), in.readUTF(), in.readLong(),
+					in.readLong(), in.readInt());
+			t.faults = in.readUTF();
+			t.strategy = in.readUTF();
+			t.count = in.readInt();
+			t.length = in.readInt();
+			t.data = new byte[t.length];
+			in.readFully(t.data);
+			return t;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Walks the events of a trace
+	 */
+	public static class Cursor {
+		private byte[] data;
+		private int length;
+		private int position;
+		private int kind;
+		private long time;
+		private int entity;
+		private int peer;
+		private int sequence;
+
+		private Cursor(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+			position = 0;
+			time = 0;
+		}
+
+		/**
+		 * Moves to the next event
+		 *
+		 * @return false after the last event
+		 */
+		public boolean next() {
+			if (position >= length) {
+				return false;
+			}
+			kind = data[position++];
+			long zigzag = get();
+			time += (zigzag >>> 1) ^ -(zigzag & 1);
+			entity = (int) get();
+			peer = (int) get() - 1;
+			sequence = (int) get();
+			return true;
+		}
+
+		private long get() {
+			long v = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = data[position++];
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return v;
+				}
+			}
+		}
+
+		private boolean same(Cursor c) {
+			return kind == c.kind && entity == c.entity && peer == c.peer
+					&& sequence == c.sequence;
+		}
+
+		/**
+		 * Gets the kind of the event
+		 *
+		 * @return ENQUEUE .. FAILURE
+		 */
+		public int getKind() {
+			return kind;
+		}
+
+		/**
+		 * Gets the time of the event
+		 *
+		 * @return time since the start of the run in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Gets the entity of the event
+		 *
+		 * @return the id of the entity
+		 */
+		public int getEntity() {
+			return entity;
+		}
+
+		/**
+		 * Gets the other entity of the event
+		 *
+		 * @return the id or -1
+		 */
+		public int getPeer() {
+			return peer;
+		}
+
+		/**
+		 * Gets the sequence number of the request
+		 *
+		 * @return sequence or 0
+		 */
+		public int getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Describes the event with the names of the entities of a run
+		 *
+		 * @param ctx the run
+		 * @return e.g. "2.350 s enqueue eNodeB7 (orphan eNodeB4 #2)"
+		 */
+		public String describe(SimContext ctx) {
+			String s = ctx.format(time / 1000.0) + " s " + kindName(kind) + " " + ctx.getEntity(entity).getName();
+			if (peer >= 0) {
+				s += " (" + (kind <= DEQUEUE ? "orphan " : "") + ctx.getEntity(peer).getName();
+				s += sequence > 0 ? " #" + sequence + ")" : ")";
+			}
+			return s;
+		}
+	}
+}